@@ -1,5 +1,6 @@
 package com.acunu.castle;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
@@ -11,6 +12,9 @@ import java.util.Map;
 public abstract class AbstractCallback implements Runnable
 {
 	protected final Map<BufferManager, List<ByteBuffer>> buffers = new HashMap<BufferManager, List<ByteBuffer>>();
+
+	/* only used with leak detection; otherwise run() is the only way the buffers are returned */
+	private Reclaimer.Handle handle;
 	
 	protected abstract void process(); 
 	
@@ -29,6 +33,8 @@ public abstract class AbstractCallback implements Runnable
 	/* package private */
 	void collect(final BufferManager manager, final ByteBuffer... bufs)
 	{
+		if (Reclaimer.LEAK_DETECTION && handle == null)
+			handle = Reclaimer.register(this, getClass().getName() + " that was never run", new BufferReturner(buffers));
 		if (!buffers.containsKey(manager))
 			buffers.put(manager, new LinkedList<ByteBuffer>());
 		buffers.get(manager).addAll(Arrays.asList(bufs));
@@ -39,17 +45,17 @@ public abstract class AbstractCallback implements Runnable
 		collect(castle.getBufferManager(), bufs);
 	}
 
-	/*
-	 * last chance to avoid leaking NB: finalize methods are not guaranteed to
-	 * be run, ever.
-	 */
-	@Override
-	public void finalize()
+	protected void cleanup()
 	{
-		cleanup();
+		returnBuffers(buffers);
+		if (handle != null)
+		{
+			handle.forget();
+			handle = null;
+		}
 	}
 
-	protected void cleanup()
+	private static void returnBuffers(final Map<BufferManager, List<ByteBuffer>> buffers)
 	{
 		for (final Map.Entry<BufferManager, List<ByteBuffer>> entry : buffers.entrySet())
 		{
@@ -65,4 +71,23 @@ public abstract class AbstractCallback implements Runnable
 			entry.getValue().clear();
 		}
 	}
+
+	/*
+	 * Returns the buffers of a callback that was collected without being run.
+	 */
+	private static final class BufferReturner implements Closeable
+	{
+		private final Map<BufferManager, List<ByteBuffer>> buffers;
+
+		BufferReturner(final Map<BufferManager, List<ByteBuffer>> buffers)
+		{
+			this.buffers = buffers;
+		}
+
+		@Override
+		public void close()
+		{
+			returnBuffers(buffers);
+		}
+	}
 }
@@ -1,28 +1,63 @@
 package com.acunu.castle;
 
 import java.io.IOException;
-import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.EnumSet;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 import com.acunu.castle.IterStartRequest.IterFlags;
 
+/**
+ * Reads ahead of the consumer with several iternexts in flight. How many is
+ * adapted as the iterator runs: by Little's law, keeping the consumer busy
+ * takes about as many buffers in flight as there are consumer drains in one
+ * fill, so the depth follows the ratio of the average fill latency to the
+ * average time the consumer spends on a buffer. A fast consumer gets more
+ * read-ahead, up to numBuffers; a slow one falls back to a buffer or two, so
+ * that filled buffers aren't left waiting for it.
+ *
+ * The callback of an iternext only publishes the raw buffer; the consumer
+ * decodes it when it gets to it, so the shared callback threads are never
+ * held up decoding.
+ */
 public class AsyncIterBufferIterator implements IterBufferIterator
 {
+	/* weight of each new sample in the averages */
+	private static final double SMOOTHING = 0.125;
+
+	private static final int PENDING = 0;
+	private static final int DONE = 1;
+	private static final int ABANDONED = 2;
+
 	private final Castle castle;
 	private final int bufferSize;
 	private final int numBuffers;
-	private final ArrayList<BlockingAtomicReference<List<KeyValue>>> kvListArray;
 
-	private long token;
+	/* iternexts in the order they were sent, which is the order of their replies */
+	private final ArrayDeque<Slot> slots = new ArrayDeque<Slot>();
+
+	private final long token;
+	private final IterFinisher finisher;
+	private final Reclaimer.Handle handle;
 	private List<KeyValue> curKvList = null;
 
 	private boolean cancelled = false;
-	private int curId = 0;
-	private volatile boolean hasNext;
 
+	private int depth;
+	private double fillNanos = 0;
+	private double drainNanos = 0;
+	/* when the consumer last got a buffer, or 0 before the first */
+	private long lastTaken = 0;
+
+	/*
+	 * numBuffers bounds the read-ahead, and so the memory it takes, to
+	 * numBuffers * bufferSize.
+	 */
 	public AsyncIterBufferIterator(Castle castle, int collection, Key keyStart, Key keyFinish, EnumSet<IterFlags> flags,
 			int bufferSize, int numBuffers) throws IOException
 	{
@@ -34,121 +69,253 @@ public class AsyncIterBufferIterator implements IterBufferIterator
 		this.castle = castle;
 		this.bufferSize = bufferSize;
 		this.numBuffers = numBuffers;
-
-		kvListArray = new ArrayList<BlockingAtomicReference<List<KeyValue>>>(numBuffers);
-		for (int i = 0; i < numBuffers; i++)
-			kvListArray.add(i, new BlockingAtomicReference<List<KeyValue>>());
+		this.depth = Math.min(2, numBuffers);
 
 		IterReply iterReply = castle.iterstart(collection, keyStart, keyFinish, bufferSize, flags);
 
 		token = iterReply.token;
-		kvListArray.get(0).set(iterReply.elements);
-		hasNext = iterReply.hasNext;
+		slots.add(new Slot(iterReply.elements));
+		finisher = new IterFinisher(castle, token, iterReply.hasNext);
+		handle = Reclaimer.register(this, "iterator on collection " + collection, finisher);
 
-		for (int i = 1; i < numBuffers; i++)
-		{
-			// optimisation for if there is just one buffer worth of stuff
-			if (!hasNext)
-				kvListArray.get(i).set(new ArrayList<KeyValue>());
-			else
-				castle.iternext(token, bufferSize, new NextCallback(i));
-		}
+		readAhead();
 	}
 
-	private class NextCallback implements IterCallback
+	/**
+	 * One iternext, and the callback that hands its buffer to the consumer.
+	 * The callback and the consumer meet through state alone: the callback
+	 * moves it from PENDING to DONE and unparks the consumer if it is
+	 * waiting, while a consumer that gives up on the slot moves it to
+	 * ABANDONED, in which case the callback returns the buffer itself.
+	 */
+	private final class Slot extends Callback
 	{
-		private final int id;
+		/* null for the reply to iterstart, which comes decoded */
+		final ByteBuffer buffer;
+		final List<KeyValue> elements;
+
+		/* System.nanoTime() when the iternext was sent, or 0 if there wasn't one, and when it completed */
+		final long sent;
+		long filled;
+		/* how long take() parked waiting for the iternext; decoding isn't waiting */
+		long waited;
 
-		public NextCallback(int id)
+		private int error;
+		private final AtomicInteger state = new AtomicInteger(PENDING);
+		private volatile Thread waiter;
+
+		Slot(final List<KeyValue> elements)
 		{
-			this.id = id;
+			this.buffer = null;
+			this.elements = elements;
+			this.sent = 0;
+			state.set(DONE);
 		}
 
-		@Override
-		public void call(IterReply iterReply)
+		Slot(final ByteBuffer buffer)
 		{
-			/*
-			 * Be careful with races here (see #4265)
-			 * The calls are processed in multiple threads so we have multiple
-			 * instances of call running. Ensure we will only ever set it to false
-			 * which guarantees races won't hurt us.
-			 */
-			if (!iterReply.hasNext)
-				hasNext = false;
-			kvListArray.get(id).set(iterReply.elements);
-			assert !iterReply.elements.isEmpty();
+			this.buffer = buffer;
+			this.elements = null;
+			this.sent = System.nanoTime();
 		}
 
 		@Override
-		public void handleError(int error)
+		protected void call(RequestResponse response)
 		{
-			// Call set to notify. Must be called last.
-			kvListArray.get(id).setError(error);
-			kvListArray.get(id).set(new ArrayList<KeyValue>());
+			complete(0);
 		}
-	}
 
-	@Override
-	public boolean hasNext()
-	{
-		if (cancelled)
-			return false;
-
-		if (curKvList != null)
-			return !curKvList.isEmpty();
+		@Override
+		protected void handleError(int error)
+		{
+			complete(error);
+		}
 
-		// we want to set the thread interrupted status if we got interrupted
-		boolean interrupted = false;
+		/* error and filled are published by the state change */
+		private void complete(final int error)
+		{
+			this.error = error;
+			this.filled = System.nanoTime();
+			if (state.compareAndSet(PENDING, DONE))
+			{
+				final Thread w = waiter;
+				if (w != null)
+					LockSupport.unpark(w);
+			} else
+				returnBuffer();
+		}
 
-		try
+		/*
+		 * Waits for the iternext and decodes its buffer, which is then
+		 * returned. Interrupts are deferred until it has completed, since
+		 * castle may still be writing into the buffer.
+		 */
+		List<KeyValue> take() throws CastleException
 		{
-			while (true)
+			if (elements != null)
+				return elements;
+
+			boolean interrupted = false;
+			if (state.get() == PENDING)
 			{
-				try
-				{
-					curKvList = kvListArray.get(curId).get();
-					break;
-				} catch (InterruptedException e)
+				final long start = System.nanoTime();
+				waiter = Thread.currentThread();
+				while (state.get() == PENDING)
 				{
-					interrupted = true;
-					System.out.println("InterruptedException waiting for element in queue");
-					e.printStackTrace();
-				} catch (CastleException e)
-				{
-					// swallow if we got to the end - most likely it will
-					// be a token not found error. But we don't care since we
-					// got all the data
-					if (hasNext)
-						throw new RuntimeException(e);
-					else
-						break;
+					LockSupport.park(this);
+					if (Thread.interrupted())
+						interrupted = true;
 				}
+				waiter = null;
+				waited = System.nanoTime() - start;
 			}
-		} finally
-		{
 			if (interrupted)
 				Thread.currentThread().interrupt();
+
+			try
+			{
+				if (error != 0)
+					throw new CastleException(error, "Error during iter_next");
+				return decode();
+			} finally
+			{
+				returnBuffer();
+			}
 		}
 
-		if (curKvList == null || curKvList.isEmpty())
-			return false;
+		private List<KeyValue> decode() throws CastleException
+		{
+			final List<KeyValue> kvs = new ArrayList<KeyValue>();
+			final KeyValueCursor cursor = new KeyValueCursor(buffer, castle.iterBufferStart(buffer));
+			try
+			{
+				while (cursor.next())
+					kvs.add(cursor.getKeyValue());
+			} catch (final IOException e)
+			{
+				throw new CastleException(-5, "Unable to deserialize iterator buffer: " + e.getMessage(), e);
+			}
 
-		// don't bother to call iternext if we already know there are none left
-		if (!hasNext)
-			kvListArray.get(curId).set(new ArrayList<KeyValue>());
-		else
+			/* only ever set to false, as in the callbacks of the other iterators */
+			if (!cursor.hasMore())
+				finisher.hasNext = false;
+			return kvs;
+		}
+
+		/*
+		 * For a slot the consumer won't take: its buffer is returned now if
+		 * the iternext has completed, or else by the callback.
+		 */
+		void abandon()
+		{
+			if (elements == null && !state.compareAndSet(PENDING, ABANDONED))
+				returnBuffer();
+		}
+
+		private void returnBuffer()
 		{
+			try
+			{
+				castle.getBufferManager().put(buffer);
+			} catch (final IOException e)
+			{
+			}
+		}
+	}
 
+	/*
+	 * Sends iternexts until depth buffers are in flight or waiting, unless we
+	 * already know there are none left.
+	 */
+	private void readAhead()
+	{
+		while (finisher.hasNext && slots.size() < depth)
+		{
+			final Slot slot;
 			try
 			{
-				castle.iternext(token, bufferSize, new NextCallback(curId));
+				final ByteBuffer buffer = castle.getBufferManager().get(bufferSize);
+				// Limit in case we were returned a bigger buffer than necessary
+				buffer.limit(bufferSize);
+				slot = new Slot(buffer);
 			} catch (IOException e)
 			{
 				throw new RuntimeException(e);
 			}
+
+			try
+			{
+				castle.iternext(token, slot.buffer, slot);
+			} catch (IOException e)
+			{
+				slot.returnBuffer();
+				throw new RuntimeException(e);
+			}
+			slots.add(slot);
 		}
+	}
 
-		curId = (curId + 1) % numBuffers;
+	/*
+	 * Updates the averages with the buffer just taken and sets the depth from
+	 * them. Only the time the consumer parked for the buffer is left out of
+	 * its drain time; decoding the buffer is part of draining it.
+	 */
+	private void adapt(final Slot slot, final long taken)
+	{
+		if (slot.sent != 0)
+			fillNanos += SMOOTHING * ((slot.filled - slot.sent) - fillNanos);
+		if (lastTaken != 0)
+			drainNanos += SMOOTHING * (Math.max(taken - lastTaken - slot.waited, 1) - drainNanos);
+		lastTaken = taken;
+
+		if (drainNanos > 0)
+			depth = (int) Math.max(1, Math.min(numBuffers, 1 + Math.ceil(fillNanos / drainNanos)));
+	}
+
+	/* the current read-ahead: how many buffers the iterator keeps in flight or waiting */
+	public int getReadAheadDepth()
+	{
+		return depth;
+	}
+
+	@Override
+	public boolean hasNext()
+	{
+		if (cancelled)
+			return false;
+
+		if (curKvList != null)
+			return !curKvList.isEmpty();
+
+		final Slot slot = slots.poll();
+		if (slot == null)
+		{
+			if (!finisher.hasNext)
+				handle.forget();
+			return false;
+		}
+
+		try
+		{
+			curKvList = slot.take();
+		} catch (CastleException e)
+		{
+			// swallow if we got to the end - most likely it will
+			// be a token not found error. But we don't care since we
+			// got all the data
+			if (finisher.hasNext)
+				throw new RuntimeException(e);
+		}
+
+		if (curKvList == null || curKvList.isEmpty())
+		{
+			if (!finisher.hasNext)
+				handle.forget();
+			return false;
+		}
+
+		adapt(slot, System.nanoTime());
+		readAhead();
 
 		return true;
 	}
@@ -178,49 +345,9 @@ public class AsyncIterBufferIterator implements IterBufferIterator
 			return;
 
 		cancelled = true;
-
-		// only call iterfinish if we terminated early
-		if (hasNext)
-			castle.iterfinish(token);
-	}
-
-	@Override
-	public void finalize() throws IOException
-	{
-		close();
-	}
-
-	private static class BlockingAtomicReference<V>
-	{
-		private boolean set = false;
-		private V val = null;
-		private int error = 0;
-
-		public synchronized V get() throws InterruptedException, CastleException
-		{
-			if (!set)
-				this.wait();
-
-			this.set = false;
-			int err = error;
-			error = 0;
-
-			if (err != 0)
-				throw new CastleException(err, "Error during iter_next");
-
-			return val;
-		}
-
-		public synchronized void set(V val)
-		{
-			this.val = val;
-			set = true;
-			this.notify();
-		}
-
-		public synchronized void setError(final int error)
-		{
-			this.error = error;
-		}
+		for (final Slot slot : slots)
+			slot.abandon();
+		slots.clear();
+		handle.close();
 	}
 }
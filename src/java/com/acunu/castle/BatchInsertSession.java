@@ -147,16 +147,20 @@ public class BatchInsertSession
 	 */
 	public ByteBuffer put(final Key key, final ByteBuffer value, Long timestamp) throws IOException
 	{
-		if (Castle.MAX_KEY_SIZE > keyBuf.remaining())
+		/* keys are packed end to end, so small keys fill far more of the buffer */
+		final int keyLength = key.getApproximateLength();
+		if (keyLength > keyBuf.remaining())
 			flush();
 		assert currentBuf.remaining() >= value.remaining();
 		currentBuf.position(currentBuf.position() + value.remaining());
 		
-		ByteBuffer curKey = keyBuf.slice();
-		curKey.limit(Castle.MAX_KEY_SIZE);
-		keyBuf.position(keyBuf.position() + Castle.MAX_KEY_SIZE);
-		
-		requests.add(new ReplaceRequest(key, collection, curKey, value, timestamp));
+		final int keyStart = keyBuf.position();
+		final int keyLimit = keyBuf.limit();
+		keyBuf.limit(keyStart + keyLength);
+		requests.add(new ReplaceRequest(key, collection, keyBuf, value, timestamp));
+		keyBuf.limit(keyLimit);
+		keyBuf.position(keyStart + keyLength);
+
 		return currentBuf.slice();
 	}
 
@@ -0,0 +1,113 @@
+package com.acunu.castle;
+
+import java.io.IOException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounds the number of batches of requests in flight, so that the next batch
+ * is packed while castle works on the previous ones. Each batch takes a permit
+ * before it is sent and its callback gives it back once the batch's buffers
+ * have been returned; finish() waits for every permit and reports the first
+ * error of any batch.
+ */
+final class BatchPipeline
+{
+	private final String operation;
+	private final int window;
+	private final Semaphore permits;
+	private final AtomicInteger firstError = new AtomicInteger();
+
+	BatchPipeline(final String operation, final int window)
+	{
+		if (window < 1)
+			throw new IllegalArgumentException("window must be at least 1: " + window);
+		this.operation = operation;
+		this.window = window;
+		this.permits = new Semaphore(window);
+	}
+
+	/*
+	 * Waits until fewer than window batches are in flight and returns the
+	 * callback for the next one.
+	 */
+	Callback next() throws IOException
+	{
+		try
+		{
+			permits.acquire();
+		} catch (final InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted waiting for " + operation + " batches", e);
+		}
+		return new Callback()
+		{
+			@Override
+			protected void call(final RequestResponse response)
+			{
+			}
+
+			@Override
+			protected void handleError(final int error)
+			{
+				firstError.compareAndSet(0, error);
+			}
+
+			@Override
+			protected void cleanup()
+			{
+				super.cleanup();
+				permits.release();
+			}
+		};
+	}
+
+	/*
+	 * For a batch whose callback will never run because it couldn't be sent.
+	 */
+	void abandon(final Callback callback)
+	{
+		callback.cleanup();
+	}
+
+	/* true once any batch has failed; later batches aren't worth sending */
+	boolean failed()
+	{
+		return firstError.get() != 0;
+	}
+
+	/*
+	 * Waits for every batch in flight. Interrupts are deferred: the batches'
+	 * buffers must not be reused while castle may still be reading them.
+	 */
+	void await()
+	{
+		boolean interrupted = false;
+		while (true)
+		{
+			try
+			{
+				permits.acquire(window);
+				break;
+			} catch (final InterruptedException e)
+			{
+				interrupted = true;
+			}
+		}
+		permits.release(window);
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	/*
+	 * Waits for every batch and throws the first error, if there was one.
+	 */
+	void finish() throws CastleException
+	{
+		await();
+		final int error = firstError.get();
+		if (error != 0)
+			throw new CastleException(error, operation + " failed");
+	}
+}
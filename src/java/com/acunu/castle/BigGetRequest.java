@@ -12,6 +12,10 @@ public final class BigGetRequest extends Request
 
 	public final ByteBuffer keyBuffer;
 
+	/* the buffer passed in and its position, which our slice starts at */
+	private final ByteBuffer keySource;
+	private final int keyBase;
+
 	public BigGetRequest(Key key, int collectionId, ByteBuffer keyBuffer)
 	{
 		this.key = key;
@@ -22,15 +26,15 @@ public final class BigGetRequest extends Request
 		 * the original buffer.
 		 */
 		this.keyBuffer = keyBuffer.slice();
+		this.keySource = keyBuffer;
+		this.keyBase = keyBuffer.position();
 	}
 
-	static private native void copy_to(long buffer, int index, int collectionId, ByteBuffer keyBuffer,
-			int keyOffset, int keyLength);
-
 	@Override
-	protected void copy_to(long buffer, int index) throws CastleException
+	void encode(RequestEncoder encoder) throws CastleException
 	{
 		int keyLength = key.copyToBuffer(keyBuffer);
-		copy_to(buffer, index, collectionId, keyBuffer, keyBuffer.position(), keyLength);
+		encoder.request(RequestEncoder.BIG_GET, collectionId, 0, 0, 0);
+		encoder.region(0, keySource, keyBase + keyBuffer.position(), keyLength);
 	}
 }
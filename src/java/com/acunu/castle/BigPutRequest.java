@@ -14,6 +14,10 @@ public final class BigPutRequest extends Request
 	public final long valueLength;
 	public final Long timestamp;
 
+	/* the buffer passed in and its position, which our slice starts at */
+	private final ByteBuffer keySource;
+	private final int keyBase;
+
 	public BigPutRequest(Key key, int collectionId, ByteBuffer keyBuffer, long valueLength, Long timestamp)
 	{
 		this(collectionId, keyBuffer, copyKey(key, keyBuffer), valueLength, timestamp);
@@ -37,18 +41,18 @@ public final class BigPutRequest extends Request
 		this.keyBuffer = keyBuffer.slice();
 		this.valueLength = valueLength;
 		this.timestamp = timestamp;
+		this.keySource = keyBuffer;
+		this.keyBase = keyBuffer.position();
 	}
 
 	/**
 	 * Does NOT affect the position, limit etc. of keyBuffer.
 	 */
-	static private native void copy_to(long buffer, int index, int collectionId, ByteBuffer keyBuffer, int keyOffset,
-			int keyLength, long valueLength, long timestamp, boolean useTimestamp);
-
 	@Override
-	protected void copy_to(long buffer, int index) throws CastleException
+	void encode(RequestEncoder encoder)
 	{
-		copy_to(buffer, index, collectionId, keyBuffer, keyBuffer.position(), keyLength, valueLength,
-				timestamp == null ? 0 : timestamp, timestamp != null);
+		encoder.request(RequestEncoder.BIG_PUT, collectionId, timestamp == null ? 0 : RequestEncoder.FLAG_TIMESTAMP,
+				valueLength, timestamp == null ? 0 : timestamp);
+		encoder.region(0, keySource, keyBase + keyBuffer.position(), keyLength);
 	}
 }
@@ -1,28 +1,83 @@
 package com.acunu.castle;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.SortedMap;
-import java.util.TreeMap;
 import java.util.Map.Entry;
 
+/**
+ * Leases direct buffers for requests to Castle.
+ *
+ * Buffers are pooled in power-of-two size classes up to Castle.MAX_BUFFER_SIZE;
+ * a configured size is rounded up to its class. A request for a buffer is
+ * served from the smallest configured class that is large enough, and the
+ * returned buffer's limit is set to the size requested. Requests that no class
+ * can serve are carved from a slab if small enough, or else created directly.
+ *
+ * An adaptive BufferManager also keeps a pool for every class too large for a
+ * slab, and resizes all of its pools in the background according to a
+ * BufferPolicy.
+ */
 public class BufferManager
 {
-	private final Castle castle;
-	private boolean closed;
+	/* class c holds buffers of size 1 << c */
+	private static final int NUM_CLASSES = Integer.numberOfTrailingZeros(Castle.MAX_BUFFER_SIZE) + 1;
+
+	/* the most buffers leased at once using the per-thread scratch space */
+	private static final int MAX_SCRATCH_LEASE = 3;
 
-	private final Map<Integer, LinkedList<ByteBuffer>> buffers;
-	private final Map<Integer, Integer> sizeCountMap;
-	private final List<Integer> sizes;
+	private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocateDirect(0);
+
+	private final Castle castle;
 	private final boolean blocking;
-	
+	private volatile boolean closed;
+
+	/* null unless adaptive */
+	private final BufferPolicy policy;
+	private final Thread resizer;
+	private final int[] minCapacity = new int[NUM_CLASSES];
+	private final int[] maxCapacity = new int[NUM_CLASSES];
+
+	/* pools[c] is the pool for class c, or null if that class wasn't configured */
+	private final BufferPool[] pools = new BufferPool[NUM_CLASSES];
+
+	/* stats[c] counts leases served by class c, or by fallback allocations that round up to class c */
+	private final PoolStats[] stats = new PoolStats[NUM_CLASSES];
+
+	/* poolFor[c] is the smallest configured class >= c, or -1 if there is none */
+	private final int[] poolFor = new int[NUM_CLASSES];
+
+	/* leased buffers by identity hash code; only with Reclaimer.LEAK_DETECTION */
+	private final Map<Integer, List<Reclaimer.Handle>> leased = Reclaimer.LEAK_DETECTION
+			? new HashMap<Integer, List<Reclaimer.Handle>>() : null;
+
+	/* small buffers that miss the pools are carved from here rather than created individually */
+	private final SlabAllocator slabs;
+
+	private static final int SLAB_SIZE = Castle.MAX_BUFFER_SIZE;
+	/* room for a few more slabs than the one each slice size is guaranteed */
+	private static final int MAX_SLABS = SlabAllocator.NUM_SLICE_SIZES + 7;
+
+	private static final class LeaseScratch
+	{
+		final int[] sizes = new int[MAX_SCRATCH_LEASE];
+		final int[] classes = new int[MAX_SCRATCH_LEASE];
+		final int[] order = new int[MAX_SCRATCH_LEASE];
+	}
+
+	private static final ThreadLocal<LeaseScratch> scratch = new ThreadLocal<LeaseScratch>()
+	{
+		@Override
+		protected LeaseScratch initialValue()
+		{
+			return new LeaseScratch();
+		}
+	};
+
 	BufferManager(final Castle castle) throws IOException
 	{
 		this(castle, new HashMap<Integer, Integer>());
@@ -36,287 +91,566 @@ public class BufferManager
 	BufferManager(final Castle castle, final Map<Integer, Integer> sizeCountMap, final boolean blocking)
 	        throws IOException
 	{
+		this(castle, sizeCountMap, blocking, null);
+	}
+
+	/**
+	 * @param policy
+	 *            if not null, the pools are adaptive and are resized according
+	 *            to this policy. Adaptive pools can't be blocking.
+	 */
+	BufferManager(final Castle castle, final Map<Integer, Integer> sizeCountMap, final boolean blocking,
+			final BufferPolicy policy) throws IOException
+	{
+		if (blocking && policy != null)
+			throw new IllegalArgumentException("Blocking BufferManagers can't be adaptive");
+
 		this.castle = castle;
-		this.sizeCountMap = sizeCountMap;
 		this.blocking = blocking;
+		this.policy = policy;
+		this.slabs = new SlabAllocator(castle, SLAB_SIZE, MAX_SLABS);
 
-		buffers = new HashMap<Integer, LinkedList<ByteBuffer>>(sizeCountMap.size());
-		sizes = new ArrayList<Integer>(sizeCountMap.size());
-
+		final int[] counts = new int[NUM_CLASSES];
 		for (final Entry<Integer, Integer> entry : sizeCountMap.entrySet())
 		{
-			final LinkedList<ByteBuffer> bufferList = new LinkedList<ByteBuffer>();
+			if (entry.getKey() <= 0 || entry.getKey() > Castle.MAX_BUFFER_SIZE)
+				throw new IllegalArgumentException("Buffer size " + entry.getKey()
+						+ " must be between 1 and Castle.MAX_BUFFER_SIZE");
+			counts[sizeClass(entry.getKey())] += entry.getValue();
+		}
+
+		final int minAdaptiveClass = sizeClass(SlabAllocator.MAX_SLICE_SIZE) + 1;
+		for (int c = 0; c < NUM_CLASSES; ++c)
+		{
+			stats[c] = new PoolStats();
+
+			if (policy != null && (counts[c] > 0 || c >= minAdaptiveClass))
+			{
+				counts[c] = Math.max(counts[c], policy.minBuffers);
+				minCapacity[c] = policy.minBuffers;
+				maxCapacity[c] = Math.max(counts[c], policy.maxBuffers);
+			} else
+			{
+				minCapacity[c] = counts[c];
+				maxCapacity[c] = counts[c];
+			}
 
-			final int size = entry.getKey();
+			if (counts[c] == 0 && maxCapacity[c] == 0)
+				continue;
 
-			for (int i = 0; i < entry.getValue(); i++)
+			final int size = 1 << c;
+			pools[c] = new BufferPool(size, counts[c], maxCapacity[c], blocking, policy != null);
+			for (int i = 0; i < counts[c]; i++)
 			{
-				bufferList.add(castle.createBuffer(size));
+				pools[c].add(castle.createBuffer(size));
 			}
+		}
 
-			buffers.put(size, bufferList);
-			sizes.add(size);
+		int next = -1;
+		for (int c = NUM_CLASSES - 1; c >= 0; --c)
+		{
+			if (pools[c] != null)
+				next = c;
+			poolFor[c] = next;
 		}
 
-		Collections.sort(sizes);
+		if (policy != null)
+		{
+			resizer = new Thread("Castle buffer resizer")
+			{
+				@Override
+				public void run()
+				{
+					resizePools();
+				}
+			};
+			resizer.setDaemon(true);
+			resizer.start();
+		} else
+			resizer = null;
 	}
 
-	@Override
-	protected void finalize() throws IOException
+	/*
+	 * Runs in the resizer thread until the BufferManager is closed.
+	 */
+	private void resizePools()
 	{
-		close();
-	}
+		final List<ByteBuffer> trimmed = new ArrayList<ByteBuffer>();
+		while (!closed)
+		{
+			try
+			{
+				Thread.sleep(policy.intervalMillis);
+			} catch (final InterruptedException e)
+			{
+				return;
+			}
 
-	void close() throws IOException
-	{
-		if (closed)
-			return;
+			for (int c = 0; c < NUM_CLASSES && !closed; ++c)
+			{
+				final BufferPool pool = pools[c];
+				if (pool == null)
+					continue;
 
-		IOException exn = null;
-		for (final Entry<Integer, LinkedList<ByteBuffer>> entry : buffers.entrySet())
-		{
-			for (final ByteBuffer buffer : entry.getValue())
+				pool.setCapacity(policy.resize(pool.getCapacity(), minCapacity[c], maxCapacity[c],
+						pool.takeMisses(), pool.takeLowWater()));
+				pool.trim(trimmed);
+			}
+
+			for (final ByteBuffer buffer : trimmed)
 			{
+				stats[sizeClass(buffer.capacity())].recordDestroy();
 				try
 				{
 					castle.destroyBuffer(buffer);
 				} catch (final IOException e)
 				{
-					exn = e;
+					System.out.println("Unable to destroy trimmed buffer");
+					e.printStackTrace();
 				}
 			}
+			trimmed.clear();
 		}
+	}
+
+	/*
+	 * returns the size class for a buffer of the given size, i.e. ceil(log2(size))
+	 */
+	static int sizeClass(final int size)
+	{
+		if (size <= 1)
+			return 0;
+		return 32 - Integer.numberOfLeadingZeros(size - 1);
+	}
+
+	void close() throws IOException
+	{
+		if (closed)
+			return;
+
 		closed = true;
+
+		if (resizer != null)
+		{
+			resizer.interrupt();
+			try
+			{
+				resizer.join();
+			} catch (final InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		final List<ByteBuffer> drained = new ArrayList<ByteBuffer>();
+		for (final BufferPool pool : pools)
+		{
+			if (pool != null)
+				pool.drain(drained);
+		}
+
+		IOException exn = null;
+		for (final ByteBuffer buffer : drained)
+		{
+			try
+			{
+				castle.destroyBuffer(buffer);
+			} catch (final IOException e)
+			{
+				exn = e;
+			}
+		}
+		try
+		{
+			slabs.close();
+		} catch (final IOException e)
+		{
+			exn = e;
+		}
 		if (exn != null)
 			throw exn;
 	}
-	
+
+	/*
+	 * Allocates a buffer that isn't in any pool, carving it from a slab if it is small enough.
+	 * The buffer's limit is set to size, but its capacity may be larger.
+	 */
+	private ByteBuffer allocate(final int size) throws IOException
+	{
+		stats[sizeClass(size)].recordMiss();
+
+		final ByteBuffer slice = slabs.allocate(size);
+		if (slice != null)
+			return slice;
+		return castle.createBuffer(size);
+	}
+
+	/*
+	 * Allocates a buffer because the pool for class c was empty. The buffer is created at the
+	 * full class size so that the pool can keep it when it is returned; an adaptive pool is
+	 * about to grow to make room for it, so only non-adaptive misses are carved from a slab.
+	 */
+	private ByteBuffer allocate(final int size, final int c) throws IOException
+	{
+		stats[c].recordMiss();
+		if (policy != null)
+			pools[c].recordMiss();
+		else
+		{
+			final ByteBuffer slice = slabs.allocate(size);
+			if (slice != null)
+				return slice;
+		}
+
+		final ByteBuffer buf = castle.createBuffer(1 << c);
+		buf.limit(size);
+		return buf;
+	}
+
+	/*
+	 * Returns true if the buffer was carved from a slab, in which case it has been released
+	 * back to the slab and must not be destroyed. Called for every buffer passed to
+	 * Castle.destroyBuffer, so this is also where a leased buffer stops being tracked.
+	 */
+	boolean releaseSlice(final ByteBuffer buffer)
+	{
+		if (leased != null)
+			untrack(buffer);
+		return slabs.release(buffer);
+	}
+
+	/*
+	 * returns the class of the pool that should serve a request for size bytes,
+	 * or -1 if no pool is large enough or size == 0
+	 */
+	private int poolClass(final int size)
+	{
+		if (size > Castle.MAX_BUFFER_SIZE)
+			throw new IllegalArgumentException("Buffer size requested greater than Castle.MAX_BUFFER_SIZE");
+
+		if (size == 0)
+			return -1;
+
+		return poolFor[sizeClass(size)];
+	}
+
 	public ByteBuffer get(final int size) throws IOException
+	{
+		return get(size, blocking);
+	}
+
+	/*
+	 * As get(size), but never waits for a buffer, even in blocking mode: if the
+	 * pool has none free, one is allocated instead. For threads that must not
+	 * wait on buffers that only they could return, such as the callback threads.
+	 */
+	public ByteBuffer tryGet(final int size) throws IOException
+	{
+		return get(size, false);
+	}
+
+	/*
+	 * As tryGet(size), for two buffers
+	 */
+	public ByteBuffer[] tryGet(final int size0, final int size1) throws IOException
+	{
+		final ByteBuffer[] buffers = new ByteBuffer[2];
+		buffers[0] = tryGet(size0);
+		boolean ok = false;
+		try
+		{
+			buffers[1] = tryGet(size1);
+			ok = true;
+		} finally
+		{
+			if (!ok)
+				put(buffers[0]);
+		}
+		return buffers;
+	}
+
+	private ByteBuffer get(final int size, final boolean wait) throws IOException
 	{
 		if (closed)
 			throw new IOException("BufferManager is closed");
-		
+
 		if (size == 0)
-			return ByteBuffer.allocateDirect(0);
-		
-		final Integer sizeToUse = getAllocatedSize(size);
-		if (sizeToUse == null)
-			return castle.createBuffer(size);
-		
-		final List<ByteBuffer> buffers = lease(sizeToUse, 1);
-		if (buffers.isEmpty())
-			return castle.createBuffer(size);
-		
-		buffers.get(0).limit(size);
-		return buffers.get(0);
+			return EMPTY_BUFFER;
+
+		final int c = poolClass(size);
+		if (c < 0)
+			return track(allocate(size));
+
+		ByteBuffer buf;
+		if (wait)
+		{
+			recordWait(c, pools[c].reserve(1));
+			buf = pools[c].takeReserved();
+		} else
+			buf = pools[c].tryLease();
+
+		if (buf == null)
+			buf = allocate(size, c);
+		else
+		{
+			stats[c].recordHit();
+			buf.limit(size);
+		}
+		return track(buf);
+	}
+
+	public ByteBuffer[] get(final int size0, final int size1) throws IOException
+	{
+		final ByteBuffer[] buffers = new ByteBuffer[2];
+		lease(buffers, size0, size1);
+		return buffers;
+	}
+
+	public ByteBuffer[] get(final int size0, final int size1, final int size2) throws IOException
+	{
+		final ByteBuffer[] buffers = new ByteBuffer[3];
+		lease(buffers, size0, size1, size2);
+		return buffers;
+	}
+
+	/*
+	 * As get(size0, size1), but stores the buffers in dest[0] and dest[1] rather than
+	 * allocating a new array.
+	 */
+	public void lease(final ByteBuffer[] dest, final int size0, final int size1) throws IOException
+	{
+		final LeaseScratch s = scratch.get();
+		s.sizes[0] = size0;
+		s.sizes[1] = size1;
+		lease(dest, s.sizes, 2, s.classes, s.order);
 	}
-	
+
+	/*
+	 * As get(size0, size1, size2), but stores the buffers in dest[0..2] rather than
+	 * allocating a new array.
+	 */
+	public void lease(final ByteBuffer[] dest, final int size0, final int size1, final int size2)
+			throws IOException
+	{
+		final LeaseScratch s = scratch.get();
+		s.sizes[0] = size0;
+		s.sizes[1] = size1;
+		s.sizes[2] = size2;
+		lease(dest, s.sizes, 3, s.classes, s.order);
+	}
+
 	/*
 	 * leases one buffer of each of the supplied sizes in such a way as to avoid deadlock.
 	 * Deadlock-safety is only implied if this thread has not already leased any other buffers.
 	 */
 	public ByteBuffer[] get(final Integer... sizes) throws IOException
+	{
+		final int n = sizes.length;
+		final ByteBuffer[] buffers = new ByteBuffer[n];
+		if (n <= MAX_SCRATCH_LEASE)
+		{
+			final LeaseScratch s = scratch.get();
+			for (int i = 0; i < n; ++i)
+				s.sizes[i] = sizes[i];
+			lease(buffers, s.sizes, n, s.classes, s.order);
+		} else
+		{
+			final int[] intSizes = new int[n];
+			for (int i = 0; i < n; ++i)
+				intSizes[i] = sizes[i];
+			lease(buffers, intSizes, n, new int[n], new int[n]);
+		}
+		return buffers;
+	}
+
+	/*
+	 * Leases one buffer for each of the first n sizes into dest, using classes and order as
+	 * scratch space. Pooled buffers are leased in ascending class order, and all the buffers
+	 * needed from one class are reserved at once, so that two such leases can't deadlock.
+	 * In blocking mode waits until every pooled buffer is available; in non-blocking mode
+	 * allocates any that aren't.
+	 */
+	private void lease(final ByteBuffer[] dest, final int[] sizes, final int n, final int[] classes, final int[] order)
+			throws IOException
 	{
 		if (closed)
 			throw new IOException("BufferManager is closed");
-		
-		final Map<Integer, Integer> requestedSizes = new HashMap<Integer, Integer>();
-		for (final Integer size : sizes)
+
+		for (int i = 0; i < n; ++i)
 		{
-			if (requestedSizes.containsKey(size))
-				requestedSizes.put(size, 1 + requestedSizes.get(size));
-			else
-				requestedSizes.put(size, 1);
+			dest[i] = null;
+			classes[i] = poolClass(sizes[i]);
+
+			/* insertion sort by class; n is almost always 2 or 3 */
+			int j = i;
+			while (j > 0 && classes[order[j - 1]] > classes[i])
+			{
+				order[j] = order[j - 1];
+				--j;
+			}
+			order[j] = i;
 		}
-		
-		final List<ByteBuffer> buffers = new ArrayList<ByteBuffer>(sizes.length);
-		final Map<Integer, List<ByteBuffer>> allocatedBuffers = lease(requestedSizes);
-		
-		boolean failed = false;
+
+		boolean failed = true;
 		try
 		{
-			// TODO: do this in reverse order of size so that any allocations are of smaller size
-			for (final Integer size : sizes)
+			int i = 0;
+			while (i < n)
 			{
-				if (allocatedBuffers.get(size).isEmpty())
-					buffers.add(castle.createBuffer(size));
-				else
+				final int c = classes[order[i]];
+				if (c < 0)
 				{
-					ByteBuffer buf = allocatedBuffers.get(size).remove(0);
-					buf.limit(size);
-					buffers.add(buf);
+					final int size = sizes[order[i]];
+					dest[order[i]] = size == 0 ? EMPTY_BUFFER : allocate(size);
+					++i;
+					continue;
+				}
+
+				int end = i + 1;
+				while (end < n && classes[order[end]] == c)
+					++end;
+
+				final BufferPool pool = pools[c];
+				if (blocking)
+					recordWait(c, pool.reserve(end - i));
+
+				for (; i < end; ++i)
+				{
+					final int size = sizes[order[i]];
+					ByteBuffer buf = blocking ? pool.takeReserved() : pool.tryLease();
+					if (buf == null)
+						buf = allocate(size, c);
+					else
+					{
+						stats[c].recordHit();
+						buf.limit(size);
+					}
+					dest[order[i]] = buf;
 				}
 			}
-			
-			return buffers.toArray(new ByteBuffer[buffers.size()]);
-		} catch(IOException e)
-		{
-			failed = true;
-			throw e;
-		} catch(RuntimeException e)
-		{
-			failed = true;
-			throw e;
-		} finally 
+			failed = false;
+
+			if (leased != null)
+			{
+				for (int j = 0; j < n; ++j)
+					track(dest[j]);
+			}
+		} finally
 		{
 			if (failed)
 			{
-				for (List<ByteBuffer> bufs : allocatedBuffers.values())
+				for (int i = 0; i < n; ++i)
 				{
-					put(bufs.toArray(new ByteBuffer[bufs.size()]));
-					bufs.clear();
+					if (dest[i] != null)
+						put(dest[i]);
+					dest[i] = null;
 				}
-				put(buffers.toArray(new ByteBuffer[buffers.size()]));
 			}
 		}
 	}
-	
-	/*
-	 * returns the smallest allocated buffer size >= requestedSize
-	 * returns null if no allocated buffer is large enough, or if requestedSize == 0
-	 */
-	private Integer getAllocatedSize(final int requestedSize)
+
+	private ByteBuffer track(final ByteBuffer buffer)
 	{
-		if (requestedSize > Castle.MAX_BUFFER_SIZE)
-			throw new IllegalArgumentException("Buffer size requested greater than Castle.MAX_BUFFER_SIZE");
-		
-		if (requestedSize == 0)
-			return null;
-		
-		// find the next largest size we have
-		Integer sizeToUse = null;
-		for (final int availableSize : sizes)
+		if (leased == null || buffer.capacity() == 0)
+			return buffer;
+
+		final Integer key = System.identityHashCode(buffer);
+		final Reclaimer.Handle handle = Reclaimer.register(buffer, "buffer of size " + buffer.capacity(),
+				new LeakedBuffer(leased, key));
+		synchronized (leased)
 		{
-			if (availableSize >= requestedSize)
+			List<Reclaimer.Handle> handles = leased.get(key);
+			if (handles == null)
 			{
-				sizeToUse = availableSize;
-				break;
+				handles = new ArrayList<Reclaimer.Handle>(1);
+				leased.put(key, handles);
 			}
+			handles.add(handle);
 		}
-		return sizeToUse;
+		return buffer;
 	}
 
-	/*
-	 * leases N buffers of size S as specified by sizes
-	 * returns a Map of size S to list of buffers
-	 * A list may be reused between sizes if more than one size mapped to the same allocated buffer size
-	 * In blocking mode will always return a List of size N1 + N2 if both size S1 and S2 mapped to the same
-	 *   allocated buffer size (both S1 and S2 map to the same list)
-	 * In non-blocking mode, the List size may be less than N1 + N2 if not enough buffers were available.
-	 */
-	private Map<Integer, List<ByteBuffer>> lease(final Map<Integer, Integer> sizes) throws IOException
+	private void untrack(final ByteBuffer buffer)
 	{
-		Map<Integer, List<ByteBuffer>> result = new HashMap<Integer, List<ByteBuffer>>();
-		Map<Integer, List<ByteBuffer>> allocated = new HashMap<Integer, List<ByteBuffer>>();
-		boolean failed = false;
-		try
+		final Integer key = System.identityHashCode(buffer);
+		synchronized (leased)
 		{
-			final SortedMap<Integer, Integer> sizesToUse = new TreeMap<Integer, Integer>();
-			for (Integer size : sizes.keySet())
+			final List<Reclaimer.Handle> handles = leased.get(key);
+			if (handles == null)
+				return;
+			for (int i = 0; i < handles.size(); ++i)
 			{
-				if (size == 0)
+				if (handles.get(i).get() == buffer)
 				{
-					ByteBuffer[] emptyBufs = new ByteBuffer[sizes.get(size)];
-					Arrays.fill(emptyBufs, ByteBuffer.allocateDirect(0));
-					result.put(size, new ArrayList<ByteBuffer>(Arrays.asList(emptyBufs)));
-					continue;
-				}
-					
-				final Integer sizeToUse = getAllocatedSize(size);
-				if (sizeToUse == null)
-				{
-					result.put(size, new ArrayList<ByteBuffer>(sizes.get(size)));
-					for (int i = 0; i < sizes.get(size); ++i)
-						result.get(size).add(castle.createBuffer(size));
-					continue;
+					handles.remove(i).forget();
+					break;
 				}
-				
-				if (!sizesToUse.containsKey(sizeToUse))
-				{
-					sizesToUse.put(sizeToUse, sizes.get(size));
-					allocated.put(sizeToUse, new ArrayList<ByteBuffer>());
-				}
-				else
-					sizesToUse.put(sizeToUse, sizesToUse.get(sizeToUse) + sizes.get(size));
-				
-				result.put(size, allocated.get(sizeToUse));
-			}
-			
-			/* lease in ascending size order to avoid deadlock */
-			for (final Integer size : sizesToUse.keySet())
-			{
-				allocated.get(size).addAll(lease(size, sizesToUse.get(size)));
 			}
-		} catch(IOException e)
-		{
-			failed = true;
-			throw e;
-		} catch(RuntimeException e)
+			if (handles.isEmpty())
+				leased.remove(key);
+		}
+	}
+
+	/*
+	 * Forgets a leased buffer that was collected without being put back. Its memory can't be
+	 * recovered without the buffer, so the Reclaimer's report is all that can be done.
+	 */
+	private static final class LeakedBuffer implements Closeable
+	{
+		private final Map<Integer, List<Reclaimer.Handle>> leased;
+		private final Integer key;
+
+		LeakedBuffer(final Map<Integer, List<Reclaimer.Handle>> leased, final Integer key)
 		{
-			failed = true;
-			throw e;
-		} finally 
+			this.leased = leased;
+			this.key = key;
+		}
+
+		@Override
+		public void close()
 		{
-			if (failed)
+			synchronized (leased)
 			{
-				for (final List<ByteBuffer> bufs : result.values())
+				final List<Reclaimer.Handle> handles = leased.get(key);
+				if (handles == null)
+					return;
+				for (int i = handles.size() - 1; i >= 0; --i)
 				{
-					put(bufs.toArray(new ByteBuffer[bufs.size()]));
-					bufs.clear();
+					if (handles.get(i).get() == null)
+						handles.remove(i);
 				}
+				if (handles.isEmpty())
+					leased.remove(key);
 			}
 		}
-		
-		return result;
-	}	
-	
+	}
+
+	private void recordWait(final int c, final long nanos)
+	{
+		if (nanos > 0)
+			stats[c].recordWait(nanos);
+	}
+
 	/*
-	 * Gets num buffers of the exact size specified. 
-	 * In blocking mode, will always return exactly num buffers of requested size.
-	 * In non-blocking mode, may return fewer than requested if not enough were available.
-	 * It is an error to request a size which was not allocated.
+	 * returns a snapshot of every class that has a pool or has seen any traffic, smallest first
 	 */
-	private List<ByteBuffer> lease(final int size, final int num) throws IOException
+	List<PoolStats.Snapshot> getStats()
 	{
-		final ArrayList<ByteBuffer> leasedBuffers = new ArrayList<ByteBuffer>(num);
-		
-		final LinkedList<ByteBuffer> bufferList = buffers.get(size);
-		if (bufferList == null)
-			throw new IllegalArgumentException("No buffers of size " + size + " were allocated");
-		
-		if (blocking && num > sizeCountMap.get(size))
-			throw new IllegalArgumentException("Not enough buffers allocated of size " + size + 
-					" to satisfy this request");
-		
-		synchronized (bufferList)
+		final List<PoolStats.Snapshot> snapshots = new ArrayList<PoolStats.Snapshot>();
+		for (int c = 0; c < NUM_CLASSES; ++c)
 		{
-			if (blocking)
-			{
-				while (bufferList.size() < num)
-				{
-					try
-					{
-						bufferList.wait();
-					} catch (final InterruptedException e)
-					{
-					}
-				}
-			}
-			final int available = Math.min(num, bufferList.size());
-			for (int i = 0; i < available; ++i)
-			{
-				final ByteBuffer buf = bufferList.remove(0); 
-				buf.clear();
-				leasedBuffers.add(buf);
-			}
+			final BufferPool pool = pools[c];
+			final PoolStats.Snapshot snapshot = stats[c].snapshot("buffers-" + (1 << c), 1 << c,
+					pool == null ? -1 : pool.getCapacity(), pool == null ? -1 : pool.getHeld());
+			if (pool != null || snapshot.getMisses() > 0 || snapshot.getDestroys() > 0)
+				snapshots.add(snapshot);
 		}
-
-		return leasedBuffers;
+		return snapshots;
 	}
-	
+
 	// TODO: allow multiple release of the same size atomically
 	//       otherwise threads requesting a large number of buffers will get starved
-	public void put(final ByteBuffer... buffers) throws IOException 
+	public void put(final ByteBuffer... buffers) throws IOException
 	{
 		for (final ByteBuffer buffer : buffers)
 			put(buffer);
@@ -327,32 +661,24 @@ public class BufferManager
 		if (closed)
 			throw new IOException("BufferManager is closed");
 
-		if (buffer.capacity() == 0)
+		final int capacity = buffer.capacity();
+		if (capacity == 0)
 			return;
 
-		if (sizeCountMap.isEmpty())
-		{
-			castle.destroyBuffer(buffer);
-			return;
-		}
+		if (leased != null)
+			untrack(buffer);
 
-		final LinkedList<ByteBuffer> bufferList = buffers.get(buffer.capacity());
-		if (bufferList == null)
-		{
-			castle.destroyBuffer(buffer);
+		if (slabs.release(buffer))
 			return;
-		}
 
-		synchronized (bufferList)
+		if (Integer.bitCount(capacity) == 1)
 		{
-			if (bufferList.size() < sizeCountMap.get(buffer.capacity()))
-			{
-				bufferList.add(buffer);
-				if (blocking)
-					bufferList.notify();
+			final int c = Integer.numberOfTrailingZeros(capacity);
+			if (c < NUM_CLASSES && pools[c] != null && pools[c].put(buffer))
 				return;
-			}
 		}
+
+		stats[Math.min(sizeClass(capacity), NUM_CLASSES - 1)].recordDestroy();
 		castle.destroyBuffer(buffer);
 	}
 }
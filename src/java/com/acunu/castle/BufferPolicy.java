@@ -0,0 +1,56 @@
+package com.acunu.castle;
+
+/**
+ * Controls how an adaptive BufferManager resizes its pools. Every interval,
+ * each pool that missed (had to allocate because it was empty) grows by the
+ * number of misses, up to maxBuffers. A pool that didn't miss releases a
+ * fraction (decay) of the buffers that sat idle for the whole interval, down
+ * to minBuffers.
+ */
+public class BufferPolicy
+{
+	public static final BufferPolicy DEFAULT = new BufferPolicy(0, 64, 0.5, 10000);
+
+	public final int minBuffers;
+	public final int maxBuffers;
+	public final double decay;
+	public final long intervalMillis;
+
+	/**
+	 * @param minBuffers
+	 *            fewest buffers a pool will shrink to
+	 * @param maxBuffers
+	 *            most buffers a pool will grow to. Sizes configured with a
+	 *            larger count keep that count as their maximum.
+	 * @param decay
+	 *            fraction of idle buffers released each interval, in (0, 1]
+	 * @param intervalMillis
+	 *            how often pools are resized
+	 */
+	public BufferPolicy(final int minBuffers, final int maxBuffers, final double decay, final long intervalMillis)
+	{
+		if (minBuffers < 0 || maxBuffers < minBuffers)
+			throw new IllegalArgumentException("Need 0 <= minBuffers <= maxBuffers");
+		if (!(decay > 0 && decay <= 1))
+			throw new IllegalArgumentException("decay must be in (0, 1]");
+		if (intervalMillis <= 0)
+			throw new IllegalArgumentException("intervalMillis must be > 0");
+
+		this.minBuffers = minBuffers;
+		this.maxBuffers = maxBuffers;
+		this.decay = decay;
+		this.intervalMillis = intervalMillis;
+	}
+
+	/*
+	 * returns the capacity a pool should have for the next interval
+	 */
+	int resize(final int capacity, final int minCapacity, final int maxCapacity, final int misses, final int idle)
+	{
+		if (misses > 0)
+			return (int) Math.min((long) capacity + misses, maxCapacity);
+
+		final int release = (int) Math.ceil(idle * decay);
+		return Math.max(capacity - release, minCapacity);
+	}
+}
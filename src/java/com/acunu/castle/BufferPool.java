@@ -0,0 +1,459 @@
+package com.acunu.castle;
+
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of buffers of a single size. Free buffers are kept on a lock-free
+ * stack, fronted by a small per-thread magazine so that a thread which leases
+ * and returns buffers of this size over and over usually touches neither.
+ * The stack's nodes are reused, so once the pool has reached its working
+ * size neither leasing nor returning a buffer allocates anything.
+ *
+ * Buffers in magazines count as held, so between them the magazines may only
+ * hold a share of the pool's capacity. The magazines of threads that have died
+ * are emptied onto the shared stack by trim() and by a lease that finds the
+ * pool empty.
+ *
+ * In blocking mode a semaphore counts the buffers on the shared stack and
+ * reserve() waits on it. Magazines are disabled in that mode, since a buffer
+ * parked in an idle thread's magazine could starve a waiter forever.
+ */
+final class BufferPool
+{
+	/* the most buffers a single thread will keep to itself */
+	private static final int MAGAZINE_SIZE = 4;
+
+	/* pools smaller than this many buffers don't use magazines at all */
+	private static final int MIN_CAPACITY_PER_MAGAZINE_SLOT = 16;
+
+	/* the magazines may hold at most 1 / MAGAZINE_SHARE of the capacity between them */
+	private static final int MAGAZINE_SHARE = 4;
+
+	/* the fewest nodes the stacks grow to */
+	private static final int MIN_NODES = 16;
+
+	/*
+	 * A node is on the stack of free buffers, holding one, or on the stack of
+	 * spare nodes, or held by the one thread that has just popped it.
+	 */
+	private static final class Node
+	{
+		ByteBuffer buffer;
+		/* the index of the node below this one, or -1 */
+		int next;
+	}
+
+	/* only touched by its owner, or by reclaim() once the owner has died */
+	private static final class Magazine
+	{
+		final WeakReference<Thread> owner;
+		final ByteBuffer[] buffers;
+		int count;
+
+		Magazine(final int size)
+		{
+			owner = new WeakReference<Thread>(Thread.currentThread());
+			buffers = new ByteBuffer[size];
+		}
+
+		boolean ownerDied()
+		{
+			final Thread thread = owner.get();
+			return thread == null || !thread.isAlive();
+		}
+	}
+
+	private final int size;
+	private volatile int capacity;
+	private final boolean blocking;
+	private final int magazineSize;
+
+	/* only maintained when the pool is adaptive; see BufferPolicy */
+	private final boolean adaptive;
+	private final AtomicInteger misses = new AtomicInteger();
+	private volatile int lowWater;
+
+	/*
+	 * The heads of the two stacks of nodes. A head holds a stamp, bumped by
+	 * every change, above the index + 1 of its top node, or 0 if the stack is
+	 * empty; a node popped and pushed again between another pop's read and
+	 * its CAS changes the stamp, so that CAS fails rather than suffer ABA.
+	 */
+	private final AtomicLong top = new AtomicLong();
+	private final AtomicLong spare = new AtomicLong();
+
+	/* only ever grows, keeping the same node at each index; grown under nodesLock */
+	private volatile Node[] nodes = new Node[0];
+	private final Object nodesLock = new Object();
+
+	/* number of free buffers held, whether on the stack or in a magazine */
+	private final AtomicInteger held = new AtomicInteger();
+
+	/* permits == buffers on the stack; only used in blocking mode */
+	private final Semaphore available;
+
+	private final ThreadLocal<Magazine> magazines;
+	/* the magazines of threads that may still be alive */
+	private final Queue<Magazine> allMagazines = new ConcurrentLinkedQueue<Magazine>();
+	/* number of free buffers in magazines */
+	private final AtomicInteger inMagazines = new AtomicInteger();
+	private final AtomicBoolean reclaiming = new AtomicBoolean();
+
+	BufferPool(final int size, final int capacity, final boolean blocking)
+	{
+		this(size, capacity, capacity, blocking, false);
+	}
+
+	/*
+	 * maxCapacity bounds any later setCapacity(); it only affects the size of the magazines
+	 */
+	BufferPool(final int size, final int capacity, final int maxCapacity, final boolean blocking, final boolean adaptive)
+	{
+		this.size = size;
+		this.capacity = capacity;
+		this.blocking = blocking;
+		this.adaptive = adaptive;
+		this.available = blocking ? new Semaphore(0) : null;
+		this.magazineSize = blocking ? 0 : Math.min(MAGAZINE_SIZE, maxCapacity / MIN_CAPACITY_PER_MAGAZINE_SLOT);
+
+		if (magazineSize > 0)
+		{
+			magazines = new ThreadLocal<Magazine>()
+			{
+				@Override
+				protected Magazine initialValue()
+				{
+					final Magazine magazine = new Magazine(magazineSize);
+					allMagazines.add(magazine);
+					return magazine;
+				}
+			};
+		} else
+			magazines = null;
+	}
+
+	int getSize()
+	{
+		return size;
+	}
+
+	int getCapacity()
+	{
+		return capacity;
+	}
+
+	void setCapacity(final int capacity)
+	{
+		this.capacity = capacity;
+	}
+
+	/* the number of free buffers currently held */
+	int getHeld()
+	{
+		return held.get();
+	}
+
+	void recordMiss()
+	{
+		if (adaptive)
+			misses.incrementAndGet();
+	}
+
+	/*
+	 * returns the number of misses since the last call
+	 */
+	int takeMisses()
+	{
+		return misses.getAndSet(0);
+	}
+
+	/*
+	 * returns the fewest free buffers held at any point since the last call,
+	 * i.e. how many sat idle throughout
+	 */
+	int takeLowWater()
+	{
+		final int idle = Math.min(lowWater, held.get());
+		lowWater = held.get();
+		return Math.max(idle, 0);
+	}
+
+	/*
+	 * Removes free buffers from the shared stack until no more than capacity are held,
+	 * adding them to trimmed. Buffers in the magazines of live threads are left alone.
+	 */
+	void trim(final List<ByteBuffer> trimmed)
+	{
+		reclaim();
+		while (held.get() > capacity)
+		{
+			if (blocking && !available.tryAcquire())
+				return;
+			final ByteBuffer buf = pop();
+			if (buf == null)
+				return;
+			held.decrementAndGet();
+			trimmed.add(buf);
+		}
+	}
+
+	/*
+	 * Blocking mode only: waits until num buffers are free and reserves them all at once,
+	 * so that a lease of several buffers can't deadlock against another such lease.
+	 * Each reserved buffer must then be taken with takeReserved().
+	 * Returns how long it waited in nanoseconds, or 0 if the buffers were free at once.
+	 */
+	long reserve(final int num)
+	{
+		if (num > capacity)
+			throw new IllegalArgumentException("Not enough buffers allocated of size " + size
+					+ " to satisfy this request");
+
+		if (available.tryAcquire(num))
+			return 0;
+
+		final long start = System.nanoTime();
+		available.acquireUninterruptibly(num);
+		return Math.max(System.nanoTime() - start, 1);
+	}
+
+	ByteBuffer takeReserved()
+	{
+		return leased(pop());
+	}
+
+	/*
+	 * Leases a single buffer, or returns null if none is free. Never blocks, whatever the mode.
+	 */
+	ByteBuffer tryLease()
+	{
+		if (magazineSize > 0)
+		{
+			final Magazine magazine = magazines.get();
+			if (magazine.count > 0)
+			{
+				final ByteBuffer buf = magazine.buffers[--magazine.count];
+				magazine.buffers[magazine.count] = null;
+				inMagazines.decrementAndGet();
+				return leased(buf);
+			}
+		}
+
+		if (blocking && !available.tryAcquire())
+			return null;
+
+		ByteBuffer buf = pop();
+		if (buf == null && reclaim())
+			buf = pop();
+		return buf == null ? null : leased(buf);
+	}
+
+	/*
+	 * Returns a buffer to the pool. Returns false if the pool is already full, in
+	 * which case the caller owns the buffer and should destroy it.
+	 */
+	boolean put(final ByteBuffer buffer)
+	{
+		int current;
+		do
+		{
+			current = held.get();
+			if (current >= capacity)
+				return false;
+		} while (!held.compareAndSet(current, current + 1));
+
+		if (magazineSize > 0)
+		{
+			final Magazine magazine = magazines.get();
+			if (magazine.count < magazineSize)
+			{
+				if (inMagazines.incrementAndGet() <= capacity / MAGAZINE_SHARE)
+				{
+					magazine.buffers[magazine.count++] = buffer;
+					return true;
+				}
+				inMagazines.decrementAndGet();
+			}
+		}
+
+		push(buffer);
+		if (blocking)
+			available.release();
+		return true;
+	}
+
+	/*
+	 * Adds a newly created buffer to the pool, ignoring the capacity. Used to fill the pool initially.
+	 */
+	void add(final ByteBuffer buffer)
+	{
+		held.incrementAndGet();
+		push(buffer);
+		if (blocking)
+			available.release();
+	}
+
+	/*
+	 * Removes every free buffer from the pool, including those in other threads' magazines,
+	 * adding them to drained. Only safe once no other thread is using the pool.
+	 */
+	void drain(final List<ByteBuffer> drained)
+	{
+		ByteBuffer buf;
+		while (null != (buf = pop()))
+		{
+			drained.add(buf);
+			held.decrementAndGet();
+		}
+
+		for (final Magazine magazine : allMagazines)
+		{
+			for (int i = 0; i < magazine.count; ++i)
+			{
+				drained.add(magazine.buffers[i]);
+				magazine.buffers[i] = null;
+				held.decrementAndGet();
+			}
+			magazine.count = 0;
+		}
+		inMagazines.set(0);
+	}
+
+	/*
+	 * Moves the buffers in the magazines of threads that have died onto the shared
+	 * stack, and forgets those magazines. Returns whether it moved any buffers.
+	 * Only one thread reclaims at a time; any other returns false at once.
+	 */
+	private boolean reclaim()
+	{
+		if (magazineSize == 0 || !reclaiming.compareAndSet(false, true))
+			return false;
+
+		boolean moved = false;
+		try
+		{
+			final Iterator<Magazine> i = allMagazines.iterator();
+			while (i.hasNext())
+			{
+				final Magazine magazine = i.next();
+				if (!magazine.ownerDied())
+					continue;
+
+				i.remove();
+				for (int j = 0; j < magazine.count; ++j)
+				{
+					push(magazine.buffers[j]);
+					magazine.buffers[j] = null;
+					inMagazines.decrementAndGet();
+					moved = true;
+				}
+				magazine.count = 0;
+			}
+		} finally
+		{
+			reclaiming.set(false);
+		}
+		return moved;
+	}
+
+	private ByteBuffer leased(final ByteBuffer buf)
+	{
+		final int nowHeld = held.decrementAndGet();
+		if (adaptive && nowHeld < lowWater)
+			lowWater = nowHeld;
+		buf.clear();
+		return buf;
+	}
+
+	private void push(final ByteBuffer buffer)
+	{
+		int index = pop(spare);
+		if (index < 0)
+			index = grow();
+		nodes[index].buffer = buffer;
+		push(top, index);
+	}
+
+	private ByteBuffer pop()
+	{
+		final int index = pop(top);
+		if (index < 0)
+			return null;
+
+		final Node node = nodes[index];
+		final ByteBuffer buffer = node.buffer;
+		node.buffer = null;
+		push(spare, index);
+		return buffer;
+	}
+
+	private void push(final AtomicLong head, final int index)
+	{
+		final Node node = nodes[index];
+		long h;
+		do
+		{
+			h = head.get();
+			node.next = (int) h - 1;
+		} while (!head.compareAndSet(h, link(h, index)));
+	}
+
+	/*
+	 * returns the index of the node popped, or -1 if the stack is empty
+	 */
+	private int pop(final AtomicLong head)
+	{
+		long h;
+		int index;
+		do
+		{
+			h = head.get();
+			index = (int) h - 1;
+			if (index < 0)
+				return -1;
+			/* next may be stale if the node has moved since, but then so has the head and the CAS fails */
+		} while (!head.compareAndSet(h, link(h, nodes[index].next)));
+		return index;
+	}
+
+	/* the next value of head h, with the node at index (or -1 for none) on top */
+	private static long link(final long h, final int index)
+	{
+		return ((h >>> 32) + 1) << 32 | (index + 1) & 0xffffffffL;
+	}
+
+	/*
+	 * Doubles the number of nodes and returns the index of one of the new
+	 * ones, putting the rest on the spare stack
+	 */
+	private int grow()
+	{
+		synchronized (nodesLock)
+		{
+			/* another thread may have grown them while we waited */
+			final int index = pop(spare);
+			if (index >= 0)
+				return index;
+
+			final Node[] old = nodes;
+			final Node[] grown = Arrays.copyOf(old, Math.max(2 * old.length, MIN_NODES));
+			for (int i = old.length; i < grown.length; ++i)
+				grown[i] = new Node();
+			nodes = grown;
+
+			for (int i = old.length + 1; i < grown.length; ++i)
+				push(spare, i);
+			return old.length;
+		}
+	}
+}
@@ -0,0 +1,40 @@
+package com.acunu.castle;
+
+import java.beans.ConstructorProperties;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A snapshot of a connection's buffer and request-block pools, from
+ * Castle.getBufferStats(). Also published over JMX as
+ * com.acunu.castle:type=BufferStats,connection=N.
+ */
+public final class BufferStats
+{
+	private final List<PoolStats.Snapshot> sizeClasses;
+	private final PoolStats.Snapshot requestBlocks;
+
+	@ConstructorProperties({ "sizeClasses", "requestBlocks" })
+	public BufferStats(final List<PoolStats.Snapshot> sizeClasses, final PoolStats.Snapshot requestBlocks)
+	{
+		this.sizeClasses = sizeClasses;
+		this.requestBlocks = requestBlocks;
+	}
+
+	/** one entry for each size class that has a pool or has been used, smallest first */
+	public List<PoolStats.Snapshot> getSizeClasses()
+	{
+		return sizeClasses;
+	}
+
+	public PoolStats.Snapshot getRequestBlocks()
+	{
+		return requestBlocks;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "BufferStats" + Arrays.asList(requestBlocks, sizeClasses);
+	}
+}
@@ -0,0 +1,6 @@
+package com.acunu.castle;
+
+public interface BufferStatsMXBean
+{
+	BufferStats getBufferStats();
+}
@@ -27,8 +27,8 @@ public abstract class Callback extends AbstractCallback
 		else
 			handleError(err);
 
-		/* allow GC of response while we wait for the finalizer */
-		response = null; 
+		/* allow GC of response while the callback waits to be reused or collected */
+		response = null;
 	}
 
 	public void setResponse(final RequestResponse response)
@@ -6,6 +6,7 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.ArrayList;
@@ -15,6 +16,18 @@ import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 import com.acunu.castle.IterStartRequest.IterFlags;
 
@@ -53,6 +66,8 @@ public final class Castle
 
 	private final BufferManager bufferManager;
 
+	private final ValueSizePredictor valueSizes = new ValueSizePredictor(INITIAL_GET_SIZE, MAX_BUFFER_SIZE);
+
 	private final Thread[] callbackThreads;
 
 	/**
@@ -61,17 +76,6 @@ public final class Castle
 	 */
 	private static final int queueChunks = 1;
 
-	class PreparedBatch
-	{
-		public Request[] requests;
-		public List<ByteBuffer> buffers;
-
-		public PreparedBatch()
-		{
-			buffers = new ArrayList<ByteBuffer>();
-		}
-	}
-
 	public Castle() throws IOException
 	{
 		this(new HashMap<Integer, Integer>());
@@ -83,18 +87,86 @@ public final class Castle
 	}
 
 	public Castle(Map<Integer, Integer> bufferSizes, boolean blocking) throws IOException
+	{
+		this(bufferSizes, blocking, null);
+	}
+
+	/**
+	 * Connects with adaptive buffer pools, which start at the given sizes and
+	 * counts and are then grown and shrunk according to policy.
+	 */
+	public Castle(Map<Integer, Integer> bufferSizes, BufferPolicy policy) throws IOException
+	{
+		this(bufferSizes, false, policy);
+	}
+
+	private Castle(Map<Integer, Integer> bufferSizes, boolean blocking, BufferPolicy policy) throws IOException
 	{
 		castle_connect();
 
-		bufferManager = new BufferManager(this, bufferSizes, blocking);
+		bufferManager = new BufferManager(this, bufferSizes, blocking, policy);
 		callbackThreads = new Thread[10];
 		spawnCallbackThreads();
+		registerStatsBean();
+	}
+
+	private static final AtomicInteger connectionCount = new AtomicInteger();
+
+	private final List<ObjectName> statsBeanNames = new ArrayList<ObjectName>();
+
+	/*
+	 * Publishes getBufferStats() and getValueSizeStats() over JMX. Failure is
+	 * reported but isn't fatal.
+	 */
+	private void registerStatsBean()
+	{
+		final int connection = connectionCount.incrementAndGet();
+		registerStatsBean("BufferStats", connection, new BufferStatsMXBean()
+		{
+			@Override
+			public BufferStats getBufferStats()
+			{
+				return Castle.this.getBufferStats();
+			}
+		});
+		registerStatsBean("ValueSizeStats", connection, new ValueSizeStatsMXBean()
+		{
+			@Override
+			public List<ValueSizeStats> getValueSizeStats()
+			{
+				return Castle.this.getValueSizeStats();
+			}
+		});
+	}
+
+	private void registerStatsBean(final String type, final int connection, final Object bean)
+	{
+		try
+		{
+			final ObjectName name = new ObjectName("com.acunu.castle:type=" + type + ",connection=" + connection);
+			ManagementFactory.getPlatformMBeanServer().registerMBean(bean, name);
+			statsBeanNames.add(name);
+		} catch (final JMException e)
+		{
+			System.out.println("Unable to register " + type + " MXBean");
+			e.printStackTrace();
+		}
 	}
 
-	@Override
-	public void finalize() throws IOException
+	private void unregisterStatsBean()
 	{
-		castle_free();
+		for (final ObjectName name : statsBeanNames)
+		{
+			try
+			{
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+			} catch (final JMException e)
+			{
+				System.out.println("Unable to unregister " + name);
+				e.printStackTrace();
+			}
+		}
+		statsBeanNames.clear();
 	}
 
 	private boolean disconnected = false;
@@ -103,10 +175,13 @@ public final class Castle
 	{
 		if (!disconnected)
 		{
+			unregisterStatsBean();
+			setCoalescingPolicy(null);
 			stopCallbackThreads();
 			bufferManager.close();
 
 			castle_disconnect();
+			castle_free();
 			requestBlocks.destroy();
 			disconnected = true;
 		}
@@ -117,7 +192,8 @@ public final class Castle
 	 */
 	private native void callback_queue_shutdown();
 
-	private native void callback_thread_run();
+	/* returns once the callback queue has been shut down and drained */
+	private native void callback_thread_run(CompletionBatch batch);
 
 	private void spawnCallbackThreads()
 	{
@@ -129,13 +205,22 @@ public final class Castle
 				@Override
 				public void run()
 				{
-					callback_thread_run();
+					callback_thread_run(new CompletionBatch());
 				}
 			};
 			callbackThreads[i].start();
 		}
 	}
 
+	private boolean isCallbackThread()
+	{
+		final Thread current = Thread.currentThread();
+		for (final Thread thread : callbackThreads)
+			if (thread == current)
+				return true;
+		return false;
+	}
+
 	private void stopCallbackThreads()
 	{
 		callback_queue_shutdown();
@@ -521,56 +606,76 @@ public final class Castle
 	private native void castle_buffer_destroy(ByteBuffer buffer) throws CastleException;
 
 	/* Blocking */
-	private native RequestResponse castle_request_blocking(long request) throws CastleException;
-	
-	private RequestResponse castle_request_blocking_ex(Request request) throws CastleException
+	private native void castle_request_blocking(long request, ByteBuffer responses) throws CastleException;
+
+	private native void castle_request_blocking_multi(long requests, int num_requests, ByteBuffer responses)
+			throws CastleException;
+
+	/*
+	 * Runs a request and returns the block holding its response, which the caller
+	 * must pass to releaseRequestBlock.
+	 */
+	private RequestBlock castle_request_blocking_block(Request request) throws CastleException
 	{
-		long req;
+		final RequestBlock block = leaseRequestBlock(1);
+		boolean ok = false;
 		try
 		{
-			req = requestBlocks.lease();
-		} catch (InterruptedException e)
+			block.prepare(request);
+			castle_request_blocking(block.reqs, block.responses(1));
+			ok = true;
+			return block;
+		} finally
 		{
-			throw new RuntimeException(e);
+			if (!ok)
+				releaseRequestBlock(block);
 		}
+	}
+
+	/*
+	 * As castle_request_blocking_block, for any number of requests.
+	 */
+	private RequestBlock castle_request_blocking_multi_block(Request[] requests) throws CastleException
+	{
+		final RequestBlock block = leaseRequestBlock(requests.length);
+		boolean ok = false;
 		try
 		{
-			request.copy_to(req, 0);
-			return castle_request_blocking(req);
+			block.prepare(requests);
+			castle_request_blocking_multi(block.reqs, requests.length, block.responses(requests.length));
+			ok = true;
+			return block;
 		} finally
 		{
-			requestBlocks.release(req);
+			if (!ok)
+				releaseRequestBlock(block);
 		}
 	}
 
-	private native RequestResponse[] castle_request_blocking_multi(long requests, int num_requests) throws CastleException;
-	
-	RequestResponse[] castle_request_blocking_multi_ex(Request[] requests) throws CastleException
+	private RequestResponse castle_request_blocking_ex(Request request) throws CastleException
 	{
-		long reqs;
-		if (requests.length > pooledBlockSize)
-			reqs = Request.alloc(requests.length);
-		else
+		final RequestBlock block = castle_request_blocking_block(request);
+		try
 		{
-			try
-			{
-				reqs = requestBlocks.lease();
-			} catch (InterruptedException e)
-			{
-				throw new RuntimeException(e);
-			}
+			return block.response(0);
+		} finally
+		{
+			releaseRequestBlock(block);
 		}
+	}
+
+	RequestResponse[] castle_request_blocking_multi_ex(Request[] requests) throws CastleException
+	{
+		final RequestBlock block = castle_request_blocking_multi_block(requests);
 		try
 		{
+			final RequestResponse[] responses = new RequestResponse[requests.length];
 			for (int i = 0; i < requests.length; ++i)
-				requests[i].copy_to(reqs, i);
-			return castle_request_blocking_multi(reqs, requests.length);
+				responses[i] = block.response(i);
+			return responses;
 		} finally
 		{
-			if (requests.length > pooledBlockSize)
-				Request.free(reqs);
-			else
-				requestBlocks.release(reqs);
+			releaseRequestBlock(block);
 		}
 	}
 
@@ -578,53 +683,137 @@ public final class Castle
 	private native void castle_request_send_multi(long requests, int num_requests, Callback callback) throws CastleException;
 	
 	private static final int pooledBlockSize = 256;
-	private Pool<Long> requestBlocks = new Pool<Long>(1024, new Pool.Factory<Long>()
+	private Pool<RequestBlock> requestBlocks = new Pool<RequestBlock>(1024, new Pool.Factory<RequestBlock>()
 	{
 		@Override
-		public Long create(Pool<Long> pool)
+		public RequestBlock create(Pool<RequestBlock> pool)
 		{
-			return Request.alloc(pooledBlockSize);
+			return new RequestBlock(pooledBlockSize);
 		}
 
 		@Override
-		public void destroy(Long obj)
+		public void destroy(RequestBlock obj)
 		{
-			Request.free(obj);
+			obj.free();
 		}
 	});
-	
-	void castle_request_send_multi_ex(Request[] requests, Callback callback) throws CastleException
+
+	/*
+	 * Leases a pooled block if num requests fit in one, or else allocates a block just for them
+	 */
+	private RequestBlock leaseRequestBlock(int num)
 	{
-		long reqs;
-		if (requests.length > pooledBlockSize)
-			reqs = Request.alloc(requests.length);
-		else
+		if (num > pooledBlockSize)
 		{
-			try
-			{
-				reqs = requestBlocks.lease();
-			} catch (InterruptedException e)
-			{
-				throw new RuntimeException(e);
-			}
+			requestBlocks.getStats().recordMiss();
+			return new RequestBlock(num);
 		}
+
 		try
 		{
-			for (int i = 0; i < requests.length; ++i)
-				requests[i].copy_to(reqs, i);
-			castle_request_send_multi(reqs, requests.length, callback);
+			return requestBlocks.lease();
+		} catch (InterruptedException e)
+		{
+			throw new RuntimeException(e);
+		}
+	}
+
+	private void releaseRequestBlock(RequestBlock block)
+	{
+		if (block.capacity > pooledBlockSize)
+			block.free();
+		else
+			requestBlocks.release(block);
+	}
+
+	void castle_request_send_multi_ex(Request[] requests, Callback callback) throws CastleException
+	{
+		final RequestBlock block = leaseRequestBlock(requests.length);
+		try
+		{
+			block.prepare(requests);
+			castle_request_send_multi(block.reqs, requests.length, callback);
 		} finally
 		{
-			if (requests.length > pooledBlockSize)
-				Request.free(reqs);
-			else
-				requestBlocks.release(reqs);
+			releaseRequestBlock(block);
 		}
 	}
 
 	private void castle_request_send(Request request, Callback callback) throws CastleException
 	{
-		castle_request_send_multi_ex(new Request[] { request }, callback);
+		final Coalescer c = coalescer;
+		if (c != null)
+			c.submit(request, callback);
+		else
+			castle_request_send_multi_ex(new Request[] { request }, callback);
+	}
+
+	private volatile Coalescer coalescer = null;
+
+	/**
+	 * Turns on request coalescing: single-key requests sent from any thread are
+	 * gathered and sent in batches, as described by policy. This covers
+	 * requests sent with a callback, the async operations, and the blocking
+	 * put, delete and get of a single key, which wait for their own result.
+	 * A null policy turns coalescing off again, once everything already
+	 * gathered has been sent.
+	 */
+	public synchronized void setCoalescingPolicy(final CoalescingPolicy policy)
+	{
+		final Coalescer old = coalescer;
+		coalescer = policy == null ? null : new Coalescer(this, policy);
+		if (old != null)
+			old.close();
+	}
+
+	/*
+	 * Whether a blocking single-key operation should go through the coalescer.
+	 * Callback threads block directly instead, since waiting there for another
+	 * callback could starve the threads that would run it.
+	 */
+	private boolean coalescing()
+	{
+		return coalescer != null && !isCallbackThread();
+	}
+
+	/*
+	 * Waits for an async operation that a blocking one was turned into
+	 */
+	private static <T> T await(final CompletableFuture<T> future) throws IOException
+	{
+		try
+		{
+			return future.join();
+		} catch (final CompletionException e)
+		{
+			final Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw new IOException(cause);
+		}
+	}
+
+	private native void castle_request_send_each(long requests, int num_requests, Callback[] callbacks)
+			throws CastleException;
+
+	/*
+	 * Sends the requests in one call, each with its own callback
+	 */
+	void castle_request_send_each_ex(Request[] requests, Callback[] callbacks) throws CastleException
+	{
+		final RequestBlock block = leaseRequestBlock(requests.length);
+		try
+		{
+			block.prepare(requests);
+			castle_request_send_each(block.reqs, requests.length, callbacks);
+		} finally
+		{
+			releaseRequestBlock(block);
+		}
 	}
 
 	public static final int MAX_KEY_SIZE = Key.MAX_KEY_SIZE;
@@ -638,6 +827,12 @@ public final class Castle
 	public static final int MIN_BIG_PUT_SIZE = MAX_INLINE_VALUE_SIZE + 1;
 	public static final int MAX_SMALL_PUT_SIZE = MAX_BUFFER_SIZE;
 
+	/*
+	 * Batches in flight for put_multi_pipelined and deleteRange, each of up to
+	 * MAX_BUFFER_SIZE of keys and of values
+	 */
+	public static final int DEFAULT_PIPELINE_WINDOW = 4;
+
 	private static final int COUNTER_SIZE = Long.SIZE / 8;
 
 	/* package private */
@@ -646,6 +841,24 @@ public final class Castle
 		return bufferManager;
 	}
 
+	/**
+	 * How well get_kv's first fetch has fitted each collection's values
+	 */
+	public List<ValueSizeStats> getValueSizeStats()
+	{
+		return valueSizes.getStats();
+	}
+
+	/**
+	 * Returns the counters and wait-time histograms of the buffer pools and of
+	 * the pool of native request blocks. Cheap enough to poll.
+	 */
+	public BufferStats getBufferStats()
+	{
+		return new BufferStats(bufferManager.getStats(), requestBlocks.getStats().snapshot("requestBlocks",
+				pooledBlockSize, requestBlocks.getSize(), requestBlocks.getFree()));
+	}
+
 	public ByteBuffer createBuffer(int size) throws IOException
 	{
 		return castle_buffer_create(size);
@@ -671,8 +884,15 @@ public final class Castle
 		bufferManager.put(bufs);
 	}
 
+	/**
+	 * Destroys a buffer created by createBuffer. Buffers handed out by
+	 * getBuffer may have been carved from a larger shared buffer; those are
+	 * returned to the buffer manager instead of being destroyed.
+	 */
 	public void destroyBuffer(ByteBuffer buffer) throws IOException
 	{
+		if (bufferManager != null && bufferManager.releaseSlice(buffer))
+			return;
 		castle_buffer_destroy(buffer);
 	}
 
@@ -699,6 +919,12 @@ public final class Castle
 			return;
 		}
 
+		if (callback == null && coalescing())
+		{
+			await(putAsync(collection, key, value, timestamp));
+			return;
+		}
+
 		ByteBuffer[] buffers = null;
 		try
 		{
@@ -840,19 +1066,26 @@ public final class Castle
 			ByteBuffer keyBuffer = buffers[0];
 			ByteBuffer valueBuffer = buffers[1];
 			Request[] replaceRequest = new Request[values.size()];
+			int valueLimit = valueBuffer.limit();
 			int i = 0;
 
 			for (KeyValue kv : values)
 			{
+				/*
+				 * Point every request into the same value buffer, rather than a
+				 * slice of it, so the batch only has two buffers to encode.
+				 */
 				byte[] value = kv.getValue();
-				ByteBuffer currentSlice = valueBuffer.slice();
-				currentSlice.put(value);
-				currentSlice.flip();
+				int valueStart = valueBuffer.position();
+				valueBuffer.put(value);
+				valueBuffer.flip();
+				valueBuffer.position(valueStart);
 
-				replaceRequest[i] = new ReplaceRequest(kv.getKey(), collection, keyBuffer, currentSlice, kv.getTimestamp());
+				replaceRequest[i] = new ReplaceRequest(kv.getKey(), collection, keyBuffer, valueBuffer, kv.getTimestamp());
 
 				keyBuffer.position(keyBuffer.position() + kv.getKey().getApproximateLength());
-				valueBuffer.position(valueBuffer.position() + value.length);
+				valueBuffer.limit(valueLimit);
+				valueBuffer.position(valueStart + value.length);
 				i++;
 			}
 
@@ -915,6 +1148,88 @@ public final class Castle
 			put_multi(collection, valuesToPut, totalKeyLength, totalValueLength, progress.getCallback(valuesToPut.size()));
 	}
 
+	public void put_multi_pipelined(int collection, List<KeyValue> values) throws IOException
+	{
+		put_multi_pipelined(collection, values, DEFAULT_PIPELINE_WINDOW);
+	}
+
+	/*
+	 * Like put_multi, but keeps up to window batches in flight instead of
+	 * waiting for each batch before packing the next. Returns once every batch
+	 * has completed, throwing the first error; batches after a failed one are
+	 * not sent. Must not be called from a callback.
+	 */
+	public void put_multi_pipelined(int collection, List<KeyValue> values, int window) throws IOException
+	{
+		final BatchPipeline pipeline = new BatchPipeline("put_multi", window);
+		final List<KeyValue> valuesToPut = new ArrayList<KeyValue>();
+
+		int totalKeyLength = 0;
+		int totalValueLength = 0;
+
+		try
+		{
+			for (KeyValue kv : values)
+			{
+				if (pipeline.failed())
+					break;
+
+				if (kv.getValue().length > MAX_BUFFER_SIZE)
+				{
+					put(collection, kv.getKey(), kv.getValue(), kv.getTimestamp());
+					continue;
+				}
+
+				int keyLength = kv.getKey().getApproximateLength();
+				int valueLength = kv.getValue().length;
+
+				if (totalKeyLength + keyLength > MAX_BUFFER_SIZE || totalValueLength + valueLength > MAX_BUFFER_SIZE)
+				{
+					put_multi_pipelined(collection, valuesToPut, totalKeyLength, totalValueLength, pipeline);
+
+					valuesToPut.clear();
+					totalKeyLength = 0;
+					totalValueLength = 0;
+				}
+
+				totalKeyLength += keyLength;
+				totalValueLength += valueLength;
+				valuesToPut.add(kv);
+			}
+
+			if (!valuesToPut.isEmpty() && !pipeline.failed())
+				put_multi_pipelined(collection, valuesToPut, totalKeyLength, totalValueLength, pipeline);
+		} catch (IOException e)
+		{
+			pipeline.await();
+			throw e;
+		} catch (RuntimeException e)
+		{
+			pipeline.await();
+			throw e;
+		}
+
+		pipeline.finish();
+	}
+
+	private void put_multi_pipelined(int collection, List<KeyValue> values, int totalKeyLength, int totalValueLength,
+			BatchPipeline pipeline) throws IOException
+	{
+		Callback callback = pipeline.next();
+		try
+		{
+			put_multi(collection, values, totalKeyLength, totalValueLength, callback);
+		} catch (IOException e)
+		{
+			pipeline.abandon(callback);
+			throw e;
+		} catch (RuntimeException e)
+		{
+			pipeline.abandon(callback);
+			throw e;
+		}
+	}
+
 	public void delete(int collection, Key key) throws IOException
 	{
 		delete(collection, key, null, null);
@@ -932,6 +1247,12 @@ public final class Castle
 
 	public void delete(int collection, Key key, Long timestamp, Callback callback) throws IOException
 	{
+		if (callback == null && coalescing())
+		{
+			await(deleteAsync(collection, key, timestamp));
+			return;
+		}
+
 		ByteBuffer keyBuffer = null;
 		try
 		{
@@ -962,52 +1283,199 @@ public final class Castle
 		}
 	}
 
-	/*
-	 * length is the maximum length to return. The true value length is
-	 * returned in the KeyValue object member valueLength.
-	 */
-	public KeyValue get(int collection, Key key, int length) throws IOException
+	private void delete_multi(int collection, List<Key> keys, int totalKeyLength, Callback callback) throws IOException
 	{
-		ByteBuffer[] buffers = bufferManager.get(KEY_BUFFER_SIZE, length);
-
+		ByteBuffer keyBuffer = bufferManager.get(totalKeyLength);
 		try
 		{
-			ByteBuffer keyBuffer = buffers[0];
-			ByteBuffer valueBuffer = buffers[1];
-			// Limit in case we were returned a bigger buffer than necessary
-			valueBuffer.limit(length);
-			Request getRequest = new GetRequest(key, collection, keyBuffer, valueBuffer);
-
-			RequestResponse response = castle_request_blocking_ex(getRequest);
-			if (response.found == false)
-				return null;
+			if (callback != null)
+				callback.collect(bufferManager, keyBuffer);
+			Request[] removeRequests = new Request[keys.size()];
+			int i = 0;
 
-			int returnedLength = (int) Math.min(response.length, length);
-			byte[] value = new byte[returnedLength];
-			valueBuffer.get(value, 0, returnedLength);
+			/* every request points into the same key buffer, one key after another */
+			for (Key key : keys)
+			{
+				removeRequests[i++] = new RemoveRequest(key, collection, keyBuffer, null);
+				keyBuffer.position(keyBuffer.position() + key.getPackedLength());
+			}
 
-			return new KeyValue(key, response.timestamp, value, response.length);
+			if (callback == null)
+				castle_request_blocking_multi_ex(removeRequests);
+			else
+				castle_request_send_multi_ex(removeRequests, callback);
 		} finally
 		{
-			bufferManager.put(buffers);
+			if (callback == null)
+				bufferManager.put(keyBuffer);
 		}
 	}
 
-	/**
-	 * Let r = dest.remaining() and s = the size of the value for the given key,
-	 * and m = min(r, s). If a value is found for the key, puts m bytes of the
-	 * value into dest, starting at dest.position(). Sets dest.limit() to
-	 * dest.position() + m; does NOT modify dest.position(); If no value is
-	 * found for the key, makes no changes to dest. Returns s, or -1 if no value
-	 * was found for the given key.
-	 */
-	public long get(int collection, Key key, ByteBuffer keyBuffer, ByteBuffer dest) throws IOException
+	public void delete_multi(int collection, List<Key> keys) throws IOException
 	{
-		GetRequest getRequest = new GetRequest(key, collection, keyBuffer, dest);
-		return get(collection, getRequest);
+		delete_multi(collection, keys, null);
 	}
-	
-	public long get(int collection, ByteBuffer keyBuffer, int keyLen, ByteBuffer dest) throws IOException
+
+	/*
+	 * Deletes the keys in batches of up to MAX_BUFFER_SIZE of packed keys. The
+	 * callback, if any, runs once every batch has completed, with the first
+	 * error.
+	 */
+	public void delete_multi(int collection, List<Key> keys, Callback callback) throws IOException
+	{
+		List<Key> keysToDelete = new ArrayList<Key>(keys.size());
+		int totalKeyLength = 0;
+
+		final ProgressCallback progress = new ProgressCallback(callback, keys.size());
+
+		for (Key key : keys)
+		{
+			int keyLength = key.getPackedLength();
+			if (totalKeyLength + keyLength > MAX_BUFFER_SIZE)
+			{
+				delete_multi(collection, keysToDelete, totalKeyLength, progress.getCallback(keysToDelete.size()));
+
+				keysToDelete.clear();
+				totalKeyLength = 0;
+			}
+
+			totalKeyLength += keyLength;
+			keysToDelete.add(key);
+		}
+
+		if (!keysToDelete.isEmpty())
+			delete_multi(collection, keysToDelete, totalKeyLength, progress.getCallback(keysToDelete.size()));
+	}
+
+	public long deleteRange(int collection, Key minKey, Key maxKey) throws IOException
+	{
+		return deleteRange(collection, minKey, maxKey, DEFAULT_PIPELINE_WINDOW);
+	}
+
+	/*
+	 * Deletes every key from minKey to maxKey inclusive, returning how many
+	 * were deleted. The keys are read with a NO_VALUES iterator and deleted in
+	 * batches, up to window of them in flight while the iterator reads ahead.
+	 * Throws the first error, after waiting for the batches already sent.
+	 * Must not be called from a callback.
+	 */
+	public long deleteRange(int collection, Key minKey, Key maxKey, int window) throws IOException
+	{
+		final BatchPipeline pipeline = new BatchPipeline("deleteRange", window);
+		final List<Key> keysToDelete = new ArrayList<Key>();
+		int totalKeyLength = 0;
+		long deleted = 0;
+
+		KeyValueIterator iter = getKeyValueIterator(collection, minKey, maxKey, MAX_BUFFER_SIZE,
+				EnumSet.of(IterFlags.NO_VALUES));
+		try
+		{
+			while (iter.hasNext() && !pipeline.failed())
+			{
+				Key key = iter.next().getKey();
+				int keyLength = key.getPackedLength();
+				if (totalKeyLength + keyLength > MAX_BUFFER_SIZE)
+				{
+					delete_multi_pipelined(collection, keysToDelete, totalKeyLength, pipeline);
+					deleted += keysToDelete.size();
+
+					keysToDelete.clear();
+					totalKeyLength = 0;
+				}
+
+				totalKeyLength += keyLength;
+				keysToDelete.add(key);
+			}
+
+			if (!keysToDelete.isEmpty() && !pipeline.failed())
+			{
+				delete_multi_pipelined(collection, keysToDelete, totalKeyLength, pipeline);
+				deleted += keysToDelete.size();
+			}
+		} catch (IOException e)
+		{
+			pipeline.await();
+			throw e;
+		} catch (RuntimeException e)
+		{
+			pipeline.await();
+			throw e;
+		} finally
+		{
+			iter.close();
+		}
+
+		pipeline.finish();
+		return deleted;
+	}
+
+	private void delete_multi_pipelined(int collection, List<Key> keys, int totalKeyLength, BatchPipeline pipeline)
+			throws IOException
+	{
+		Callback callback = pipeline.next();
+		try
+		{
+			delete_multi(collection, keys, totalKeyLength, callback);
+		} catch (IOException e)
+		{
+			pipeline.abandon(callback);
+			throw e;
+		} catch (RuntimeException e)
+		{
+			pipeline.abandon(callback);
+			throw e;
+		}
+	}
+
+	/*
+	 * length is the maximum length to return. The true value length is
+	 * returned in the KeyValue object member valueLength.
+	 */
+	public KeyValue get(int collection, Key key, int length) throws IOException
+	{
+		if (coalescing())
+			return await(getAsync(collection, key, length));
+
+		ByteBuffer[] buffers = bufferManager.get(KEY_BUFFER_SIZE, length);
+
+		try
+		{
+			ByteBuffer keyBuffer = buffers[0];
+			ByteBuffer valueBuffer = buffers[1];
+			// Limit in case we were returned a bigger buffer than necessary
+			valueBuffer.limit(length);
+			Request getRequest = new GetRequest(key, collection, keyBuffer, valueBuffer);
+
+			RequestResponse response = castle_request_blocking_ex(getRequest);
+			if (response.found == false)
+				return null;
+
+			int returnedLength = (int) Math.min(response.length, length);
+			byte[] value = new byte[returnedLength];
+			valueBuffer.get(value, 0, returnedLength);
+
+			return new KeyValue(key, response.timestamp, value, response.length);
+		} finally
+		{
+			bufferManager.put(buffers);
+		}
+	}
+
+	/**
+	 * Let r = dest.remaining() and s = the size of the value for the given key,
+	 * and m = min(r, s). If a value is found for the key, puts m bytes of the
+	 * value into dest, starting at dest.position(). Sets dest.limit() to
+	 * dest.position() + m; does NOT modify dest.position(); If no value is
+	 * found for the key, makes no changes to dest. Returns s, or -1 if no value
+	 * was found for the given key.
+	 */
+	public long get(int collection, Key key, ByteBuffer keyBuffer, ByteBuffer dest) throws IOException
+	{
+		GetRequest getRequest = new GetRequest(key, collection, keyBuffer, dest);
+		return get(collection, getRequest);
+	}
+	
+	public long get(int collection, ByteBuffer keyBuffer, int keyLen, ByteBuffer dest) throws IOException
 	{
 		GetRequest getRequest = new GetRequest(collection, keyBuffer, keyLen, dest);
 		return get(collection, getRequest);
@@ -1015,13 +1483,21 @@ public final class Castle
 	
 	public long get(int collection, GetRequest request) throws IOException
 	{
-		RequestResponse response = castle_request_blocking_ex(request);
-		if (response.found == false)
-			return -1;
+		final long length;
+		final RequestBlock block = castle_request_blocking_block(request);
+		try
+		{
+			if (!block.found(0))
+				return -1;
+			length = block.length(0);
+		} finally
+		{
+			releaseRequestBlock(block);
+		}
 
-		int m = (int) Math.min(request.valueBuffer.remaining(), response.length);
+		int m = (int) Math.min(request.valueBuffer.remaining(), length);
 		request.valueBuffer.limit(request.valueBuffer.position() + m);
-		return response.length;
+		return length;
 	}
 
 	/**
@@ -1034,21 +1510,43 @@ public final class Castle
 		return kv == null ? null : kv.getValue();
 	}
 	
+	/**
+	 * The first fetch uses a buffer sized to fit most of the values this
+	 * collection has returned so far; see getValueSizeStats().
+	 */
 	public KeyValue get_kv(int collection, Key key) throws IOException
 	{
+		return get_kv(collection, key, valueSizes.predict(collection));
+	}
+
+	/**
+	 * As get_kv(collection, key), for callers who know roughly how long the
+	 * value is: the first fetch uses a buffer of sizeHint bytes (at most
+	 * MAX_BUFFER_SIZE), so a value no longer than that takes one round trip.
+	 */
+	public KeyValue get_kv(int collection, Key key, int sizeHint) throws IOException
+	{
+		if (sizeHint <= 0)
+			throw new IllegalArgumentException("sizeHint must be > 0");
+		final int firstSize = Math.min(sizeHint, MAX_BUFFER_SIZE);
+
+		if (coalescing())
+			return await(getAsync(collection, key, firstSize, true));
+
 		ByteBuffer[] buffers = null;
 		try
 		{
-			buffers = bufferManager.get(KEY_BUFFER_SIZE, INITIAL_GET_SIZE);
+			buffers = bufferManager.get(KEY_BUFFER_SIZE, firstSize);
 			// Limit in case we were returned a bigger buffer than necessary
-			buffers[1].limit(INITIAL_GET_SIZE);
+			buffers[1].limit(firstSize);
 			Request getRequest = new GetRequest(key, collection, buffers[0], buffers[1]);
 
 			RequestResponse response = castle_request_blocking_ex(getRequest);
 			if (response.found == false)
 				return null;
+			valueSizes.record(collection, response.length, firstSize);
 
-			if (response.length > INITIAL_GET_SIZE)
+			if (response.length > firstSize)
 			{
 				bufferManager.put(buffers);
 				buffers = null;
@@ -1189,24 +1687,28 @@ public final class Castle
 				i++;
 			}
 
-			RequestResponse[] responses = castle_request_blocking_multi_ex(getRequests);
-
-			int valueOffset = 0;
-
-			for (i = 0; i < keys.size(); i++)
+			final RequestBlock block = castle_request_blocking_multi_block(getRequests);
+			try
 			{
-				Key key = keys.get(i);
-				RequestResponse response = responses[i];
+				int valueOffset = 0;
 
-				if (response.found)
+				for (i = 0; i < keys.size(); i++)
 				{
-					byte[] value = new byte[(int) Math.min((long) MAX_INLINE_VALUE_SIZE, response.length)];
-					valueBuffer.position(valueOffset);
-					valueBuffer.get(value);
+					Key key = keys.get(i);
+
+					if (block.found(i))
+					{
+						byte[] value = new byte[(int) Math.min((long) MAX_INLINE_VALUE_SIZE, block.length(i))];
+						valueBuffer.position(valueOffset);
+						valueBuffer.get(value);
 
-					results.add(new KeyValue(key, response.timestamp, value));
+						results.add(new KeyValue(key, block.timestamp(i), value));
+					}
+					valueOffset += MAX_INLINE_VALUE_SIZE;
 				}
-				valueOffset += MAX_INLINE_VALUE_SIZE;
+			} finally
+			{
+				releaseRequestBlock(block);
 			}
 
 			return results;
@@ -1218,6 +1720,270 @@ public final class Castle
 		}
 	}
 
+	/*
+	 * A key still to be fetched by get_multi_kv or getMultiAsync, and how many
+	 * bytes to allow for its value
+	 */
+	static final class PendingGet
+	{
+		final int index;
+		final int size;
+
+		PendingGet(int index, int size)
+		{
+			this.index = index;
+			this.size = size;
+		}
+	}
+
+	/**
+	 * Gets the whole values of many keys. The result has one entry for each
+	 * key, in the same order, which is null if the key has no value.
+	 *
+	 * A first batched pass allows MAX_INLINE_VALUE_SIZE bytes for each value.
+	 * Values that turn out to be longer are fetched again in batched passes
+	 * sized to fit them exactly, and values longer than MAX_BUFFER_SIZE are
+	 * started with a batch of big_gets and read with get_chunks.
+	 */
+	public List<KeyValue> get_multi_kv(int collection, List<Key> keys) throws IOException
+	{
+		final KeyValue[] results = new KeyValue[keys.size()];
+		final List<Integer> big = new ArrayList<Integer>();
+
+		List<PendingGet> pending = new ArrayList<PendingGet>(keys.size());
+		for (int i = 0; i < keys.size(); ++i)
+			pending.add(new PendingGet(i, MAX_INLINE_VALUE_SIZE));
+
+		while (!pending.isEmpty())
+		{
+			final List<PendingGet> next = new ArrayList<PendingGet>();
+			final List<PendingGet> batch = new ArrayList<PendingGet>();
+			int totalKeyLength = 0;
+			int totalValueLength = 0;
+
+			for (final PendingGet get : pending)
+			{
+				final int keyLength = keys.get(get.index).getPackedLength();
+				if (!batch.isEmpty()
+						&& (totalKeyLength + keyLength > MAX_BUFFER_SIZE || totalValueLength + get.size > MAX_BUFFER_SIZE))
+				{
+					get_multi_kv(collection, keys, batch, totalKeyLength, totalValueLength, results, next, big);
+					batch.clear();
+					totalKeyLength = 0;
+					totalValueLength = 0;
+				}
+				batch.add(get);
+				totalKeyLength += keyLength;
+				totalValueLength += get.size;
+			}
+			if (!batch.isEmpty())
+				get_multi_kv(collection, keys, batch, totalKeyLength, totalValueLength, results, next, big);
+
+			/* values that grew between passes just go round again */
+			pending = next;
+		}
+
+		for (int i = 0; i < big.size(); i += MAX_BIG_GETS_PER_BATCH)
+			get_big_multi(collection, keys, big.subList(i, Math.min(i + MAX_BIG_GETS_PER_BATCH, big.size())), results);
+
+		return Arrays.asList(results);
+	}
+
+	/* how many big_gets get_multi_kv starts in one batch */
+	private static final int MAX_BIG_GETS_PER_BATCH = 64;
+
+	/*
+	 * One batched pass of get_multi_kv. Values that fit go into results; those
+	 * that didn't are added to next with their true length, or to big if they
+	 * are longer than MAX_BUFFER_SIZE.
+	 */
+	private void get_multi_kv(int collection, List<Key> keys, List<PendingGet> batch, int totalKeyLength,
+			int totalValueLength, KeyValue[] results, List<PendingGet> next, List<Integer> big) throws IOException
+	{
+		final ByteBuffer[] buffers = bufferManager.get(totalKeyLength, totalValueLength);
+		try
+		{
+			final ByteBuffer keyBuffer = buffers[0];
+			final ByteBuffer valueBuffer = buffers[1];
+			final Request[] requests = new Request[batch.size()];
+
+			for (int i = 0; i < requests.length; ++i)
+			{
+				final PendingGet get = batch.get(i);
+				final Key key = keys.get(get.index);
+				valueBuffer.limit(valueBuffer.position() + get.size);
+				requests[i] = new GetRequest(key, collection, keyBuffer, valueBuffer);
+
+				keyBuffer.position(keyBuffer.position() + key.getPackedLength());
+				valueBuffer.position(valueBuffer.position() + get.size);
+			}
+
+			final RequestBlock block = castle_request_blocking_multi_block(requests);
+			try
+			{
+				valueBuffer.limit(valueBuffer.capacity());
+				int valueOffset = 0;
+
+				for (int i = 0; i < requests.length; ++i)
+				{
+					final PendingGet get = batch.get(i);
+					final long length = block.length(i);
+
+					if (!block.found(i))
+						results[get.index] = null;
+					else if (length > MAX_BUFFER_SIZE)
+						big.add(get.index);
+					else if (length > get.size)
+						next.add(new PendingGet(get.index, (int) length));
+					else
+					{
+						final byte[] value = new byte[(int) length];
+						valueBuffer.position(valueOffset);
+						valueBuffer.get(value);
+						results[get.index] = new KeyValue(keys.get(get.index), block.timestamp(i), value);
+					}
+					valueOffset += get.size;
+				}
+			} finally
+			{
+				releaseRequestBlock(block);
+			}
+		} finally
+		{
+			bufferManager.put(buffers);
+		}
+	}
+
+	/*
+	 * Starts big_gets for the keys at the given indices in one batch, then reads
+	 * each value with get_chunks. Castle only finishes a big_get once all its
+	 * chunks have been read, so if reading one fails, what is left of the
+	 * others is read and discarded.
+	 */
+	private void get_big_multi(int collection, List<Key> keys, List<Integer> indices, KeyValue[] results)
+			throws IOException
+	{
+		final BigGetReply[] replies = new BigGetReply[indices.size()];
+		/* bytes of each value not yet read, so 0 once it has been read or if it wasn't found */
+		final long[] unread = new long[replies.length];
+
+		int totalKeyLength = 0;
+		for (final int index : indices)
+			totalKeyLength += keys.get(index).getPackedLength();
+
+		final ByteBuffer keyBuffer = bufferManager.get(totalKeyLength);
+		try
+		{
+			/* every request points into the same key buffer, one key after another */
+			final Request[] requests = new Request[indices.size()];
+			for (int i = 0; i < requests.length; ++i)
+			{
+				final Key key = keys.get(indices.get(i));
+				requests[i] = new BigGetRequest(key, collection, keyBuffer);
+				keyBuffer.position(keyBuffer.position() + key.getPackedLength());
+			}
+
+			final RequestBlock block = castle_request_blocking_multi_block(requests);
+			try
+			{
+				for (int i = 0; i < requests.length; ++i)
+				{
+					replies[i] = new BigGetReply(block.token(i), block.found(i), block.length(i), block.timestamp(i));
+					unread[i] = replies[i].found ? replies[i].length : 0;
+				}
+			} finally
+			{
+				releaseRequestBlock(block);
+			}
+		} finally
+		{
+			bufferManager.put(keyBuffer);
+		}
+
+		Integer[] chunkSizes = new Integer[queueChunks];
+		Arrays.fill(chunkSizes, MAX_BUFFER_SIZE);
+		final ByteBuffer[] chunkBuffers = bufferManager.get(chunkSizes);
+		try
+		{
+			for (int i = 0; i < replies.length; ++i)
+			{
+				final int index = indices.get(i);
+				if (!replies[i].found)
+				{
+					results[index] = null;
+					continue;
+				}
+
+				final byte[] value = new byte[(int) replies[i].length];
+				int offset = 0;
+				while (offset < value.length)
+				{
+					final ByteBuffer[] batch = nextChunks(chunkBuffers, value.length - offset);
+					get_chunks(replies[i].token, batch);
+					final int start = offset;
+					for (final ByteBuffer chunkBuffer : batch)
+					{
+						final int length = Math.min(chunkBuffer.remaining(), value.length - offset);
+						chunkBuffer.get(value, offset, length);
+						offset += length;
+					}
+					unread[i] = value.length - offset;
+					if (offset == start)
+					{
+						unread[i] = 0;
+						throw new CastleException(-5, "big_get ended after " + offset + " of " + value.length + " bytes");
+					}
+				}
+				results[index] = new KeyValue(keys.get(index), replies[i].timestamp, value);
+			}
+		} finally
+		{
+			try
+			{
+				for (int i = 0; i < replies.length; ++i)
+					if (unread[i] > 0)
+						skipBigGet(replies[i].token, unread[i], chunkBuffers);
+			} finally
+			{
+				bufferManager.put(chunkBuffers);
+			}
+		}
+	}
+
+	/* as many of chunkBuffers, cleared, as it takes to read remaining bytes */
+	private static ByteBuffer[] nextChunks(final ByteBuffer[] chunkBuffers, final long remaining)
+	{
+		final long chunks = (remaining + MAX_BUFFER_SIZE - 1) / MAX_BUFFER_SIZE;
+		final ByteBuffer[] batch = Arrays.copyOf(chunkBuffers, (int) Math.min(chunks, chunkBuffers.length));
+		for (final ByteBuffer chunkBuffer : batch)
+			chunkBuffer.clear();
+		return batch;
+	}
+
+	/*
+	 * Reads and discards the last remaining bytes of a big_get, so that castle
+	 * finishes it. Gives up quietly if the token fails or runs dry.
+	 */
+	private void skipBigGet(final long token, long remaining, final ByteBuffer[] chunkBuffers)
+	{
+		try
+		{
+			while (remaining > 0)
+			{
+				final ByteBuffer[] batch = nextChunks(chunkBuffers, remaining);
+				get_chunks(token, batch);
+				long read = 0;
+				for (final ByteBuffer chunkBuffer : batch)
+					read += chunkBuffer.remaining();
+				if (read == 0)
+					return;
+				remaining -= read;
+			}
+		} catch (final IOException e)
+		{
+		}
+	}
+
 	public List<KeyValue> get_slice(int collection, Slice subspace) throws IOException
 	{
 		return get_slice(collection, subspace, 0);
@@ -1267,17 +2033,66 @@ public final class Castle
 		return new KeyValueIterator(this, collection, keyStart, keyFinish, bufferSize, numBuffers, flags);
 	}
 
-	public IterReply iterstart(int collection, Key keyStart, Key keyFinish, int bufferSize) throws IOException
+	/**
+	 * Reads keyStart to keyFinish with up to partitions iterators at once, on
+	 * ranges of the first dimension; see ParallelScan. Unless ordered, the
+	 * entries come back in key order within each iterator buffer, but with the
+	 * buffers of the partitions interleaved.
+	 */
+	public ParallelScan getParallelScan(int collection, Key keyStart, Key keyFinish, int partitions, boolean ordered)
+			throws IOException
 	{
-		return iterstart(collection, keyStart, keyFinish, bufferSize, EnumSet.of(IterFlags.NONE), null);
+		return getParallelScan(collection, keyStart, keyFinish, partitions, ordered, MAX_BUFFER_SIZE,
+				EnumSet.of(IterFlags.NONE));
 	}
 
-	public IterReply iterstart(int collection, Key keyStart, Key keyFinish, int bufferSize, final IterCallback callback) throws IOException
+	public ParallelScan getParallelScan(int collection, Key keyStart, Key keyFinish, int partitions, boolean ordered,
+			int bufferSize, EnumSet<IterFlags> flags) throws IOException
 	{
-		return iterstart(collection, keyStart, keyFinish, bufferSize, EnumSet.of(IterFlags.NONE), callback);
+		return new ParallelScan(this, collection, keyStart, keyFinish, partitions, ordered, bufferSize, flags);
 	}
 
-	public IterReply iterstart(int collection, Key keyStart, Key keyFinish, int bufferSize, EnumSet<IterFlags> flags) throws IOException
+	/**
+	 * The entries of the slice, in key order unless the stream is parallel,
+	 * in which case the slice is split on its first dimension and each part
+	 * read through its own iterator. The stream should be closed if it may not
+	 * be read to the end.
+	 */
+	public Stream<KeyValue> stream(int collection, Slice slice)
+	{
+		return cursorStream(collection, slice, MAX_BUFFER_SIZE, EnumSet.of(IterFlags.NONE)).map(
+				new Function<KeyValueCursor, KeyValue>()
+				{
+					@Override
+					public KeyValue apply(final KeyValueCursor cursor)
+					{
+						return cursor.getKeyValue();
+					}
+				});
+	}
+
+	/**
+	 * As stream, but each element is the cursor over the iterator buffer, at
+	 * the entry: nothing is copied unless the action asks for it, and the
+	 * cursor must not be used once the action has returned.
+	 */
+	public Stream<KeyValueCursor> cursorStream(int collection, Slice slice, int bufferSize, EnumSet<IterFlags> flags)
+	{
+		final KeyValueSpliterator spliterator = new KeyValueSpliterator(this, collection, slice, bufferSize, flags);
+		return StreamSupport.stream(spliterator, false).onClose(spliterator.closer());
+	}
+
+	public IterReply iterstart(int collection, Key keyStart, Key keyFinish, int bufferSize) throws IOException
+	{
+		return iterstart(collection, keyStart, keyFinish, bufferSize, EnumSet.of(IterFlags.NONE), null);
+	}
+
+	public IterReply iterstart(int collection, Key keyStart, Key keyFinish, int bufferSize, final IterCallback callback) throws IOException
+	{
+		return iterstart(collection, keyStart, keyFinish, bufferSize, EnumSet.of(IterFlags.NONE), callback);
+	}
+
+	public IterReply iterstart(int collection, Key keyStart, Key keyFinish, int bufferSize, EnumSet<IterFlags> flags) throws IOException
 	{
 		return iterstart(collection, keyStart, keyFinish, bufferSize, flags, null);
 	}
@@ -1291,27 +2106,8 @@ public final class Castle
 		{
 			buffers = bufferManager.get(KEY_BUFFER_SIZE, KEY_BUFFER_SIZE, bufferSize);
 			
-			// fix up infinite keys
-			Key start = new Key(new byte[keyStart.key.length][]);
-			for (int i = 0; i < keyStart.key.length; i++)
-			{
-				if (keyStart.key[i].length == 0)
-					start.key[i] = Key.MINUS_INF;
-				else
-					start.key[i] = keyStart.key[i];
-			}
-			
-			Key finish = new Key(new byte[keyFinish.key.length][]);
-			for (int i = 0; i < keyFinish.key.length; i++)
-			{
-				if (keyFinish.key[i].length == 0)
-					finish.key[i] = Key.PLUS_INF;
-				else
-					finish.key[i] = keyFinish.key[i];
-			}
-			
-			iterStartRequest = new IterStartRequest(start, finish, collection, buffers[0], buffers[1], buffers[2],
-					flags);
+			iterStartRequest = new IterStartRequest(withInfinity(keyStart, Key.MINUS_INF),
+					withInfinity(keyFinish, Key.PLUS_INF), collection, buffers[0], buffers[1], buffers[2], flags);
 
 			if (callback != null)
 			{
@@ -1365,12 +2161,82 @@ public final class Castle
 		}
 	}
 
+	/*
+	 * Fixes up the infinite dimensions of an iterator's start or finish key:
+	 * each empty dimension becomes infinity.
+	 */
+	private static Key withInfinity(final Key key, final byte[] infinity)
+	{
+		Key fixed = new Key(new byte[key.key.length][]);
+		for (int i = 0; i < key.key.length; i++)
+		{
+			if (key.key[i].length == 0)
+				fixed.setDimension(i, infinity);
+			else
+				fixed.setDimension(i, key.key[i]);
+		}
+		return fixed;
+	}
+
+	/*
+	 * As the blocking iterstart, but leaves the entries undecoded in iterBuffer,
+	 * for a KeyValueCursor. Returns the token.
+	 */
+	long iterstart(int collection, Key keyStart, Key keyFinish, EnumSet<IterFlags> flags, ByteBuffer iterBuffer)
+			throws IOException
+	{
+		ByteBuffer[] buffers = bufferManager.get(KEY_BUFFER_SIZE, KEY_BUFFER_SIZE);
+		try
+		{
+			Request iterStartRequest = new IterStartRequest(withInfinity(keyStart, Key.MINUS_INF),
+					withInfinity(keyFinish, Key.PLUS_INF), collection, buffers[0], buffers[1], iterBuffer, flags);
+			return castle_request_blocking_ex(iterStartRequest).token;
+		} finally
+		{
+			bufferManager.put(buffers);
+		}
+	}
+
+	/*
+	 * As the blocking iternext, but leaves the entries undecoded in iterBuffer.
+	 */
+	void iternext(long token, ByteBuffer iterBuffer) throws IOException
+	{
+		castle_request_blocking_ex(new IterNextRequest(token, iterBuffer));
+	}
+
+	/*
+	 * Sends an iternext into iterBuffer, whose entries are left undecoded for
+	 * the callback's owner. The buffer isn't collected by the callback.
+	 */
+	void iternext(long token, ByteBuffer iterBuffer, Callback callback) throws IOException
+	{
+		castle_request_send(new IterNextRequest(token, iterBuffer), callback);
+	}
+
+	/* the address the pointers in an iterator buffer are relative to */
+	long iterBufferStart(ByteBuffer iterBuffer)
+	{
+		return castle_get_start_address(iterBuffer);
+	}
+
+	/**
+	 * Returns a cursor over the entries from keyStart to keyFinish, which reads
+	 * each entry in place in the iterator buffer rather than decoding every
+	 * entry into a KeyValue. The cursor must be closed.
+	 */
+	public KeyValueCursor getKeyValueCursor(int collection, Key keyStart, Key keyFinish, int bufferSize,
+			EnumSet<IterFlags> flags) throws IOException
+	{
+		return new KeyValueCursor(this, collection, keyStart, keyFinish, bufferSize, flags);
+	}
+
 	public IterReply iternext(long token, int bufferSize) throws IOException
 	{
 		return iternext(token, bufferSize, null);
 	}
 
-	public class CastleKVList
+	public static class CastleKVList
 	{
 		public ArrayList<KeyValue> kvList;
 		public boolean hasNext;
@@ -1378,102 +2244,23 @@ public final class Castle
 
 	private CastleKVList bufferToKvList(final ByteBuffer buffer) throws IOException
 	{
-		final boolean debug = false;
+		return bufferToKvList(buffer, castle_get_start_address(buffer));
+	}
 
+	/*
+	 * Decodes every entry of an iterator buffer whose pointers are relative to
+	 * start. Needs no connection, so KeyValueCursorTest can feed it buffers
+	 * laid out by hand.
+	 */
+	static CastleKVList bufferToKvList(final ByteBuffer buffer, final long start) throws IOException
+	{
 		CastleKVList kvList = new CastleKVList();
 		kvList.kvList = new ArrayList<KeyValue>();
-		// default is there's more, we update later if we find out there are no more
-		kvList.hasNext = true;
-
-		final long start = castle_get_start_address(buffer);
-		if (debug)
-			System.out.println("start = " + start);
-		long nextKvOffset = start;
-		long prevKvOffset = 0;
-
-		while (nextKvOffset > prevKvOffset)
-		{
-			if (debug)
-				System.out.println("new loop, nextKvOffset' = " + (nextKvOffset - start));
-			ByteBuffer curKvListItem = buffer.slice();
-			curKvListItem.order(ByteOrder.LITTLE_ENDIAN);
-
-			curKvListItem.position((int) (nextKvOffset - start));
-			prevKvOffset = nextKvOffset;
-			nextKvOffset = curKvListItem.getLong();
-			final long keyOffset = curKvListItem.getLong();
-			if (debug)
-				System.out.println("keyOffset' = " + (keyOffset - start));
-
-			// key is null should only be for an empty buffer returned from iter_start
-			if (keyOffset == 0)
-			{
-				assert kvList.kvList.isEmpty();
-				assert nextKvOffset == 0;
-				kvList.hasNext = false;
-				break;
-			}
-
-			ByteBuffer keyBuf = buffer.slice();
-			keyBuf.position((int) (keyOffset - start));
-			Key key = new ImmutableKey(keyBuf).mutable();
-
-			final long valStructOffset = curKvListItem.getLong();
-			if (debug)
-				System.out.println("valStructOffset' = " + (valStructOffset - start));
-			
-			final long timestamp = curKvListItem.getLong();
-			if (debug)
-				System.out.println("timestamp = " + timestamp);
-
-			KeyValue kv;
-
-			if (valStructOffset == 0)
-				kv = new KeyValue(key);
-			else
-			{
-				ByteBuffer valStructBuf = buffer.slice();
-				valStructBuf.position((int) (valStructOffset - start));
-				valStructBuf.order(ByteOrder.LITTLE_ENDIAN);
-
-				final long valueLength = valStructBuf.getLong();
-				if (debug)
-					System.out.println("valueLength = " + valueLength);
-				final KeyValueType valueType = KeyValueType.valueOf(valStructBuf.get());
-				if (debug)
-					System.out.println("valueType = " + valueType);
-				// there are now 7 unused bytes (for byte-alignment purposes)
-				valStructBuf.position(valStructBuf.position() + 7);
-				final long valueOffset = valStructBuf.getLong();
-				if (debug)
-					System.out.println("valueOffset' = " + (valueOffset - start));
-
-				if (valueLength != 0 && valueOffset != 0
-						&& (valueType == KeyValueType.CASTLE_VALUE_TYPE_INLINE || valueType == KeyValueType.CASTLE_VALUE_TYPE_INLINE_COUNTER))
-				{
-					ByteBuffer valBuf = buffer.slice();
-					valBuf.position((int) (valueOffset - start));
-
-					valBuf.limit((int) valueLength + valBuf.position());
-
-					byte[] valueArray = new byte[valBuf.remaining()];
-					valBuf.get(valueArray);
-					kv = new KeyValue(key, valueArray, valueLength);
-				} else
-				{
-					kv = new KeyValue(key, new byte[0], valueLength);
-				}
 
-				kv.setType(valueType);
-			}
-			
-			kv.setTimestamp(timestamp);
-
-			kvList.kvList.add(kv);
-
-			if (nextKvOffset == 0)
-				kvList.hasNext = false;
-		}
+		final KeyValueCursor cursor = new KeyValueCursor(buffer, start);
+		while (cursor.next())
+			kvList.kvList.add(cursor.getKeyValue());
+		kvList.hasNext = cursor.hasMore();
 
 		return kvList;
 	}
@@ -1740,12 +2527,17 @@ public final class Castle
 			final ByteBuffer keyBuffer = buffers[0];
 			final ByteBuffer valueBuffer = buffers[1];
 			final CounterGetRequest request = new CounterGetRequest(key, collection, keyBuffer, valueBuffer);
-			final RequestResponse response = castle_request_blocking_ex(request);
-
-			if (!response.found)
-				return 0l;
-			if (response.length != COUNTER_SIZE)
-				throw new CastleException(-34, "counter_get: value length out of bounds");
+			final RequestBlock block = castle_request_blocking_block(request);
+			try
+			{
+				if (!block.found(0))
+					return 0l;
+				if (block.length(0) != COUNTER_SIZE)
+					throw new CastleException(-34, "counter_get: value length out of bounds");
+			} finally
+			{
+				releaseRequestBlock(block);
+			}
 
 			return valueBuffer.order(ByteOrder.LITTLE_ENDIAN).getLong();
 		} finally
@@ -1754,61 +2546,719 @@ public final class Castle
 		}
 	}
 
-	private void prepare_counter_adds(PreparedBatch batch, final int collection, Map<Key, Long> adds) throws IOException
+	public void counter_add_multi(final int collection, final Map<Key, Long> adds) throws IOException
 	{
-		final Key[] keys = new Key[adds.size()];
-		final long[] deltas = new long[adds.size()];
+		counter_multi(collection, adds, true);
+	}
+
+	public void counter_set_multi(final int collection, final Map<Key, Long> values) throws IOException
+	{
+		counter_multi(collection, values, false);
+	}
+
+	private void counter_multi(final int collection, final Map<Key, Long> values, final boolean add) throws IOException
+	{
+		final Key[] keys = new Key[values.size()];
+		final long[] counters = new long[values.size()];
 
 		int i = 0;
-		for (final Map.Entry<Key,Long> e : adds.entrySet())
+		for (final Map.Entry<Key, Long> e : values.entrySet())
 		{
 			keys[i] = e.getKey();
-			deltas[i] = e.getValue();
+			counters[i] = e.getValue();
 			i++;
 		}
-		prepare_counter_adds(batch, collection, keys, deltas);
+
+		int start = 0;
+		int totalKeyLength = 0;
+		for (i = 0; i < keys.length; ++i)
+		{
+			final int keyLength = keys[i].getPackedLength();
+			if (totalKeyLength + keyLength > MAX_BUFFER_SIZE || (i - start + 1) * COUNTER_SIZE > MAX_BUFFER_SIZE)
+			{
+				counter_multi(collection, keys, counters, start, i, totalKeyLength, add);
+				start = i;
+				totalKeyLength = 0;
+			}
+			totalKeyLength += keyLength;
+		}
+		if (start < keys.length)
+			counter_multi(collection, keys, counters, start, keys.length, totalKeyLength, add);
 	}
 
-	private void prepare_counter_adds(final PreparedBatch batch, final int collection, final Key[] keys, final long[] deltas) throws IOException
+	/*
+	 * Adds or sets the counters from to to in one submission, with the keys
+	 * packed into one buffer and the values into another.
+	 */
+	private void counter_multi(final int collection, final Key[] keys, final long[] counters, final int from,
+			final int to, final int totalKeyLength, final boolean add) throws IOException
 	{
-		assert keys.length == deltas.length;
-		batch.requests = new Request[keys.length];
-		for (int i = 0; i < keys.length; ++i)
+		final ByteBuffer[] buffers = bufferManager.get(totalKeyLength, (to - from) * COUNTER_SIZE);
+		try
 		{
-			final ByteBuffer buffers[] = bufferManager.get(KEY_BUFFER_SIZE, COUNTER_SIZE);
 			final ByteBuffer keyBuffer = buffers[0];
 			final ByteBuffer valueBuffer = buffers[1];
-			valueBuffer.order(ByteOrder.LITTLE_ENDIAN).putLong(deltas[i]);
-			valueBuffer.flip();
+			valueBuffer.order(ByteOrder.LITTLE_ENDIAN);
+			final Request[] requests = new Request[to - from];
+
+			for (int i = from; i < to; ++i)
+			{
+				final int valueStart = (i - from) * COUNTER_SIZE;
+				valueBuffer.clear();
+				valueBuffer.position(valueStart);
+				valueBuffer.limit(valueStart + COUNTER_SIZE);
+				valueBuffer.putLong(valueStart, counters[i]);
+
+				if (add)
+					requests[i - from] = new CounterAddRequest(keys[i], collection, keyBuffer, valueBuffer);
+				else
+					requests[i - from] = new CounterSetRequest(keys[i], collection, keyBuffer, valueBuffer);
+
+				keyBuffer.position(keyBuffer.position() + keys[i].getPackedLength());
+			}
+
+			castle_request_blocking_multi_ex(requests);
+		} finally
+		{
+			bufferManager.put(buffers);
+		}
+	}
 
-			final CounterAddRequest request = new CounterAddRequest(keys[i], collection, keyBuffer, valueBuffer);
+	/**
+	 * Reads many counters, as counter_get does each one: the result is aligned
+	 * with keys, with 0 for a key that has no counter.
+	 */
+	public long[] counter_get_multi(final int collection, final List<Key> keys) throws IOException
+	{
+		final long[] results = new long[keys.size()];
 
-			// keep track of request and buffers.
-			batch.requests[i] = request;
-			batch.buffers.add(keyBuffer);
-			batch.buffers.add(valueBuffer);
+		int start = 0;
+		int totalKeyLength = 0;
+		for (int i = 0; i < keys.size(); ++i)
+		{
+			final int keyLength = keys.get(i).getPackedLength();
+			if (totalKeyLength + keyLength > MAX_BUFFER_SIZE || (i - start + 1) * COUNTER_SIZE > MAX_BUFFER_SIZE)
+			{
+				counter_get_multi(collection, keys, start, i, totalKeyLength, results);
+				start = i;
+				totalKeyLength = 0;
+			}
+			totalKeyLength += keyLength;
 		}
+		if (start < keys.size())
+			counter_get_multi(collection, keys, start, keys.size(), totalKeyLength, results);
+
+		return results;
 	}
 
-	public void counter_add_multi(final int collection, final Map<Key, Long> adds) throws IOException
+	private void counter_get_multi(final int collection, final List<Key> keys, final int from, final int to,
+			final int totalKeyLength, final long[] results) throws IOException
+	{
+		final ByteBuffer[] buffers = bufferManager.get(totalKeyLength, (to - from) * COUNTER_SIZE);
+		try
+		{
+			final ByteBuffer keyBuffer = buffers[0];
+			final ByteBuffer valueBuffer = buffers[1];
+			valueBuffer.order(ByteOrder.LITTLE_ENDIAN);
+			final Request[] requests = new Request[to - from];
+
+			for (int i = from; i < to; ++i)
+			{
+				final int valueStart = (i - from) * COUNTER_SIZE;
+				valueBuffer.clear();
+				valueBuffer.position(valueStart);
+				valueBuffer.limit(valueStart + COUNTER_SIZE);
+
+				requests[i - from] = new CounterGetRequest(keys.get(i), collection, keyBuffer, valueBuffer);
+
+				keyBuffer.position(keyBuffer.position() + keys.get(i).getPackedLength());
+			}
+
+			final RequestBlock block = castle_request_blocking_multi_block(requests);
+			try
+			{
+				for (int i = from; i < to; ++i)
+				{
+					if (!block.found(i - from))
+						continue;
+					if (block.length(i - from) != COUNTER_SIZE)
+						throw new CastleException(-34, "counter_get: value length out of bounds");
+					results[i] = valueBuffer.getLong((i - from) * COUNTER_SIZE);
+				}
+			} finally
+			{
+				releaseRequestBlock(block);
+			}
+		} finally
+		{
+			bufferManager.put(buffers);
+		}
+	}
+
+	/*
+	 * Asynchronous operations. Each sends its request(s) and returns at once; the
+	 * future is completed on a callback thread, and any buffers leased for the
+	 * request are returned once it has completed. Failures, including failures
+	 * to send, are reported through the future.
+	 */
+
+	private static <T> CompletableFuture<T> failedFuture(final Throwable t)
+	{
+		final CompletableFuture<T> future = new CompletableFuture<T>();
+		future.completeExceptionally(t);
+		return future;
+	}
+
+	/*
+	 * Leases a buffer for an async request. A callback thread, which sends the
+	 * later requests of a chained operation, mustn't wait for buffers that only
+	 * the callbacks return, so it allocates rather than wait.
+	 */
+	private ByteBuffer leaseAsync(final int size) throws IOException
+	{
+		return isCallbackThread() ? bufferManager.tryGet(size) : bufferManager.get(size);
+	}
+
+	private ByteBuffer[] leaseAsync(final int size0, final int size1) throws IOException
+	{
+		return isCallbackThread() ? bufferManager.tryGet(size0, size1) : bufferManager.get(size0, size1);
+	}
+
+	private static FutureCallback<Void> voidCallback(final String operation)
+	{
+		return new FutureCallback<Void>(operation)
+		{
+			@Override
+			protected Void result(final RequestResponse response)
+			{
+				return null;
+			}
+		};
+	}
+
+	public CompletableFuture<Void> putAsync(final int collection, final Key key, final byte[] value)
+	{
+		return putAsync(collection, key, value, null);
+	}
+
+	/**
+	 * Values longer than MAX_BUFFER_SIZE are put with bigPutAsync.
+	 */
+	public CompletableFuture<Void> putAsync(final int collection, final Key key, final byte[] value, final Long timestamp)
+	{
+		if (value.length > MAX_BUFFER_SIZE)
+			return bigPutAsync(collection, key, value, timestamp);
+
+		final FutureCallback<Void> callback = voidCallback("put");
+		try
+		{
+			put(collection, key, value, timestamp, callback);
+		} catch (final Throwable t)
+		{
+			return callback.fail(t);
+		}
+		return callback.future;
+	}
+
+	/**
+	 * Completes once every value has been put. Values longer than
+	 * MAX_BUFFER_SIZE are put with bigPutAsync, alongside the batches.
+	 */
+	public CompletableFuture<Void> putMultiAsync(final int collection, final List<KeyValue> values)
+	{
+		final List<CompletableFuture<Void>> puts = new ArrayList<CompletableFuture<Void>>();
+		final List<KeyValue> small = new ArrayList<KeyValue>(values.size());
+		for (final KeyValue kv : values)
+		{
+			if (kv.getValue().length > MAX_BUFFER_SIZE)
+				puts.add(bigPutAsync(collection, kv.getKey(), kv.getValue(), kv.getTimestamp()));
+			else
+				small.add(kv);
+		}
+
+		/* put_multi never calls back for an empty list */
+		if (!small.isEmpty())
+		{
+			final FutureCallback<Void> callback = voidCallback("put_multi");
+			try
+			{
+				put_multi(collection, small, callback);
+				puts.add(callback.future);
+			} catch (final Throwable t)
+			{
+				puts.add(callback.fail(t));
+			}
+		}
+
+		if (puts.size() == 1)
+			return puts.get(0);
+		return CompletableFuture.allOf(puts.toArray(new CompletableFuture<?>[puts.size()]));
+	}
+
+	/**
+	 * Puts a value of any length of at least MIN_BIG_PUT_SIZE bytes with a
+	 * big_put, and then a put_chunk of up to MAX_BUFFER_SIZE bytes at a time,
+	 * each sent from the callback of the one before.
+	 */
+	public CompletableFuture<Void> bigPutAsync(final int collection, final Key key, final byte[] value,
+			final Long timestamp)
+	{
+		final FutureCallback<Long> callback = new FutureCallback<Long>("big_put")
+		{
+			@Override
+			protected Long result(final RequestResponse response)
+			{
+				return response.token;
+			}
+		};
+		try
+		{
+			final ByteBuffer keyBuffer = leaseAsync(KEY_BUFFER_SIZE);
+			callback.collect(bufferManager, keyBuffer);
+			castle_request_send(new BigPutRequest(key, collection, keyBuffer, value.length, timestamp), callback);
+		} catch (final Throwable t)
+		{
+			callback.cleanup();
+			return failedFuture(t);
+		}
+
+		return callback.future.thenCompose(new Function<Long, CompletableFuture<Void>>()
+		{
+			@Override
+			public CompletableFuture<Void> apply(final Long token)
+			{
+				return putChunksAsync(token, value, 0);
+			}
+		});
+	}
+
+	/*
+	 * Sends what is left of value from offset to a big_put, one chunk at a time
+	 */
+	private CompletableFuture<Void> putChunksAsync(final long token, final byte[] value, final int offset)
+	{
+		if (offset == value.length)
+			return CompletableFuture.completedFuture(null);
+
+		final int length = Math.min(MAX_BUFFER_SIZE, value.length - offset);
+		final FutureCallback<Void> callback = voidCallback("put_chunk");
+		try
+		{
+			final ByteBuffer chunkBuffer = leaseAsync(length);
+			callback.collect(bufferManager, chunkBuffer);
+			chunkBuffer.put(value, offset, length);
+			chunkBuffer.flip();
+			castle_request_send(new PutChunkRequest(token, chunkBuffer), callback);
+		} catch (final Throwable t)
+		{
+			return callback.fail(t);
+		}
+
+		return callback.future.thenCompose(new Function<Void, CompletableFuture<Void>>()
+		{
+			@Override
+			public CompletableFuture<Void> apply(final Void v)
+			{
+				return putChunksAsync(token, value, offset + length);
+			}
+		});
+	}
+
+	public CompletableFuture<Void> deleteAsync(final int collection, final Key key)
+	{
+		return deleteAsync(collection, key, null);
+	}
+
+	public CompletableFuture<Void> deleteAsync(final int collection, final Key key, final Long timestamp)
+	{
+		final FutureCallback<Void> callback = voidCallback("delete");
+		try
+		{
+			delete(collection, key, timestamp, callback);
+		} catch (final Throwable t)
+		{
+			return callback.fail(t);
+		}
+		return callback.future;
+	}
+
+	/**
+	 * As get(collection, key, length): completes with null if the key has no
+	 * value, or else with at most length bytes of it, and its full length in
+	 * valueLength.
+	 */
+	public CompletableFuture<KeyValue> getAsync(final int collection, final Key key, final int length)
+	{
+		final ByteBuffer[] buffers;
+		try
+		{
+			/* the second fetch of getAsync(collection, key) is sent from a callback thread */
+			buffers = leaseAsync(KEY_BUFFER_SIZE, length);
+		} catch (final Throwable t)
+		{
+			return failedFuture(t);
+		}
+
+		final ByteBuffer valueBuffer = buffers[1];
+		final FutureCallback<KeyValue> callback = new FutureCallback<KeyValue>("get")
+		{
+			@Override
+			protected KeyValue result(final RequestResponse response)
+			{
+				if (!response.found)
+					return null;
+
+				final byte[] value = new byte[(int) Math.min(response.length, length)];
+				valueBuffer.get(value);
+				return new KeyValue(key, response.timestamp, value, response.length);
+			}
+		};
+		callback.collect(bufferManager, buffers);
+
+		try
+		{
+			// Limit in case we were returned a bigger buffer than necessary
+			valueBuffer.limit(length);
+			castle_request_send(new GetRequest(key, collection, buffers[0], valueBuffer), callback);
+		} catch (final Throwable t)
+		{
+			return callback.fail(t);
+		}
+		return callback.future;
+	}
+
+	/**
+	 * Completes with the whole value, or null if the key has no value. As with
+	 * get_kv, the first fetch is sized by the collection's value sizes so far,
+	 * and a longer value takes a second request, which is sent from the callback
+	 * thread. Values longer than MAX_BUFFER_SIZE are read with bigGetAsync.
+	 */
+	public CompletableFuture<KeyValue> getAsync(final int collection, final Key key)
+	{
+		return getAsync(collection, key, valueSizes.predict(collection), true);
+	}
+
+	/*
+	 * firstSize is the size of the first fetch; record whether to feed the result to valueSizes
+	 */
+	private CompletableFuture<KeyValue> getAsync(final int collection, final Key key, final int firstSize,
+			final boolean record)
+	{
+		return getAsync(collection, key, firstSize).thenCompose(
+				new Function<KeyValue, CompletableFuture<KeyValue>>()
+				{
+					@Override
+					public CompletableFuture<KeyValue> apply(final KeyValue kv)
+					{
+						if (kv != null && record)
+							valueSizes.record(collection, kv.getValueLength(), firstSize);
+						if (kv == null || kv.getValueLength() <= firstSize)
+							return CompletableFuture.completedFuture(kv);
+						if (kv.getValueLength() > MAX_BUFFER_SIZE)
+							return bigGetAsync(collection, key);
+						return getAsync(collection, key, (int) kv.getValueLength());
+					}
+				});
+	}
+
+	/**
+	 * Completes with the whole value, or null if the key has no value, read with
+	 * a big_get and then a get_chunk of up to MAX_BUFFER_SIZE bytes at a time,
+	 * each sent from the callback of the one before. As get_big, the value must
+	 * fit in memory.
+	 */
+	public CompletableFuture<KeyValue> bigGetAsync(final int collection, final Key key)
+	{
+		final FutureCallback<BigGetReply> callback = new FutureCallback<BigGetReply>("big_get")
+		{
+			@Override
+			protected BigGetReply result(final RequestResponse response)
+			{
+				return new BigGetReply(response.token, response.found, response.length, response.timestamp);
+			}
+		};
+		try
+		{
+			final ByteBuffer keyBuffer = leaseAsync(KEY_BUFFER_SIZE);
+			callback.collect(bufferManager, keyBuffer);
+			castle_request_send(new BigGetRequest(key, collection, keyBuffer), callback);
+		} catch (final Throwable t)
+		{
+			callback.cleanup();
+			return failedFuture(t);
+		}
+
+		return callback.future.thenCompose(new Function<BigGetReply, CompletableFuture<KeyValue>>()
+		{
+			@Override
+			public CompletableFuture<KeyValue> apply(final BigGetReply reply)
+			{
+				if (!reply.found)
+					return CompletableFuture.completedFuture(null);
+				return getChunksAsync(key, reply, new byte[(int) reply.length], 0);
+			}
+		});
+	}
+
+	/*
+	 * Reads what is left of a big_get into value from offset, one chunk at a time
+	 */
+	private CompletableFuture<KeyValue> getChunksAsync(final Key key, final BigGetReply reply, final byte[] value,
+			final int offset)
+	{
+		if (offset == value.length)
+			return CompletableFuture.completedFuture(new KeyValue(key, reply.timestamp, value));
+
+		final ByteBuffer chunkBuffer;
+		try
+		{
+			chunkBuffer = leaseAsync(MAX_BUFFER_SIZE);
+		} catch (final Throwable t)
+		{
+			return failedFuture(t);
+		}
+
+		final FutureCallback<Integer> callback = new FutureCallback<Integer>("get_chunk")
+		{
+			@Override
+			protected Integer result(final RequestResponse response) throws CastleException
+			{
+				final int length = (int) Math.min(response.length, value.length - offset);
+				if (length <= 0)
+					throw new CastleException(-5, "big_get ended after " + offset + " of " + value.length + " bytes");
+				chunkBuffer.limit(length);
+				chunkBuffer.get(value, offset, length);
+				return length;
+			}
+		};
+		callback.collect(bufferManager, chunkBuffer);
+
+		try
+		{
+			castle_request_send(new GetChunkRequest(reply.token, chunkBuffer), callback);
+		} catch (final Throwable t)
+		{
+			callback.cleanup();
+			return failedFuture(t);
+		}
+
+		return callback.future.thenCompose(new Function<Integer, CompletableFuture<KeyValue>>()
+		{
+			@Override
+			public CompletableFuture<KeyValue> apply(final Integer length)
+			{
+				return getChunksAsync(key, reply, value, offset + length);
+			}
+		});
+	}
+
+	/**
+	 * As get_multi_kv: completes with the whole value of each key, in the same
+	 * order, or null if the key has no value. Each pass is sent in batches, and
+	 * the values that didn't fit are fetched by the next, sent from a callback
+	 * thread; values longer than MAX_BUFFER_SIZE are read with bigGetAsync.
+	 */
+	public CompletableFuture<List<KeyValue>> getMultiAsync(final int collection, final List<Key> keys)
 	{
-		PreparedBatch batch = new PreparedBatch();
-		prepare_counter_adds(batch, collection, adds);
-		batch_exec(batch);
+		final KeyValue[] results = new KeyValue[keys.size()];
+		final List<PendingGet> pending = new ArrayList<PendingGet>(keys.size());
+		for (int i = 0; i < keys.size(); ++i)
+			pending.add(new PendingGet(i, MAX_INLINE_VALUE_SIZE));
+
+		return getMultiAsync(collection, keys, pending, results).thenApply(new Function<Void, List<KeyValue>>()
+		{
+			@Override
+			public List<KeyValue> apply(final Void v)
+			{
+				return Arrays.asList(results);
+			}
+		});
 	}
 
-	private void batch_exec(final PreparedBatch batch) throws IOException
+	/*
+	 * One pass of getMultiAsync, batched as get_multi_kv's, and then the
+	 * passes and big_gets for the values that didn't fit
+	 */
+	private CompletableFuture<Void> getMultiAsync(final int collection, final List<Key> keys,
+			final List<PendingGet> pending, final KeyValue[] results)
 	{
-		// send to Castle
+		final Queue<PendingGet> next = new ConcurrentLinkedQueue<PendingGet>();
+		final Queue<Integer> big = new ConcurrentLinkedQueue<Integer>();
+		final List<CompletableFuture<Void>> batches = new ArrayList<CompletableFuture<Void>>();
+		final List<PendingGet> batch = new ArrayList<PendingGet>();
+		int totalKeyLength = 0;
+		int totalValueLength = 0;
+
 		try
 		{
-			castle_request_blocking_multi_ex(batch.requests);
+			for (final PendingGet get : pending)
+			{
+				final int keyLength = keys.get(get.index).getPackedLength();
+				if (!batch.isEmpty()
+						&& (totalKeyLength + keyLength > MAX_BUFFER_SIZE || totalValueLength + get.size > MAX_BUFFER_SIZE))
+				{
+					batches.add(getMultiAsync(collection, keys, new ArrayList<PendingGet>(batch), totalKeyLength,
+							totalValueLength, results, next, big));
+					batch.clear();
+					totalKeyLength = 0;
+					totalValueLength = 0;
+				}
+				batch.add(get);
+				totalKeyLength += keyLength;
+				totalValueLength += get.size;
+			}
+		} catch (final IOException e)
+		{
+			/* batches already sent still complete, and return their buffers */
+			return failedFuture(e);
 		}
-		finally
+		if (!batch.isEmpty())
+			batches.add(getMultiAsync(collection, keys, batch, totalKeyLength, totalValueLength, results, next, big));
+
+		return CompletableFuture.allOf(batches.toArray(new CompletableFuture<?>[batches.size()])).thenCompose(
+				new Function<Void, CompletableFuture<Void>>()
+				{
+					@Override
+					public CompletableFuture<Void> apply(final Void v)
+					{
+						final List<CompletableFuture<?>> rest = new ArrayList<CompletableFuture<?>>();
+						for (final int index : big)
+						{
+							rest.add(bigGetAsync(collection, keys.get(index)).thenAccept(new Consumer<KeyValue>()
+							{
+								@Override
+								public void accept(final KeyValue kv)
+								{
+									results[index] = kv;
+								}
+							}));
+						}
+						/* values that grew between passes just go round again */
+						if (!next.isEmpty())
+							rest.add(getMultiAsync(collection, keys, new ArrayList<PendingGet>(next), results));
+						return CompletableFuture.allOf(rest.toArray(new CompletableFuture<?>[rest.size()]));
+					}
+				});
+	}
+
+	/*
+	 * One batch of a pass of getMultiAsync; see GetMultiBatch
+	 */
+	private CompletableFuture<Void> getMultiAsync(final int collection, final List<Key> keys,
+			final List<PendingGet> gets, final int totalKeyLength, final int totalValueLength,
+			final KeyValue[] results, final Queue<PendingGet> next, final Queue<Integer> big)
+	{
+		final ByteBuffer[] buffers;
+		try
+		{
+			buffers = leaseAsync(totalKeyLength, totalValueLength);
+		} catch (final Throwable t)
+		{
+			return failedFuture(t);
+		}
+
+		final GetMultiBatch batch = new GetMultiBatch(bufferManager, keys, gets, buffers, results, next, big);
+		try
+		{
+			final ByteBuffer keyBuffer = buffers[0];
+			final ByteBuffer valueBuffer = buffers[1];
+			final Request[] requests = new Request[gets.size()];
+			final Callback[] callbacks = new Callback[gets.size()];
+
+			for (int i = 0; i < requests.length; ++i)
+			{
+				final PendingGet get = gets.get(i);
+				final Key key = keys.get(get.index);
+				valueBuffer.limit(valueBuffer.position() + get.size);
+				requests[i] = new GetRequest(key, collection, keyBuffer, valueBuffer);
+				callbacks[i] = batch.callback(i);
+
+				keyBuffer.position(keyBuffer.position() + key.getPackedLength());
+				valueBuffer.position(valueBuffer.position() + get.size);
+			}
+
+			castle_request_send_each_ex(requests, callbacks);
+		} catch (final Throwable t)
+		{
+			/* nothing was sent */
+			try
+			{
+				bufferManager.put(buffers);
+			} catch (final IOException e)
+			{
+			}
+			return failedFuture(t);
+		}
+		return batch.future;
+	}
+
+	public CompletableFuture<Void> counterSetAsync(final int collection, final Key key, final long value)
+	{
+		return counterUpdateAsync(collection, key, value, false);
+	}
+
+	public CompletableFuture<Void> counterAddAsync(final int collection, final Key key, final long delta)
+	{
+		return counterUpdateAsync(collection, key, delta, true);
+	}
+
+	private CompletableFuture<Void> counterUpdateAsync(final int collection, final Key key, final long value,
+			final boolean add)
+	{
+		final FutureCallback<Void> callback = voidCallback(add ? "counter_add" : "counter_set");
+		try
+		{
+			final ByteBuffer[] buffers = bufferManager.get(KEY_BUFFER_SIZE, COUNTER_SIZE);
+			callback.collect(bufferManager, buffers);
+
+			final ByteBuffer keyBuffer = buffers[0];
+			final ByteBuffer valueBuffer = buffers[1];
+			valueBuffer.order(ByteOrder.LITTLE_ENDIAN).putLong(value);
+			valueBuffer.flip();
+
+			final Request request = add ? new CounterAddRequest(key, collection, keyBuffer, valueBuffer)
+					: new CounterSetRequest(key, collection, keyBuffer, valueBuffer);
+			castle_request_send(request, callback);
+		} catch (final Throwable t)
+		{
+			return callback.fail(t);
+		}
+		return callback.future;
+	}
+
+	public CompletableFuture<Long> counterGetAsync(final int collection, final Key key)
+	{
+		final ByteBuffer[] buffers;
+		try
+		{
+			buffers = bufferManager.get(KEY_BUFFER_SIZE, COUNTER_SIZE);
+		} catch (final Throwable t)
+		{
+			return failedFuture(t);
+		}
+
+		final ByteBuffer valueBuffer = buffers[1];
+		final FutureCallback<Long> callback = new FutureCallback<Long>("counter_get")
+		{
+			@Override
+			protected Long result(final RequestResponse response) throws CastleException
+			{
+				if (!response.found)
+					return 0l;
+				if (response.length != COUNTER_SIZE)
+					throw new CastleException(-34, "counter_get: value length out of bounds");
+				return valueBuffer.order(ByteOrder.LITTLE_ENDIAN).getLong();
+			}
+		};
+		callback.collect(bufferManager, buffers);
+
+		try
+		{
+			castle_request_send(new CounterGetRequest(key, collection, buffers[0], valueBuffer), callback);
+		} catch (final Throwable t)
 		{
-			// handle buffers
-			for (final ByteBuffer bb : batch.buffers)
-				bufferManager.put(bb);
+			return callback.fail(t);
 		}
+		return callback.future;
 	}
 }
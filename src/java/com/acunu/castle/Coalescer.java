@@ -0,0 +1,198 @@
+package com.acunu.castle;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Gathers single requests sent from many threads and sends them in batches,
+ * according to a CoalescingPolicy. Each request keeps its own callback, so
+ * each caller is completed with its own response.
+ */
+final class Coalescer
+{
+	/* -EIO; reported to callbacks whose request failed to send for a reason other than a CastleException */
+	private static final int SEND_FAILED = -5;
+
+	/* -EINVAL */
+	private static final int CLOSED = -22;
+
+	private static final class Pending
+	{
+		final Request request;
+		final Callback callback;
+
+		Pending(final Request request, final Callback callback)
+		{
+			this.request = request;
+			this.callback = callback;
+		}
+	}
+
+	private static final Pending SHUTDOWN = new Pending(null, null);
+
+	private final Castle castle;
+	private final CoalescingPolicy policy;
+	private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<Pending>();
+	private final Thread thread;
+	private volatile boolean closed = false;
+
+	Coalescer(final Castle castle, final CoalescingPolicy policy)
+	{
+		this.castle = castle;
+		this.policy = policy;
+
+		thread = new Thread("Castle coalescer")
+		{
+			@Override
+			public void run()
+			{
+				coalesce();
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/*
+	 * Queues the request to be sent with the next batch. The callback is run as
+	 * if the request had been sent on its own.
+	 */
+	void submit(final Request request, final Callback callback) throws CastleException
+	{
+		final Pending pending = new Pending(request, callback);
+		if (!closed)
+		{
+			queue.add(pending);
+			/* if close() has already drained the queue, nobody will send it */
+			if (!closed || !queue.remove(pending))
+				return;
+		}
+		throw new CastleException(CLOSED, "Request coalescing has been stopped");
+	}
+
+	/*
+	 * Sends everything already queued and stops.
+	 */
+	void close()
+	{
+		closed = true;
+		queue.add(SHUTDOWN);
+		boolean interrupted = false;
+		while (true)
+		{
+			try
+			{
+				thread.join();
+				break;
+			} catch (final InterruptedException e)
+			{
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+
+		/* anything submitted while the thread was stopping */
+		final List<Pending> rest = new ArrayList<Pending>();
+		queue.drainTo(rest);
+		rest.remove(SHUTDOWN);
+		for (int i = 0; i < rest.size(); i += policy.maxBatch)
+			send(rest.subList(i, Math.min(i + policy.maxBatch, rest.size())));
+	}
+
+	private void coalesce()
+	{
+		final List<Pending> batch = new ArrayList<Pending>(policy.maxBatch);
+		final long lingerNanos = TimeUnit.MICROSECONDS.toNanos(policy.lingerMicros);
+		boolean stopping = false;
+
+		while (!stopping)
+		{
+			try
+			{
+				final Pending first = queue.take();
+				if (first == SHUTDOWN)
+					break;
+				batch.add(first);
+
+				final long deadline = System.nanoTime() + lingerNanos;
+				while (batch.size() < policy.maxBatch)
+				{
+					final long wait = deadline - System.nanoTime();
+					final Pending next = wait > 0 ? queue.poll(wait, TimeUnit.NANOSECONDS) : queue.poll();
+					if (next == null)
+						break;
+					if (next == SHUTDOWN)
+					{
+						stopping = true;
+						break;
+					}
+					batch.add(next);
+				}
+			} catch (final InterruptedException e)
+			{
+				// daemon; send what we have and keep going
+			}
+
+			send(batch);
+			batch.clear();
+		}
+	}
+
+	private void send(final List<Pending> batch)
+	{
+		if (batch.isEmpty())
+			return;
+
+		final Request[] requests = new Request[batch.size()];
+		final Callback[] callbacks = new Callback[batch.size()];
+		for (int i = 0; i < requests.length; ++i)
+		{
+			requests[i] = batch.get(i).request;
+			callbacks[i] = batch.get(i).callback;
+		}
+
+		try
+		{
+			castle.castle_request_send_each_ex(requests, callbacks);
+			return;
+		} catch (final Throwable t)
+		{
+			if (batch.size() == 1)
+			{
+				fail(callbacks[0], t);
+				return;
+			}
+		}
+
+		/* nothing in the batch was sent; send one at a time so only the bad requests fail */
+		for (int i = 0; i < requests.length; ++i)
+		{
+			try
+			{
+				castle.castle_request_send_each_ex(new Request[] { requests[i] }, new Callback[] { callbacks[i] });
+			} catch (final Throwable t)
+			{
+				fail(callbacks[i], t);
+			}
+		}
+	}
+
+	private static void fail(final Callback callback, final Throwable t)
+	{
+		callback.setResponse(new RequestResponse(false, 0, 0, 0));
+		final int err = t instanceof CastleException ? ((CastleException) t).getErrno() : 0;
+		callback.setErr(err != 0 ? err : SEND_FAILED);
+		try
+		{
+			callback.run();
+		} catch (final Throwable u)
+		{
+			System.out.println("Exception in callback " + callback);
+			u.printStackTrace();
+		}
+	}
+}
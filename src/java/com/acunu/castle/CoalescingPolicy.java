@@ -0,0 +1,36 @@
+package com.acunu.castle;
+
+/**
+ * Controls how a Castle connection coalesces single-key requests. Once a
+ * request arrives, the connection waits up to lingerMicros for more, and then
+ * sends every request that arrived, at most maxBatch at a time, in a single
+ * native call.
+ *
+ * A longer linger window makes larger batches under light load at the cost of
+ * latency; under heavy load batches fill up before the window ends.
+ */
+public class CoalescingPolicy
+{
+	public static final CoalescingPolicy DEFAULT = new CoalescingPolicy(100, 256);
+
+	public final long lingerMicros;
+	public final int maxBatch;
+
+	/**
+	 * @param lingerMicros
+	 *            longest a request waits for others to join its batch; 0 sends
+	 *            whatever has arrived at once
+	 * @param maxBatch
+	 *            most requests sent in one native call
+	 */
+	public CoalescingPolicy(final long lingerMicros, final int maxBatch)
+	{
+		if (lingerMicros < 0)
+			throw new IllegalArgumentException("lingerMicros must be >= 0");
+		if (maxBatch < 1)
+			throw new IllegalArgumentException("maxBatch must be >= 1");
+
+		this.lingerMicros = lingerMicros;
+		this.maxBatch = maxBatch;
+	}
+}
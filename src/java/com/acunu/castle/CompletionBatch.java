@@ -0,0 +1,41 @@
+package com.acunu.castle;
+
+/**
+ * Completions handed from the native callback queue to one callback thread.
+ * The thread's native loop fills the arrays with up to SIZE completions and
+ * then makes a single upcall to run(), rather than one object allocation and
+ * three upcalls per completion.
+ */
+final class CompletionBatch
+{
+	static final int SIZE = 64;
+
+	/* written by native code */
+	final Callback[] callbacks = new Callback[SIZE];
+	final int[] errs = new int[SIZE];
+	final long[] lengths = new long[SIZE];
+	final long[] tokens = new long[SIZE];
+	final long[] timestamps = new long[SIZE];
+
+	/*
+	 * Called from native code with the number of completions filled in.
+	 */
+	void run(final int count)
+	{
+		for (int i = 0; i < count; ++i)
+		{
+			final Callback callback = callbacks[i];
+			callbacks[i] = null;
+			try
+			{
+				callback.setResponse(new RequestResponse(errs[i] == 0, lengths[i], tokens[i], timestamps[i]));
+				callback.setErr(errs[i]);
+				callback.run();
+			} catch (final Throwable t)
+			{
+				System.out.println("Exception in callback " + callback);
+				t.printStackTrace();
+			}
+		}
+	}
+}
@@ -9,22 +9,34 @@ public class CounterAddRequest extends Request
 	protected final ByteBuffer keyBuffer;
 	protected final ByteBuffer valueBuffer;
 
+	/* the buffers passed in and their positions, which our slices start at */
+	private final ByteBuffer keySource;
+	private final int keyBase;
+	private final ByteBuffer valueSource;
+	private final int valueBase;
+
+	/*
+	 * The value is the bytes from valueBuffer's position to its limit. Both
+	 * buffers are sliced, so several requests can share them.
+	 */
 	protected CounterAddRequest(final Key key, final int collection, final ByteBuffer keyBuffer, final ByteBuffer valueBuffer)
 	{
 		this.key = key;
 		this.collection = collection;
-		this.keyBuffer = keyBuffer;
-		this.valueBuffer = valueBuffer;
+		this.keyBuffer = keyBuffer.slice();
+		this.valueBuffer = valueBuffer.slice();
+		this.keySource = keyBuffer;
+		this.keyBase = keyBuffer.position();
+		this.valueSource = valueBuffer;
+		this.valueBase = valueBuffer.position();
 	}
 
-	static private native void copy_to(long buffer, int index, int collectionId, ByteBuffer keyBuffer, int keyOffset,
-			int keyLength, ByteBuffer valueBuffer, int valueOffset, int valueLength);
-
 	@Override
-	protected void copy_to(long buffer, int index) throws CastleException
+	void encode(RequestEncoder encoder) throws CastleException
 	{
 		int keyLength = key.copyToBuffer(keyBuffer);
-		copy_to(buffer, index, collection, keyBuffer, keyBuffer.position(), keyLength, valueBuffer, valueBuffer.position(),
-				valueBuffer.remaining());
+		encoder.request(RequestEncoder.COUNTER_ADD, collection, 0, 0, 0);
+		encoder.region(0, keySource, keyBase, keyLength);
+		encoder.region(1, valueSource, valueBase, valueBuffer.remaining());
 	}
 }
@@ -0,0 +1,378 @@
+package com.acunu.castle;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Accumulates counter deltas locally and adds them to castle in batches, so
+ * that many adds to the same hot keys become one counter_add per key per
+ * flush. Deltas are flushed every flushIntervalMillis, or sooner once
+ * maxPendingKeys keys have deltas waiting, and on flush() and close().
+ *
+ * Flushes are at least once: if a batch fails, its deltas are kept and sent
+ * again with the next flush, so any of them that castle had already applied
+ * are applied twice.
+ *
+ * Keys must not be changed once they have been passed to add().
+ */
+public class CounterAggregator implements Closeable
+{
+	/* most counters sent in one counter_add_multi */
+	private static final int FLUSH_BATCH = 1024;
+
+	/* a cell that has been flushed and removed from the map; adds must find or make another */
+	private static final long RETIRED = Long.MIN_VALUE;
+
+	private static final class CounterKey
+	{
+		final int collection;
+		final Key key;
+		private final int hash;
+
+		CounterKey(final int collection, final Key key)
+		{
+			this.collection = collection;
+			this.key = key;
+			this.hash = 31 * collection + key.hashCode();
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return hash;
+		}
+
+		@Override
+		public boolean equals(final Object obj)
+		{
+			if (this == obj)
+				return true;
+			if (!(obj instanceof CounterKey))
+				return false;
+			final CounterKey other = (CounterKey) obj;
+			return collection == other.collection && hash == other.hash && key.equals(other.key);
+		}
+	}
+
+	private final Castle castle;
+	private final long flushIntervalMillis;
+	private final int maxPendingKeys;
+
+	/* the map's segments and each key's own cell spread the contention of concurrent adds */
+	private final ConcurrentMap<CounterKey, AtomicLong> pending = new ConcurrentHashMap<CounterKey, AtomicLong>();
+	private final AtomicInteger pendingKeys = new AtomicInteger();
+
+	/* deltas taken by the flush in progress, until castle has them; read by get() */
+	private volatile Map<CounterKey, Long> inFlight = Collections.emptyMap();
+
+	/* bumped as each flush starts and as it ends, so get() can tell if one overlapped it */
+	private final AtomicLong flushSequence = new AtomicLong();
+
+	private final Object flushLock = new Object();
+	private final Object wakeup = new Object();
+	private final Thread thread;
+	private volatile boolean closed = false;
+
+	public CounterAggregator(final Castle castle, final long flushIntervalMillis, final int maxPendingKeys)
+	{
+		if (flushIntervalMillis < 1)
+			throw new IllegalArgumentException("flushIntervalMillis must be >= 1");
+		if (maxPendingKeys < 1)
+			throw new IllegalArgumentException("maxPendingKeys must be >= 1");
+
+		this.castle = castle;
+		this.flushIntervalMillis = flushIntervalMillis;
+		this.maxPendingKeys = maxPendingKeys;
+
+		thread = new Thread("Castle counter aggregator")
+		{
+			@Override
+			public void run()
+			{
+				flushPeriodically();
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Adds delta to the counter at key, locally until the next flush. An add
+	 * that races with close() may land after close()'s last flush, in which
+	 * case it flushes the delta itself.
+	 */
+	public void add(final int collection, final Key key, final long delta)
+	{
+		if (closed)
+			throw new IllegalStateException("CounterAggregator has been closed");
+		if (delta == 0)
+			return;
+
+		add(new CounterKey(collection, key), delta);
+
+		/*
+		 * close() sets closed before its last flush reads the cells, and we read
+		 * closed after writing ours, so if we don't see closed that flush sees
+		 * our delta
+		 */
+		if (closed)
+		{
+			try
+			{
+				flush();
+			} catch (final IOException e)
+			{
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+
+	private void add(final CounterKey counter, final long delta)
+	{
+		while (true)
+		{
+			AtomicLong cell = pending.get(counter);
+			if (cell == null)
+			{
+				final AtomicLong created = new AtomicLong();
+				cell = pending.putIfAbsent(counter, created);
+				if (cell == null)
+				{
+					cell = created;
+					if (pendingKeys.incrementAndGet() == maxPendingKeys)
+						wakeFlusher();
+				}
+			}
+
+			final long value = cell.get();
+			if (value == RETIRED)
+			{
+				/* help the flush that retired it, then start again */
+				pending.remove(counter, cell);
+				continue;
+			}
+			if (cell.compareAndSet(value, value + delta))
+				return;
+		}
+	}
+
+	/**
+	 * The counter's value in castle, plus the deltas added here that castle
+	 * may not have yet. While a flush is in progress, a delta that castle has
+	 * just applied may be counted twice.
+	 */
+	public long get(final int collection, final Key key) throws IOException
+	{
+		final CounterKey counter = new CounterKey(collection, key);
+		long local;
+		while (true)
+		{
+			final long sequence = flushSequence.get();
+			local = 0;
+
+			/*
+			 * pending before inFlight: a flush puts a delta in inFlight before it
+			 * retires the cell, so a delta being flushed is counted twice
+			 * rather than missed
+			 */
+			final AtomicLong cell = pending.get(counter);
+			if (cell != null)
+			{
+				final long value = cell.get();
+				if (value != RETIRED)
+					local += value;
+			}
+			final Long sending = inFlight.get(counter);
+			if (sending != null)
+				local += sending;
+
+			/* a flush that started or ended between the reads may have moved the delta past both */
+			if (flushSequence.get() == sequence)
+				break;
+		}
+		/* last, so that a delta castle got before leaving inFlight is in castle's value */
+		return castle.counter_get(collection, key) + local;
+	}
+
+	/**
+	 * Sends every delta added so far, returning once castle has them. If a
+	 * batch fails, the deltas not known to be applied are kept for the next
+	 * flush and the error is thrown.
+	 */
+	public void flush() throws IOException
+	{
+		synchronized (flushLock)
+		{
+			flushSequence.incrementAndGet();
+			/* visible to get() before any delta leaves its cell */
+			final Map<CounterKey, Long> deltas = new ConcurrentHashMap<CounterKey, Long>();
+			inFlight = deltas;
+			try
+			{
+				for (final Map.Entry<CounterKey, AtomicLong> e : pending.entrySet())
+				{
+					take(deltas, e.getKey(), e.getValue());
+					pending.remove(e.getKey(), e.getValue());
+					pendingKeys.decrementAndGet();
+				}
+
+				send(deltas);
+			} finally
+			{
+				/* whatever is left was not sent; add it back for the next flush */
+				for (final Map.Entry<CounterKey, Long> e : deltas.entrySet())
+					add(e.getKey(), e.getValue());
+				inFlight = Collections.emptyMap();
+				flushSequence.incrementAndGet();
+			}
+		}
+	}
+
+	/*
+	 * Moves the delta in cell to deltas and retires the cell, so that later adds
+	 * make a new one. The delta is in deltas before the cell is retired, so
+	 * get() always finds it in one or the other. A counter may have had a
+	 * retired cell and a new one in the same flush, so deltas are summed.
+	 */
+	private static void take(final Map<CounterKey, Long> deltas, final CounterKey counter, final AtomicLong cell)
+	{
+		final Long before = deltas.get(counter);
+		final long base = before == null ? 0 : before;
+		while (true)
+		{
+			final long delta = cell.get();
+			if (delta == RETIRED)
+				return;
+
+			deltas.put(counter, base + delta);
+			if (cell.compareAndSet(delta, RETIRED))
+			{
+				if (base + delta == 0)
+					deltas.remove(counter);
+				return;
+			}
+		}
+	}
+
+	/*
+	 * Sends the deltas a collection and up to FLUSH_BATCH keys at a time,
+	 * removing each batch from deltas once castle has it.
+	 */
+	private void send(final Map<CounterKey, Long> deltas) throws IOException
+	{
+		final Map<Integer, List<CounterKey>> byCollection = new HashMap<Integer, List<CounterKey>>();
+		for (final CounterKey counter : deltas.keySet())
+		{
+			List<CounterKey> counters = byCollection.get(counter.collection);
+			if (counters == null)
+			{
+				counters = new ArrayList<CounterKey>();
+				byCollection.put(counter.collection, counters);
+			}
+			counters.add(counter);
+		}
+
+		for (final Map.Entry<Integer, List<CounterKey>> e : byCollection.entrySet())
+		{
+			final List<CounterKey> counters = e.getValue();
+			for (int i = 0; i < counters.size(); i += FLUSH_BATCH)
+			{
+				final List<CounterKey> batch = counters.subList(i, Math.min(i + FLUSH_BATCH, counters.size()));
+				final Map<Key, Long> adds = new HashMap<Key, Long>(2 * batch.size());
+				for (final CounterKey counter : batch)
+					adds.put(counter.key, deltas.get(counter));
+
+				castle.counter_add_multi(e.getKey(), adds);
+
+				for (final CounterKey counter : batch)
+					deltas.remove(counter);
+			}
+		}
+	}
+
+	private void wakeFlusher()
+	{
+		synchronized (wakeup)
+		{
+			wakeup.notify();
+		}
+	}
+
+	private void flushPeriodically()
+	{
+		/* after a failed flush, wait out the interval rather than retry at once */
+		boolean failed = false;
+		while (!closed)
+		{
+			synchronized (wakeup)
+			{
+				final long deadline = System.currentTimeMillis() + flushIntervalMillis;
+				long wait = flushIntervalMillis;
+				while (!closed && wait > 0 && (failed || pendingKeys.get() < maxPendingKeys))
+				{
+					try
+					{
+						wakeup.wait(wait);
+					} catch (final InterruptedException e)
+					{
+						// daemon; flush and keep going
+						break;
+					}
+					wait = deadline - System.currentTimeMillis();
+				}
+			}
+			if (closed)
+				break;
+
+			try
+			{
+				flush();
+				failed = false;
+			} catch (final Throwable t)
+			{
+				/* the deltas are kept, so the next flush tries them again */
+				failed = true;
+				System.out.println("Exception flushing counters");
+				t.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Stops the periodic flushes and flushes whatever is left.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		if (closed)
+			return;
+		closed = true;
+		wakeFlusher();
+		boolean interrupted = false;
+		while (true)
+		{
+			try
+			{
+				thread.join();
+				break;
+			} catch (final InterruptedException e)
+			{
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+
+		flush();
+	}
+}
@@ -9,13 +9,9 @@ public class CounterGetRequest extends GetRequest
 		super(key, collectionId, keyBuffer, valueBuffer);
 	}
 	
-	static private native void copy_to(long buffer, int index, int collectionId, ByteBuffer keyBuffer, int keyOffset,
-			int keyLength, ByteBuffer valueBuffer, int valueOffset, int valueLength);
-
 	@Override
-	protected void copy_to(long buffer, int index) throws CastleException
+	void encode(RequestEncoder encoder)
 	{
-		copy_to(buffer, index, collectionId, keyBuffer, keyBuffer.position(), keyLen, valueBuffer, valueBuffer.position(),
-				valueBuffer.remaining());
+		encode(encoder, RequestEncoder.COUNTER_GET);
 	}
 }
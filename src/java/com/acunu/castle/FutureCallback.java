@@ -0,0 +1,59 @@
+package com.acunu.castle;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A callback that completes a future with the result of its request. The
+ * result is read in call(), before any buffers collected by the callback are
+ * returned, so it must not refer to those buffers afterwards.
+ */
+abstract class FutureCallback<T> extends Callback
+{
+	/* -ENOENT; a get of a missing key, which completes normally with found false */
+	private static final int NOT_FOUND = -2;
+
+	final CompletableFuture<T> future = new CompletableFuture<T>();
+
+	private final String operation;
+
+	FutureCallback(final String operation)
+	{
+		this.operation = operation;
+	}
+
+	/*
+	 * Returns the result of a request that succeeded; may throw to fail the future.
+	 */
+	protected abstract T result(RequestResponse response) throws Exception;
+
+	@Override
+	protected void call(final RequestResponse response)
+	{
+		try
+		{
+			future.complete(result(response));
+		} catch (final Throwable t)
+		{
+			future.completeExceptionally(t);
+		}
+	}
+
+	@Override
+	protected void handleError(final int error)
+	{
+		if (error == NOT_FOUND)
+			call(response);
+		else
+			future.completeExceptionally(new CastleException(error, operation + " failed"));
+	}
+
+	/*
+	 * For a request that couldn't be sent: fails the future and returns the buffers.
+	 */
+	CompletableFuture<T> fail(final Throwable t)
+	{
+		cleanup();
+		future.completeExceptionally(t);
+		return future;
+	}
+}
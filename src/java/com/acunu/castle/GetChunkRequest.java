@@ -10,6 +10,10 @@ public final class GetChunkRequest extends Request
 	public final long token;
 	public final ByteBuffer chunkBuffer;
 
+	/* the buffer passed in and its position, which our slice starts at */
+	private final ByteBuffer chunkSource;
+	private final int chunkBase;
+
 	/**
 	 * chunkBuffer.position() MUST be page-aligned.
 	 */
@@ -21,13 +25,14 @@ public final class GetChunkRequest extends Request
 		 * the original buffer.
 		 */
 		this.chunkBuffer = chunkBuffer.slice();
+		this.chunkSource = chunkBuffer;
+		this.chunkBase = chunkBuffer.position();
 	}
 
-	static private native void copy_to(long buffer, int index, long token, ByteBuffer chunkBuffer, int chunkOffset, int chunkLength);
-
 	@Override
-	protected void copy_to(long buffer, int index) throws CastleException
+	void encode(RequestEncoder encoder)
 	{
-		copy_to(buffer, index, token, chunkBuffer, chunkBuffer.position(), chunkBuffer.remaining());
+		encoder.request(RequestEncoder.GET_CHUNK, 0, 0, token, 0);
+		encoder.region(0, chunkSource, chunkBase + chunkBuffer.position(), chunkBuffer.remaining());
 	}
 }
@@ -0,0 +1,126 @@
+package com.acunu.castle;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * One batch of a pass of Castle.getMultiAsync: a get per key, all reading into
+ * one pair of key and value buffers, each with its own callback so that each
+ * gets its own response. As in a pass of get_multi_kv, values that fit go
+ * into results, and those that didn't are added to next with their true
+ * length, or to big if they are longer than MAX_BUFFER_SIZE. The buffers are
+ * returned and the future completed once every get has completed.
+ */
+final class GetMultiBatch
+{
+	/* -ENOENT; the key has no value */
+	private static final int NOT_FOUND = -2;
+
+	final CompletableFuture<Void> future = new CompletableFuture<Void>();
+
+	private final BufferManager bufferManager;
+	private final List<Key> keys;
+	private final List<Castle.PendingGet> gets;
+	private final ByteBuffer[] buffers;
+	private final KeyValue[] results;
+	private final Queue<Castle.PendingGet> next;
+	private final Queue<Integer> big;
+
+	/* where each get's value starts in the value buffer */
+	private final int[] offsets;
+	private final AtomicInteger remaining;
+	private final AtomicInteger firstError = new AtomicInteger();
+	private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+	/*
+	 * buffers holds the keys of gets and then gets.get(i).size bytes for each value
+	 */
+	GetMultiBatch(final BufferManager bufferManager, final List<Key> keys, final List<Castle.PendingGet> gets,
+			final ByteBuffer[] buffers, final KeyValue[] results, final Queue<Castle.PendingGet> next,
+			final Queue<Integer> big)
+	{
+		this.bufferManager = bufferManager;
+		this.keys = keys;
+		this.gets = gets;
+		this.buffers = buffers;
+		this.results = results;
+		this.next = next;
+		this.big = big;
+		this.remaining = new AtomicInteger(gets.size());
+
+		offsets = new int[gets.size()];
+		for (int i = 1; i < offsets.length; ++i)
+			offsets[i] = offsets[i - 1] + gets.get(i - 1).size;
+	}
+
+	Callback callback(final int i)
+	{
+		final ByteBuffer values = buffers[1];
+		final Castle.PendingGet get = gets.get(i);
+		return new Callback()
+		{
+			@Override
+			protected void call(final RequestResponse response)
+			{
+				try
+				{
+					if (!response.found)
+						return;
+
+					if (response.length > Castle.MAX_BUFFER_SIZE)
+						big.add(get.index);
+					else if (response.length > get.size)
+						next.add(new Castle.PendingGet(get.index, (int) response.length));
+					else
+					{
+						final byte[] value = new byte[(int) response.length];
+						/* callbacks run concurrently, so each reads through its own view */
+						final ByteBuffer valueBuffer = values.duplicate();
+						valueBuffer.limit(valueBuffer.capacity()).position(offsets[i]);
+						valueBuffer.get(value);
+						results[get.index] = new KeyValue(keys.get(get.index), response.timestamp, value);
+					}
+				} catch (final Throwable t)
+				{
+					failure.compareAndSet(null, t);
+				} finally
+				{
+					completed();
+				}
+			}
+
+			@Override
+			protected void handleError(final int error)
+			{
+				if (error != NOT_FOUND)
+					firstError.compareAndSet(0, error);
+				completed();
+			}
+		};
+	}
+
+	private void completed()
+	{
+		if (remaining.decrementAndGet() > 0)
+			return;
+
+		try
+		{
+			bufferManager.put(buffers);
+		} catch (final IOException e)
+		{
+		}
+
+		if (failure.get() != null)
+			future.completeExceptionally(failure.get());
+		else if (firstError.get() != 0)
+			future.completeExceptionally(new CastleException(firstError.get(), "get_multi failed"));
+		else
+			future.complete(null);
+	}
+}
@@ -14,6 +14,12 @@ public class GetRequest extends Request
 	public final ByteBuffer valueBuffer;
 	public final int keyLen;
 
+	/* the buffers passed in and their positions, which our slices start at */
+	private final ByteBuffer keySource;
+	private final int keyBase;
+	private final ByteBuffer valueSource;
+	private final int valueBase;
+
 	public GetRequest(Key key, int collectionId, ByteBuffer keyBuffer, ByteBuffer valueBuffer)
 	{
 		this(collectionId, keyBuffer, copyKey(key, keyBuffer), valueBuffer);
@@ -29,15 +35,22 @@ public class GetRequest extends Request
 		 */
 		this.keyBuffer = keyBuffer.slice();
 		this.valueBuffer = valueBuffer.slice();
+		this.keySource = keyBuffer;
+		this.keyBase = keyBuffer.position();
+		this.valueSource = valueBuffer;
+		this.valueBase = valueBuffer.position();
 	}
 
-	static private native void copy_to(long buffer, int index, int collectionId, ByteBuffer keyBuffer, int keyOffset,
-			int keyLength, ByteBuffer valueBuffer, int valueOffset, int valueLength);
-
 	@Override
-	protected void copy_to(long buffer, int index) throws CastleException
+	void encode(RequestEncoder encoder)
+	{
+		encode(encoder, RequestEncoder.GET);
+	}
+
+	final void encode(RequestEncoder encoder, int type)
 	{
-		copy_to(buffer, index, collectionId, keyBuffer, keyBuffer.position(), keyLen, valueBuffer, valueBuffer.position(),
-				valueBuffer.remaining());
+		encoder.request(type, collectionId, 0, 0, 0);
+		encoder.region(0, keySource, keyBase + keyBuffer.position(), keyLen);
+		encoder.region(1, valueSource, valueBase + valueBuffer.position(), valueBuffer.remaining());
 	}
 }
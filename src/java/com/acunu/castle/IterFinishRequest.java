@@ -13,11 +13,9 @@ public final class IterFinishRequest extends Request
 		this.token = token;
 	}
 
-	static private native void copy_to(long buffer, int index, long token);
-
 	@Override
-	protected void copy_to(long buffer, int index) throws CastleException
+	void encode(RequestEncoder encoder)
 	{
-		copy_to(buffer, index, token);
+		encoder.request(RequestEncoder.ITER_FINISH, 0, 0, token, 0);
 	}
 }
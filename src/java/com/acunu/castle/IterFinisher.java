@@ -0,0 +1,41 @@
+package com.acunu.castle;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Finishes an iterator's token in Castle unless the iterator ran to the end.
+ * Kept apart from the iterator so that it can be run by the Reclaimer once
+ * the iterator itself is unreachable.
+ */
+final class IterFinisher implements Closeable
+{
+	private final Castle castle;
+	private final long token;
+
+	/* only ever set to false, so racing callbacks can't hurt */
+	volatile boolean hasNext;
+
+	IterFinisher(final Castle castle, final long token, final boolean hasNext)
+	{
+		this.castle = castle;
+		this.token = token;
+		this.hasNext = hasNext;
+	}
+
+	long getToken()
+	{
+		return token;
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		// only call iterfinish if we terminated early
+		if (hasNext)
+		{
+			hasNext = false;
+			castle.iterfinish(token);
+		}
+	}
+}
@@ -11,6 +11,10 @@ public final class IterNextRequest extends Request
 
 	public final ByteBuffer buffer;
 
+	/* the buffer passed in and its position, which our slice starts at */
+	private final ByteBuffer bufferSource;
+	private final int bufferBase;
+
 	public IterNextRequest(long token, ByteBuffer buffer)
 	{
 		this.token = token;
@@ -20,13 +24,14 @@ public final class IterNextRequest extends Request
 		 * the original buffer.
 		 */
 		this.buffer = buffer.slice();
+		this.bufferSource = buffer;
+		this.bufferBase = buffer.position();
 	}
 
-	static private native void copy_to(long buffer, int index, long token, ByteBuffer bbuffer, int bufferOffset, int bufferLength);
-
 	@Override
-	protected void copy_to(long target_buffer, int index) throws CastleException
+	void encode(RequestEncoder encoder)
 	{
-		copy_to(target_buffer, index, token, buffer, buffer.position(), buffer.remaining());
+		encoder.request(RequestEncoder.ITER_NEXT, 0, 0, token, 0);
+		encoder.region(0, bufferSource, bufferBase + buffer.position(), buffer.remaining());
 	}
 }
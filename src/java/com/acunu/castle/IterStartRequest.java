@@ -18,6 +18,14 @@ public final class IterStartRequest extends Request
         public final ByteBuffer buffer;
 	public final EnumSet<IterFlags> flags;
 
+	/* the buffers passed in and their positions, which our slices start at */
+	private final ByteBuffer startKeySource;
+	private final int startKeyBase;
+	private final ByteBuffer endKeySource;
+	private final int endKeyBase;
+	private final ByteBuffer bufferSource;
+	private final int bufferBase;
+
 	public enum IterFlags
 	{
 		NONE(1 << 0),         /* CASTLE_RING_FLAG_NONE            */
@@ -49,14 +57,16 @@ public final class IterStartRequest extends Request
 		this.endKeyBuffer = endKeyBuffer.slice();
 		this.buffer = buffer.slice();
 		this.flags = flags;
+		this.startKeySource = startKeyBuffer;
+		this.startKeyBase = startKeyBuffer.position();
+		this.endKeySource = endKeyBuffer;
+		this.endKeyBase = endKeyBuffer.position();
+		this.bufferSource = buffer;
+		this.bufferBase = buffer.position();
 	}
 
-	static private native void copy_to(long buffer, int index, int collectionId, ByteBuffer startKeyBuffer, int startKeyOffset,
-			int startKeyLength, ByteBuffer endKeyBuffer, int endKeyOffset, int endKeyLength, ByteBuffer bbuffer,
-                        int bufferOffset, int bufferLength, long flags);
-
 	@Override
-	protected void copy_to(long target_buffer, int index) throws CastleException
+	void encode(RequestEncoder encoder) throws CastleException
 	{
 		long flagValue = 0;
 		for (IterFlags flag : flags)
@@ -64,7 +74,9 @@ public final class IterStartRequest extends Request
 
 		int startKeyLength = startKey.copyToBuffer(startKeyBuffer);
 		int endKeyLength = endKey.copyToBuffer(endKeyBuffer);
-		copy_to(target_buffer, index, collectionId, startKeyBuffer, startKeyBuffer.position(), startKeyLength, endKeyBuffer,
-				endKeyBuffer.position(), endKeyLength, buffer, buffer.position(), buffer.remaining(), flagValue);
+		encoder.request(RequestEncoder.ITER_START, collectionId, 0, 0, flagValue);
+		encoder.region(0, startKeySource, startKeyBase + startKeyBuffer.position(), startKeyLength);
+		encoder.region(1, endKeySource, endKeyBase + endKeyBuffer.position(), endKeyLength);
+		encoder.region(2, bufferSource, bufferBase + buffer.position(), buffer.remaining());
 	}
 }
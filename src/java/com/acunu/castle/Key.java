@@ -65,6 +65,13 @@ public class Key implements Comparable<Key>, Cloneable {
 
 	public final byte[][] key;
 
+	/*
+	 * The packed length, or -1 until it is first asked for. setDimension
+	 * clears it; a dimension replaced through key directly after the key has
+	 * been measured leaves it stale.
+	 */
+	private int packedLength = -1;
+
 	@Deprecated
 	public static byte[][] parseKey(String s) {
 		if (!s.startsWith("[") || !s.endsWith("]"))
@@ -97,6 +104,15 @@ public class Key implements Comparable<Key>, Cloneable {
 		return key[i];
 	}
 
+	/**
+	 * Replaces dimension i. Use this rather than assigning to key, which
+	 * doesn't reset the cached packed length.
+	 */
+	public void setDimension(int i, byte[] dim) {
+		key[i] = dim;
+		packedLength = -1;
+	}
+
 	public String toString() {
 		return Arrays.deepToString(key);
 	}
@@ -173,16 +189,16 @@ public class Key implements Comparable<Key>, Cloneable {
 		return 0;
 	}
 
-	static private native int length(byte[][] key)
+	static native int length(byte[][] key)
 			throws ArrayIndexOutOfBoundsException;
 
 	/**
 	 * @return the length of the key inside castle, in bytes.
 	 * @throws IOException
-	 *             if castle objects to being asked for the length of the key.
+	 *             if the key is larger than MAX_KEY_SIZE.
 	 */
 	public int getPackedLength() throws IOException {
-		int length = length(key);
+		int length = cachedPackedLength();
 		if (length > MAX_KEY_SIZE)
 			throw new IOException("Keys cannot be larger than " + MAX_KEY_SIZE
 					+ " bytes");
@@ -191,12 +207,48 @@ public class Key implements Comparable<Key>, Cloneable {
 	}
 
 	/**
-	 * A cheaper call than getPackedLength
+	 * The same length as getPackedLength, without the check against
+	 * MAX_KEY_SIZE.
 	 * 
 	 * @return a length that is greater than or equal to the packed length
 	 */
 	public int getApproximateLength() {
-		return MAX_KEY_SIZE;
+		return cachedPackedLength();
+	}
+
+	/*
+	 * Packs key into the start of buffer as castle itself does, with the given
+	 * flag for each dimension, and returns the packed length. For
+	 * KeyPackingTest, which checks copyToBuffer against it byte for byte.
+	 */
+	static native int copy(byte[][] key, byte[] flags, ByteBuffer buffer)
+			throws CastleException;
+
+	/*
+	 * The Java computation is checked against castle's own when assertions are
+	 * enabled, and by KeyPackingTest. Racing threads compute the same value, so the field needs no
+	 * synchronisation.
+	 */
+	private int cachedPackedLength() {
+		int length = packedLength;
+		if (length < 0) {
+			length = packedLength(key);
+			assert length == length(key) : "packed length " + length
+					+ " differs from castle's " + length(key);
+			packedLength = length;
+		}
+		return length;
+	}
+
+	/*
+	 * The number of bytes copyToBuffer writes: a 16-byte header, a 4-byte
+	 * header for each dimension, and then the dimensions themselves.
+	 */
+	static int packedLength(byte[][] key) {
+		long length = 16 + 4L * key.length;
+		for (byte[] dim : key)
+			length += dim.length;
+		return (int) Math.min(length, Integer.MAX_VALUE);
 	}
 
 	public int copyToBuffer(ByteBuffer keyBuffer) throws CastleException {
@@ -249,6 +301,9 @@ public class Key implements Comparable<Key>, Cloneable {
 		return true;
 	}
 
+	/**
+	 * A deep copy, whose packed length is measured afresh.
+	 */
 	@Override
 	public Key clone() {
 		byte[][] newDims = key.clone();
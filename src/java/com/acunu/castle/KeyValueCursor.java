@@ -0,0 +1,374 @@
+package com.acunu.castle;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.EnumSet;
+
+import com.acunu.castle.IterStartRequest.IterFlags;
+
+/**
+ * A cursor over the entries of a range query, read in place in the iterator
+ * buffers Castle fills. Each call to next() moves to the next entry; its key
+ * dimensions and value can then be read as offsets into getBuffer(), and are
+ * only copied when asked for with getDimension(), getKey(), getValue() or
+ * getKeyValue().
+ *
+ * The offsets and the buffer are only valid until the next call to next():
+ * once the cursor moves past the last entry of a buffer, the buffer is
+ * refilled with the next entries, and once it moves past the last entry of
+ * the query, the buffer is returned to the pool. A cursor must be closed, in
+ * case it didn't reach the end, and is not thread-safe.
+ */
+public final class KeyValueCursor implements Closeable
+{
+	/* entry: next entry, key, value struct, each an address; then the timestamp */
+	private static final int ENTRY_NEXT = 0;
+	private static final int ENTRY_KEY = 8;
+	private static final int ENTRY_VALUE = 16;
+	private static final int ENTRY_TIMESTAMP = 24;
+
+	/* key: length, which excludes itself, number of dimensions, unused; then a header per dimension */
+	private static final int KEY_LENGTH = 0;
+	private static final int KEY_DIMENSIONS = 4;
+	private static final int KEY_HEADERS = 16;
+
+	/* value struct: length, type, 7 unused bytes, then the value's address */
+	private static final int VALUE_LENGTH = 0;
+	private static final int VALUE_TYPE = 8;
+	private static final int VALUE_ADDRESS = 16;
+
+	/* null for a cursor over a single buffer, which it doesn't own */
+	private final Castle castle;
+	private IterFinisher finisher;
+	private Reclaimer.Handle handle;
+
+	/* the buffer as leased, and a little-endian view of it to decode with */
+	private ByteBuffer iterBuffer;
+	private ByteBuffer buffer;
+	private ByteBuffer view;
+	private int base;
+	private long start;
+	private long nextEntry;
+	private long prevEntry;
+	private boolean hasMore;
+	private boolean closed;
+
+	/* the current entry, as indexes into buffer; key is -1 before the first entry */
+	private int key = -1;
+	private int keyEnd;
+	private int dimensions;
+	private long timestamp;
+	private boolean hasValue;
+	private long valueLength;
+	private KeyValueType valueType;
+	private int value;
+
+	KeyValueCursor(final Castle castle, final int collection, final Key keyStart, final Key keyFinish,
+			final int bufferSize, final EnumSet<IterFlags> flags) throws IOException
+	{
+		this.castle = castle;
+
+		final ByteBuffer iterBuffer = castle.getBufferManager().get(bufferSize);
+		boolean ok = false;
+		try
+		{
+			// Limit in case we were returned a bigger buffer than necessary
+			iterBuffer.limit(bufferSize);
+			final long token = castle.iterstart(collection, keyStart, keyFinish, flags, iterBuffer);
+			reset(iterBuffer, castle.iterBufferStart(iterBuffer));
+			finisher = new IterFinisher(castle, token, true);
+			handle = Reclaimer.register(this, "cursor on collection " + collection, finisher);
+			ok = true;
+		} finally
+		{
+			if (!ok)
+				castle.getBufferManager().put(iterBuffer);
+		}
+	}
+
+	/*
+	 * A cursor over the entries of one iterator buffer, whose pointers are
+	 * relative to start. The buffer stays the caller's.
+	 */
+	KeyValueCursor(final ByteBuffer buffer, final long start)
+	{
+		this.castle = null;
+		reset(buffer, start);
+	}
+
+	private void reset(final ByteBuffer buffer, final long start)
+	{
+		this.iterBuffer = buffer;
+		this.buffer = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		this.view = null;
+		this.base = buffer.position();
+		this.start = start;
+		this.nextEntry = start;
+		this.prevEntry = 0;
+		this.hasMore = true;
+		this.key = -1;
+	}
+
+	private int index(final long address)
+	{
+		return base + (int) (address - start);
+	}
+
+	/**
+	 * Moves to the next entry, fetching the next buffer from Castle if this
+	 * one has been read.
+	 *
+	 * @return false once there are no more entries
+	 */
+	public boolean next() throws IOException
+	{
+		if (closed)
+			return false;
+
+		while (!nextInBuffer())
+		{
+			key = -1;
+			if (castle == null)
+				return false;
+			if (!hasMore)
+			{
+				close();
+				return false;
+			}
+
+			castle.iternext(finisher.getToken(), iterBuffer);
+			reset(iterBuffer, castle.iterBufferStart(iterBuffer));
+		}
+		return true;
+	}
+
+	/*
+	 * Decodes the next entry of the current buffer, as far as its offsets.
+	 */
+	private boolean nextInBuffer()
+	{
+		if (nextEntry <= prevEntry)
+			return false;
+
+		final int entry = index(nextEntry);
+		prevEntry = nextEntry;
+		nextEntry = buffer.getLong(entry + ENTRY_NEXT);
+		final long keyAddress = buffer.getLong(entry + ENTRY_KEY);
+
+		// key is null should only be for an empty buffer returned from iter_start
+		if (keyAddress == 0)
+		{
+			assert nextEntry == 0;
+			finished();
+			return false;
+		}
+		if (nextEntry == 0)
+			finished();
+
+		key = index(keyAddress);
+		keyEnd = key + 4 + buffer.getInt(key + KEY_LENGTH);
+		dimensions = buffer.getInt(key + KEY_DIMENSIONS);
+		timestamp = buffer.getLong(entry + ENTRY_TIMESTAMP);
+
+		final long valueStruct = buffer.getLong(entry + ENTRY_VALUE);
+		hasValue = valueStruct != 0;
+		value = -1;
+		if (hasValue)
+		{
+			final int struct = index(valueStruct);
+			valueLength = buffer.getLong(struct + VALUE_LENGTH);
+			valueType = KeyValueType.valueOf(buffer.get(struct + VALUE_TYPE));
+			final long valueAddress = buffer.getLong(struct + VALUE_ADDRESS);
+			if (valueLength != 0 && valueAddress != 0
+					&& (valueType == KeyValueType.CASTLE_VALUE_TYPE_INLINE || valueType == KeyValueType.CASTLE_VALUE_TYPE_INLINE_COUNTER))
+				value = index(valueAddress);
+		}
+		return true;
+	}
+
+	/* Castle has no more buffers for this query */
+	private void finished()
+	{
+		hasMore = false;
+		if (finisher != null)
+		{
+			finisher.hasNext = false;
+			handle.forget();
+		}
+	}
+
+	private void checkEntry()
+	{
+		if (key < 0)
+			throw new IllegalStateException("No current entry");
+	}
+
+	/**
+	 * The buffer the current entry's offsets refer to, read-only. Valid until
+	 * the next call to next().
+	 */
+	public ByteBuffer getBuffer()
+	{
+		if (view == null)
+			view = buffer.asReadOnlyBuffer();
+		return view;
+	}
+
+	public int getDimensions()
+	{
+		checkEntry();
+		return dimensions;
+	}
+
+	/**
+	 * @return the offset in getBuffer() of dimension i of the current key
+	 */
+	public int getDimensionOffset(final int i)
+	{
+		checkEntry();
+		if (i < 0 || i >= dimensions)
+			throw new IndexOutOfBoundsException("dimension " + i + " of " + dimensions);
+		return key + (buffer.getInt(key + KEY_HEADERS + 4 * i) >> 8);
+	}
+
+	public int getDimensionLength(final int i)
+	{
+		final int end = i == dimensions - 1 ? keyEnd : getDimensionOffset(i + 1);
+		return end - getDimensionOffset(i);
+	}
+
+	/**
+	 * @return a copy of dimension i of the current key
+	 */
+	public byte[] getDimension(final int i)
+	{
+		return copy(getDimensionOffset(i), getDimensionLength(i));
+	}
+
+	/**
+	 * @return a copy of the current key
+	 */
+	public Key getKey()
+	{
+		checkEntry();
+		final byte[][] dims = new byte[dimensions][];
+		for (int i = 0; i < dimensions; ++i)
+			dims[i] = getDimension(i);
+		return new Key(dims);
+	}
+
+	public long getTimestamp()
+	{
+		checkEntry();
+		return timestamp;
+	}
+
+	/**
+	 * @return false if the entry was read without its value, with NO_VALUES
+	 */
+	public boolean hasValue()
+	{
+		checkEntry();
+		return hasValue;
+	}
+
+	public long getValueLength()
+	{
+		checkEntry();
+		return hasValue ? valueLength : 0;
+	}
+
+	public KeyValueType getValueType()
+	{
+		checkEntry();
+		return hasValue ? valueType : null;
+	}
+
+	/**
+	 * @return whether the value is in the buffer; values stored out of line
+	 *         must be fetched with a get
+	 */
+	public boolean hasInlineValue()
+	{
+		checkEntry();
+		return value >= 0;
+	}
+
+	/**
+	 * @return the offset in getBuffer() of the current value, whose length is
+	 *         getValueLength(), or -1 if it isn't inline
+	 */
+	public int getValueOffset()
+	{
+		checkEntry();
+		return value;
+	}
+
+	/**
+	 * @return a copy of the current value, or an empty array if it isn't inline
+	 */
+	public byte[] getValue()
+	{
+		checkEntry();
+		return value >= 0 ? copy(value, (int) valueLength) : new byte[0];
+	}
+
+	/**
+	 * @return a copy of the current entry, as the iterators return it
+	 */
+	public KeyValue getKeyValue()
+	{
+		final Key key = getKey();
+		if (!hasValue)
+		{
+			final KeyValue kv = new KeyValue(key);
+			kv.setTimestamp(timestamp);
+			return kv;
+		}
+
+		final KeyValue kv = new KeyValue(key, getValue(), valueLength);
+		kv.setType(valueType);
+		kv.setTimestamp(timestamp);
+		return kv;
+	}
+
+	/* whether castle has more entries after this buffer */
+	boolean hasMore()
+	{
+		return hasMore;
+	}
+
+	private byte[] copy(final int offset, final int length)
+	{
+		final byte[] bytes = new byte[length];
+		final ByteBuffer src = buffer.duplicate();
+		src.limit(offset + length).position(offset);
+		src.get(bytes);
+		return bytes;
+	}
+
+	/**
+	 * Finishes the query in Castle if it didn't run to the end, and returns the
+	 * buffer to the pool.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		if (closed)
+			return;
+		closed = true;
+		key = -1;
+		if (castle == null)
+			return;
+
+		try
+		{
+			handle.close();
+		} finally
+		{
+			castle.getBufferManager().put(iterBuffer);
+		}
+	}
+}
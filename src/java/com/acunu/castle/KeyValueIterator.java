@@ -183,9 +183,9 @@ public class KeyValueIterator implements CloseablePeekableIterator<KeyValue>
 			for (int j = 0; j < nextStartKeyDim; j++)
 			{
 				if (startKey.key[j].length == 0)
-					newMax.key[j] = new byte[]{0};
+					newMax.setDimension(j, new byte[]{0});
 				else
-					newMax.key[j] = startKey.key[j].clone();
+					newMax.setDimension(j, startKey.key[j].clone());
 			}
 
 			if (synchronous)
@@ -195,7 +195,7 @@ public class KeyValueIterator implements CloseablePeekableIterator<KeyValue>
 						numBuffers);
 			
 			/* Set up the start key for the next range query: */
-			startKey.key[nextStartKeyDim] = minKey.key[nextStartKeyDim].clone();
+			startKey.setDimension(nextStartKeyDim, minKey.key[nextStartKeyDim].clone());
 			--nextStartKeyDim;
 			if (nextStartKeyDim >= 0)
 			{
@@ -208,7 +208,7 @@ public class KeyValueIterator implements CloseablePeekableIterator<KeyValue>
 				byte[] plusEpsilon = new byte[startKey.key[nextStartKeyDim].length + 1];
 				System.arraycopy(startKey.key[nextStartKeyDim], 0, plusEpsilon, 0, startKey.key[nextStartKeyDim].length);
 				/* The last byte will be zero by default. */
-				startKey.key[nextStartKeyDim] = plusEpsilon;
+				startKey.setDimension(nextStartKeyDim, plusEpsilon);
 			}
 		}
 	}
@@ -242,12 +242,6 @@ public class KeyValueIterator implements CloseablePeekableIterator<KeyValue>
 		}
 	}
 
-	@Override
-	protected void finalize() throws Throwable
-	{
-		this.close();
-	}
-
 	@Override
 	public boolean hasNext()
 	{
@@ -0,0 +1,187 @@
+package com.acunu.castle;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Spliterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+import com.acunu.castle.IterStartRequest.IterFlags;
+
+/**
+ * A Spliterator over a slice, read with a KeyValueCursor that is only opened
+ * when the first entry is wanted. Until then, trySplit halves the slice on its
+ * first dimension, as ParallelScan does, so that each part is read through
+ * its own iterator token.
+ *
+ * The elements are the cursor itself, at each entry in turn: an action must
+ * read what it needs from it before it returns.
+ */
+final class KeyValueSpliterator implements Spliterator<KeyValueCursor>
+{
+	private final Castle castle;
+	private final int collection;
+	private final int bufferSize;
+	private final EnumSet<IterFlags> flags;
+
+	/* the cursors of every part of the original slice, for closing the stream */
+	private final Queue<KeyValueCursor> opened;
+
+	private Key minKey;
+	private final Key maxKey;
+	/* the first dimension this part stops before, or null if maxKey is inclusive */
+	private final byte[] exclude;
+
+	private long estimate;
+	private KeyValueCursor cursor;
+	private boolean done;
+
+	KeyValueSpliterator(final Castle castle, final int collection, final Slice slice, final int bufferSize,
+			final EnumSet<IterFlags> flags)
+	{
+		this(castle, collection, slice.minKey, slice.maxKey, null, bufferSize, flags,
+				new ConcurrentLinkedQueue<KeyValueCursor>(), Long.MAX_VALUE);
+	}
+
+	private KeyValueSpliterator(final Castle castle, final int collection, final Key minKey, final Key maxKey,
+			final byte[] exclude, final int bufferSize, final EnumSet<IterFlags> flags,
+			final Queue<KeyValueCursor> opened, final long estimate)
+	{
+		if (minKey.getDimensions() != maxKey.getDimensions())
+			throw new Key.MismatchedDimensionsException();
+
+		this.castle = castle;
+		this.collection = collection;
+		this.minKey = minKey;
+		this.maxKey = maxKey;
+		this.exclude = exclude;
+		this.bufferSize = bufferSize;
+		this.flags = flags;
+		this.opened = opened;
+		this.estimate = estimate;
+	}
+
+	/*
+	 * Returns the first half of the slice and keeps the second, or null if the
+	 * slice has been started or can't be split further.
+	 */
+	@Override
+	public Spliterator<KeyValueCursor> trySplit()
+	{
+		if (cursor != null || done)
+			return null;
+
+		final List<byte[]> splits = ParallelScan.splitPoints(minKey.key[0],
+				exclude != null ? exclude : maxKey.key[0], 2);
+		if (splits.isEmpty())
+			return null;
+		final byte[] split = splits.get(0);
+
+		final Key firstMax = maxKey.clone();
+		firstMax.setDimension(0, split.clone());
+		estimate >>>= 1;
+		final KeyValueSpliterator first = new KeyValueSpliterator(castle, collection, minKey, firstMax, split,
+				bufferSize, flags, opened, estimate);
+
+		minKey = minKey.clone();
+		minKey.setDimension(0, split.clone());
+		return first;
+	}
+
+	@Override
+	public boolean tryAdvance(final Consumer<? super KeyValueCursor> action)
+	{
+		if (done)
+			return false;
+
+		try
+		{
+			if (cursor == null)
+			{
+				cursor = new KeyValueCursor(castle, collection, minKey, maxKey, bufferSize, flags);
+				opened.add(cursor);
+			}
+
+			if (!cursor.next() || (exclude != null && firstDimensionIs(cursor, exclude)))
+			{
+				/* the excluded keys come last, so this part is finished */
+				finish();
+				return false;
+			}
+		} catch (final IOException e)
+		{
+			finish();
+			throw new UncheckedIOException(e);
+		}
+
+		action.accept(cursor);
+		return true;
+	}
+
+	private static boolean firstDimensionIs(final KeyValueCursor cursor, final byte[] dim)
+	{
+		if (cursor.getDimensionLength(0) != dim.length)
+			return false;
+		final ByteBuffer buffer = cursor.getBuffer();
+		final int offset = cursor.getDimensionOffset(0);
+		for (int i = 0; i < dim.length; ++i)
+			if (buffer.get(offset + i) != dim[i])
+				return false;
+		return true;
+	}
+
+	private void finish()
+	{
+		done = true;
+		if (cursor != null)
+		{
+			closeQuietly(cursor);
+			opened.remove(cursor);
+		}
+	}
+
+	@Override
+	public long estimateSize()
+	{
+		return done ? 0 : estimate;
+	}
+
+	@Override
+	public int characteristics()
+	{
+		return ORDERED | NONNULL;
+	}
+
+	/*
+	 * Closes the cursors of any parts that weren't read to the end; for the
+	 * stream's onClose.
+	 */
+	Runnable closer()
+	{
+		return new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				KeyValueCursor c;
+				while ((c = opened.poll()) != null)
+					closeQuietly(c);
+			}
+		};
+	}
+
+	private static void closeQuietly(final Closeable c)
+	{
+		try
+		{
+			c.close();
+		} catch (final IOException e)
+		{
+		}
+	}
+}
@@ -0,0 +1,370 @@
+package com.acunu.castle;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import com.acunu.castle.IterStartRequest.IterFlags;
+
+/**
+ * A range query split on the first key dimension into partitions, each read
+ * by its own thread through its own iterator token. The partitions are
+ * consecutive ranges of the first dimension, so reading them one after
+ * another gives the keys in order; each partition's thread reads ahead into a
+ * bounded queue while the consumer is still on an earlier one. Unordered, the
+ * batches of every partition go into one shared queue and are returned as
+ * they arrive.
+ *
+ * The split points are spread evenly over the byte values of the first
+ * dimension between minKey and maxKey, so keys that cluster in that space,
+ * such as text, spread unevenly over the partitions.
+ *
+ * A scan that becomes unreachable without being closed is stopped by the
+ * Reclaimer, as iterators are: the partitions' threads don't refer to the
+ * scan, only to what they share with it.
+ */
+public class ParallelScan implements CloseablePeekableIterator<KeyValue>
+{
+	/* batches each partition may read ahead of the consumer */
+	private static final int QUEUE_DEPTH = 4;
+
+	/* bytes of the split points beyond the common prefix of the bounds */
+	private static final int SPLIT_PRECISION = 4;
+
+	/* a batch, the end of a partition, or its failure */
+	private static final class Batch
+	{
+		final List<KeyValue> kvs;
+		final Throwable error;
+
+		Batch(final List<KeyValue> kvs, final Throwable error)
+		{
+			this.kvs = kvs;
+			this.error = error;
+		}
+	}
+
+	private static final Batch END = new Batch(null, null);
+
+	/*
+	 * The partitions' threads and whether they should stop; closing it stops
+	 * them. Kept apart from the scan so that the Reclaimer can close it once
+	 * the scan itself is unreachable.
+	 */
+	private static final class Readers implements Closeable
+	{
+		final List<Thread> threads = new ArrayList<Thread>();
+		volatile boolean closed = false;
+
+		@Override
+		public void close()
+		{
+			closed = true;
+			for (final Thread thread : threads)
+				thread.interrupt();
+		}
+	}
+
+	private final boolean ordered;
+	private final List<BlockingQueue<Batch>> queues = new ArrayList<BlockingQueue<Batch>>();
+	private final Readers readers = new Readers();
+	private final Reclaimer.Handle handle;
+
+	/* ordered: the partition being read; unordered: how many partitions have ended */
+	private int current = 0;
+	private Iterator<KeyValue> batchIterator = Collections.<KeyValue> emptyList().iterator();
+	private KeyValue peekValue = null;
+	private volatile boolean closed = false;
+
+	ParallelScan(final Castle castle, final int collection, final Key minKey, final Key maxKey, final int partitions,
+			final boolean ordered, final int bufferSize, final EnumSet<IterFlags> flags) throws IOException
+	{
+		if (partitions < 1)
+			throw new IllegalArgumentException("partitions must be >= 1");
+		if (minKey.getDimensions() != maxKey.getDimensions())
+			throw new Key.MismatchedDimensionsException();
+
+		this.ordered = ordered;
+
+		final List<byte[]> splits = splitPoints(minKey.key[0], maxKey.key[0], partitions);
+		final int n = splits.size() + 1;
+		if (!ordered)
+			queues.add(new ArrayBlockingQueue<Batch>(n * QUEUE_DEPTH));
+
+		for (int i = 0; i < n; ++i)
+		{
+			final Key start = minKey.clone();
+			final Key finish = maxKey.clone();
+			if (i > 0)
+				start.setDimension(0, splits.get(i - 1).clone());
+			/* the finish is inclusive, so keys on the next split point are dropped here */
+			final byte[] exclude = i < n - 1 ? splits.get(i) : null;
+			if (exclude != null)
+				finish.setDimension(0, exclude.clone());
+
+			if (ordered)
+				queues.add(new ArrayBlockingQueue<Batch>(QUEUE_DEPTH));
+			final BlockingQueue<Batch> queue = queues.get(ordered ? i : 0);
+
+			final Thread thread = new Thread(new Partition(castle, collection, start, finish, exclude, bufferSize,
+					flags, queue, readers), "Castle scan of collection " + collection + " partition " + i);
+			thread.setDaemon(true);
+			readers.threads.add(thread);
+		}
+
+		handle = Reclaimer.register(this, "parallel scan of collection " + collection, readers);
+		for (final Thread thread : readers.threads)
+			thread.start();
+	}
+
+	/*
+	 * Up to partitions - 1 split points strictly between min and max, in
+	 * order. An empty bound is infinite.
+	 */
+	static List<byte[]> splitPoints(final byte[] min, final byte[] max, final int partitions)
+	{
+		int prefix = 0;
+		while (prefix < min.length && prefix < max.length && min[prefix] == max[prefix])
+			++prefix;
+		final int length = prefix + SPLIT_PRECISION;
+
+		final BigInteger low = new BigInteger(1, Arrays.copyOf(min, length));
+		final BigInteger high;
+		if (max.length == 0)
+		{
+			final byte[] top = new byte[length];
+			Arrays.fill(top, (byte) 0xFF);
+			high = new BigInteger(1, top);
+		} else
+			high = new BigInteger(1, Arrays.copyOf(max, length));
+
+		final List<byte[]> splits = new ArrayList<byte[]>();
+		final BigInteger range = high.subtract(low);
+		for (int i = 1; i < partitions; ++i)
+		{
+			final BigInteger point = low.add(range.multiply(BigInteger.valueOf(i)).divide(BigInteger.valueOf(partitions)));
+			final byte[] split = toBytes(point, length);
+			/* keep only points that are strictly increasing and inside the bounds */
+			if (Key.compareByteArrays(split, min) <= 0)
+				continue;
+			if (max.length != 0 && Key.compareByteArrays(split, max) >= 0)
+				continue;
+			if (!splits.isEmpty() && Key.compareByteArrays(split, splits.get(splits.size() - 1)) <= 0)
+				continue;
+			splits.add(split);
+		}
+		return splits;
+	}
+
+	/* the big-endian unsigned value in exactly length bytes */
+	private static byte[] toBytes(final BigInteger value, final int length)
+	{
+		final byte[] bytes = value.toByteArray();
+		final byte[] result = new byte[length];
+		final int n = Math.min(bytes.length, length);
+		System.arraycopy(bytes, bytes.length - n, result, length - n, n);
+		return result;
+	}
+
+	/*
+	 * Reads one partition into its queue. Refers only to what it needs, and
+	 * not to the scan, so that an abandoned scan can be reclaimed.
+	 */
+	private static final class Partition implements Runnable
+	{
+		private final Castle castle;
+		private final int collection;
+		private final Key start;
+		private final Key finish;
+		/* the first dimension this partition stops before, or null */
+		private final byte[] exclude;
+		private final int bufferSize;
+		private final EnumSet<IterFlags> flags;
+		private final BlockingQueue<Batch> queue;
+		private final Readers readers;
+
+		Partition(final Castle castle, final int collection, final Key start, final Key finish, final byte[] exclude,
+				final int bufferSize, final EnumSet<IterFlags> flags, final BlockingQueue<Batch> queue,
+				final Readers readers)
+		{
+			this.castle = castle;
+			this.collection = collection;
+			this.start = start;
+			this.finish = finish;
+			this.exclude = exclude;
+			this.bufferSize = bufferSize;
+			this.flags = flags;
+			this.queue = queue;
+			this.readers = readers;
+		}
+
+		@Override
+		public void run()
+		{
+			Batch last = END;
+			try
+			{
+				final IterBufferIterator iter = new SyncIterBufferIterator(castle, collection, start, finish, flags,
+						bufferSize);
+				try
+				{
+					while (!readers.closed && iter.hasNext())
+					{
+						List<KeyValue> kvs = iter.next();
+						if (exclude != null)
+							kvs = withoutFirstDimension(kvs, exclude);
+						if (!kvs.isEmpty())
+							queue.put(new Batch(kvs, null));
+					}
+				} finally
+				{
+					iter.close();
+				}
+			} catch (final InterruptedException e)
+			{
+				/* closed */
+				return;
+			} catch (final Throwable t)
+			{
+				last = new Batch(null, t);
+			}
+
+			while (!readers.closed)
+			{
+				try
+				{
+					queue.put(last);
+					return;
+				} catch (final InterruptedException e)
+				{
+					// only close() interrupts us
+				}
+			}
+		}
+	}
+
+	/* kvs without the keys whose first dimension is dim; they come last in a partition */
+	private static List<KeyValue> withoutFirstDimension(final List<KeyValue> kvs, final byte[] dim)
+	{
+		int n = kvs.size();
+		while (n > 0 && Arrays.equals(kvs.get(n - 1).getKey().key[0], dim))
+			--n;
+		return n == kvs.size() ? kvs : kvs.subList(0, n);
+	}
+
+	@Override
+	public boolean hasNext()
+	{
+		if (peekValue != null)
+			return true;
+
+		while (!batchIterator.hasNext())
+		{
+			if (closed)
+				return false;
+
+			final Batch batch = take();
+			if (batch == END)
+			{
+				++current;
+				if (current == readers.threads.size())
+				{
+					closeQuietly();
+					return false;
+				}
+				continue;
+			}
+			if (batch.error != null)
+			{
+				closeQuietly();
+				throw new RuntimeException(batch.error);
+			}
+			batchIterator = batch.kvs.iterator();
+		}
+		return true;
+	}
+
+	private Batch take()
+	{
+		final BlockingQueue<Batch> queue = queues.get(ordered ? current : 0);
+		boolean interrupted = false;
+		try
+		{
+			while (true)
+			{
+				try
+				{
+					return queue.take();
+				} catch (final InterruptedException e)
+				{
+					interrupted = true;
+				}
+			}
+		} finally
+		{
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public KeyValue next() throws NoSuchElementException
+	{
+		if (!hasNext())
+			throw new NoSuchElementException();
+
+		if (peekValue != null)
+		{
+			final KeyValue kv = peekValue;
+			peekValue = null;
+			return kv;
+		}
+		return batchIterator.next();
+	}
+
+	@Override
+	public KeyValue peek() throws NoSuchElementException
+	{
+		if (peekValue == null)
+			peekValue = next();
+		return peekValue;
+	}
+
+	@Override
+	public void remove()
+	{
+		throw new UnsupportedOperationException();
+	}
+
+	private void closeQuietly()
+	{
+		try
+		{
+			close();
+		} catch (final IOException e)
+		{
+		}
+	}
+
+	/**
+	 * Stops the partitions' threads, which finish their iterators in Castle.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		if (closed)
+			return;
+		closed = true;
+		batchIterator = Collections.<KeyValue> emptyList().iterator();
+		handle.close();
+	}
+}
@@ -6,6 +6,8 @@ public class Pool<T>
 {
 	private ConcurrentLinkedQueue<T> objects;
 	private Factory<T> fact;
+	private final int size;
+	private final PoolStats stats = new PoolStats();
 	
 	public static interface Factory<E>
 	{
@@ -16,6 +18,7 @@ public class Pool<T>
 	public Pool(int size, Factory<T> fact)
 	{
 		this.fact = fact;
+		this.size = size;
 		objects = new ConcurrentLinkedQueue<T>();
 		for (int i = 0; i < size; ++i)
 			objects.offer(fact.create(this));
@@ -28,21 +31,46 @@ public class Pool<T>
 			fact.destroy(obj);
 	}
 	
+	public int getSize()
+	{
+		return size;
+	}
+
+	public int getFree()
+	{
+		return objects.size();
+	}
+
+	PoolStats getStats()
+	{
+		return stats;
+	}
+
 	public T tryLease()
 	{
-		return objects.poll();
+		final T obj = objects.poll();
+		if (obj != null)
+			stats.recordHit();
+		else
+			stats.recordMiss();
+		return obj;
 	}
 
 	public T lease() throws InterruptedException
 	{
 		T obj = objects.poll();
 		if (obj != null)
+		{
+			stats.recordHit();
 			return obj;
+		}
+		final long start = System.nanoTime();
 		synchronized (objects)
 		{
 			while (null == (obj = objects.poll()))
 				objects.wait();
 		}
+		stats.recordWait(System.nanoTime() - start);
 		return obj;
 	}
 
@@ -0,0 +1,162 @@
+package com.acunu.castle;
+
+import java.beans.ConstructorProperties;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters for one pool: a BufferManager size class or the request-block pool.
+ *
+ * A lease is a hit if the pool had something free, a miss if something had
+ * to be allocated (or, for pools that can't allocate, the caller went without),
+ * and a wait if the caller blocked until something was returned. Waits are
+ * also recorded in a histogram whose bucket i counts waits of less than 2^i
+ * microseconds (and at least 2^(i-1), for i > 0); the last bucket takes
+ * everything longer.
+ */
+public final class PoolStats
+{
+	public static final int HISTOGRAM_BUCKETS = 32;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder waits = new LongAdder();
+	private final LongAdder waitNanos = new LongAdder();
+	private final LongAdder destroys = new LongAdder();
+	private final AtomicLongArray waitHistogram = new AtomicLongArray(HISTOGRAM_BUCKETS);
+
+	void recordHit()
+	{
+		hits.increment();
+	}
+
+	void recordMiss()
+	{
+		misses.increment();
+	}
+
+	void recordDestroy()
+	{
+		destroys.increment();
+	}
+
+	/*
+	 * records a lease that blocked for nanos before it was served
+	 */
+	void recordWait(final long nanos)
+	{
+		waits.increment();
+		waitNanos.add(nanos);
+
+		final long micros = nanos / 1000;
+		final int bucket = micros == 0 ? 0 : 64 - Long.numberOfLeadingZeros(micros);
+		waitHistogram.incrementAndGet(Math.min(bucket, HISTOGRAM_BUCKETS - 1));
+	}
+
+	/*
+	 * capacity and free are the pool's current gauges; -1 if it has none
+	 */
+	Snapshot snapshot(final String name, final int size, final int capacity, final int free)
+	{
+		final long[] histogram = new long[HISTOGRAM_BUCKETS];
+		for (int i = 0; i < HISTOGRAM_BUCKETS; ++i)
+			histogram[i] = waitHistogram.get(i);
+
+		return new Snapshot(name, size, capacity, free, hits.sum(), misses.sum(), waits.sum(), waitNanos.sum(),
+				destroys.sum(), histogram);
+	}
+
+	/**
+	 * The state of a pool at one instant. Counters are cumulative since the
+	 * pool was created; take the difference of two snapshots for rates.
+	 */
+	public static final class Snapshot
+	{
+		private final String name;
+		private final int size;
+		private final int capacity;
+		private final int free;
+		private final long hits;
+		private final long misses;
+		private final long waits;
+		private final long waitNanos;
+		private final long destroys;
+		private final long[] waitHistogram;
+
+		@ConstructorProperties({ "name", "size", "capacity", "free", "hits", "misses", "waits", "waitNanos",
+				"destroys", "waitHistogram" })
+		public Snapshot(final String name, final int size, final int capacity, final int free, final long hits,
+				final long misses, final long waits, final long waitNanos, final long destroys,
+				final long[] waitHistogram)
+		{
+			this.name = name;
+			this.size = size;
+			this.capacity = capacity;
+			this.free = free;
+			this.hits = hits;
+			this.misses = misses;
+			this.waits = waits;
+			this.waitNanos = waitNanos;
+			this.destroys = destroys;
+			this.waitHistogram = waitHistogram.clone();
+		}
+
+		public String getName()
+		{
+			return name;
+		}
+
+		/** size in bytes of a buffer, or in requests of a request block */
+		public int getSize()
+		{
+			return size;
+		}
+
+		public int getCapacity()
+		{
+			return capacity;
+		}
+
+		public int getFree()
+		{
+			return free;
+		}
+
+		public long getHits()
+		{
+			return hits;
+		}
+
+		public long getMisses()
+		{
+			return misses;
+		}
+
+		public long getWaits()
+		{
+			return waits;
+		}
+
+		public long getWaitNanos()
+		{
+			return waitNanos;
+		}
+
+		public long getDestroys()
+		{
+			return destroys;
+		}
+
+		public long[] getWaitHistogram()
+		{
+			return waitHistogram.clone();
+		}
+
+		@Override
+		public String toString()
+		{
+			return name + ": size=" + size + " capacity=" + capacity + " free=" + free + " hits=" + hits
+					+ " misses=" + misses + " waits=" + waits + " waitNanos=" + waitNanos + " destroys=" + destroys;
+		}
+	}
+}
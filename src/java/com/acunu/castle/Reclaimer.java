@@ -0,0 +1,131 @@
+package com.acunu.castle;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Releases the resources of objects that became unreachable without being
+ * closed, in place of finalize(). An object registers itself along with a
+ * cleanup action that must not refer back to it; closing the returned handle
+ * runs the action at once, and forgetting the handle drops the registration.
+ * If the object is collected while still registered, a daemon thread reports
+ * the leak and runs the action.
+ *
+ * Nothing in this package has a finalizer any more, so a weak reference is
+ * enqueued at the same point a phantom one would be; weak references let
+ * BufferManager find the handle for a buffer that is being returned.
+ *
+ * Setting the system property com.acunu.castle.leakDetection to true also
+ * tracks leased buffers and request callbacks, which aren't registered by
+ * default because they are created for every request, and records where each
+ * leaked object was registered.
+ */
+final class Reclaimer
+{
+	static final boolean LEAK_DETECTION = Boolean.getBoolean("com.acunu.castle.leakDetection");
+
+	private static final ReferenceQueue<Object> queue = new ReferenceQueue<Object>();
+
+	/* handles must stay reachable until they are enqueued */
+	private static final Set<Handle> registered = Collections.newSetFromMap(new ConcurrentHashMap<Handle, Boolean>());
+
+	static
+	{
+		final Thread thread = new Thread("Castle reclaimer")
+		{
+			@Override
+			public void run()
+			{
+				while (true)
+				{
+					try
+					{
+						((Handle) queue.remove()).reclaim();
+					} catch (final InterruptedException e)
+					{
+						// daemon; keep going
+					}
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	static final class Handle extends WeakReference<Object>
+	{
+		private final String description;
+		private final Closeable cleanup;
+		private final Throwable registeredAt;
+
+		private Handle(final Object referent, final String description, final Closeable cleanup)
+		{
+			super(referent, queue);
+			this.description = description;
+			this.cleanup = cleanup;
+			this.registeredAt = LEAK_DETECTION ? new Throwable("Registered here") : null;
+		}
+
+		/*
+		 * The explicit path: runs the cleanup action unless it has already run.
+		 */
+		void close() throws IOException
+		{
+			if (registered.remove(this))
+			{
+				clear();
+				if (cleanup != null)
+					cleanup.close();
+			}
+		}
+
+		/*
+		 * Drops the registration without running the cleanup action.
+		 */
+		void forget()
+		{
+			if (registered.remove(this))
+				clear();
+		}
+
+		private void reclaim()
+		{
+			if (!registered.remove(this))
+				return;
+
+			System.out.println("Castle: " + description + " was not closed before it became unreachable");
+			if (registeredAt != null)
+				registeredAt.printStackTrace(System.out);
+
+			if (cleanup == null)
+				return;
+			try
+			{
+				cleanup.close();
+			} catch (final Throwable t)
+			{
+				System.out.println("Unable to reclaim " + description);
+				t.printStackTrace();
+			}
+		}
+	}
+
+	private Reclaimer()
+	{
+	}
+
+	/*
+	 * cleanup may be null if there is nothing to release and only the leak should be reported
+	 */
+	static Handle register(final Object referent, final String description, final Closeable cleanup)
+	{
+		final Handle handle = new Handle(referent, description, cleanup);
+		registered.add(handle);
+		return handle;
+	}
+}
@@ -14,6 +14,10 @@ public final class RemoveRequest extends Request
 	
 	public final Long timestamp;
 
+	/* the buffer passed in and its position, which our slice starts at */
+	private final ByteBuffer keySource;
+	private final int keyBase;
+
 	public RemoveRequest(Key key, int collectionId, ByteBuffer keyBuffer, Long timestamp)
 	{
 		this.key = key;
@@ -25,18 +29,16 @@ public final class RemoveRequest extends Request
 		 */
 		this.keyBuffer = keyBuffer.slice();
 		this.timestamp = timestamp;
+		this.keySource = keyBuffer;
+		this.keyBase = keyBuffer.position();
 	}
 
-	static private native void copy_to(
-			long buffer, int index, int collectionId, ByteBuffer keyBuffer, int keyOffset, int keyLength,
-			long timestamp, boolean useTimestamp
-	);
-
 	@Override
-	protected void copy_to(long buffer, int index) throws CastleException
+	void encode(RequestEncoder encoder) throws CastleException
 	{
 		int keyLength = key.copyToBuffer(keyBuffer);
-		copy_to(buffer, index, collectionId, keyBuffer, keyBuffer.position(), keyLength, 
-				timestamp == null ? 0 : timestamp, timestamp != null);
+		encoder.request(RequestEncoder.REMOVE, collectionId, timestamp == null ? 0 : RequestEncoder.FLAG_TIMESTAMP, 0,
+				timestamp == null ? 0 : timestamp);
+		encoder.region(0, keySource, keyBase + keyBuffer.position(), keyLength);
 	}
 }
@@ -14,6 +14,12 @@ public final class ReplaceRequest extends Request
 	public final ByteBuffer valueBuffer;
 	
 	public final Long timestamp;
+
+	/* the buffers passed in and their positions, which our slices start at */
+	private final ByteBuffer keySource;
+	private final int keyBase;
+	private final ByteBuffer valueSource;
+	private final int valueBase;
 	
 	/**
 	 * @param keyBuffer
@@ -47,14 +53,18 @@ public final class ReplaceRequest extends Request
 		this.keyBuffer = keyBuffer.slice();
 		this.valueBuffer = valueBuffer.slice();
 		this.timestamp = timestamp;
+		this.keySource = keyBuffer;
+		this.keyBase = keyBuffer.position();
+		this.valueSource = valueBuffer;
+		this.valueBase = valueBuffer.position();
 	}
 
-	static private native void copy_to(long buffer, int index, int collectionId, ByteBuffer keyBuffer, int keyOffset,
-			int keyLength, ByteBuffer valueBuffer, int valueOffset, int valueLength, long timestamp, boolean useTimestamp);
-
-	protected void copy_to(long buffer, int index) throws CastleException
+	@Override
+	void encode(RequestEncoder encoder)
 	{
-		copy_to(buffer, index, collectionId, keyBuffer, keyBuffer.position(), keyLength, valueBuffer, valueBuffer.position(),
-				valueBuffer.remaining(), timestamp == null ? 0 : timestamp, timestamp != null);
+		encoder.request(RequestEncoder.REPLACE, collectionId, timestamp == null ? 0 : RequestEncoder.FLAG_TIMESTAMP, 0,
+				timestamp == null ? 0 : timestamp);
+		encoder.region(0, keySource, keyBase + keyBuffer.position(), keyLength);
+		encoder.region(1, valueSource, valueBase + valueBuffer.position(), valueBuffer.remaining());
 	}
 }
@@ -18,6 +18,12 @@ abstract class Request
 	public static native long alloc(int num);
 	public static native void free(long reqs);
 
+	/*
+	 * Prepares count castle_requests in reqs from their descriptors; see RequestEncoder
+	 */
+	static native void prepare(long reqs, ByteBuffer descriptors, int count, ByteBuffer[] buffers, int numBuffers)
+			throws CastleException;
+
 	protected static int copyKey(Key key, ByteBuffer buffer)
 	{
 		try
@@ -29,5 +35,10 @@ abstract class Request
 		}
 	}
 
-    abstract void copy_to(long buffer, int index) throws CastleException;
+	/*
+	 * Appends this request's descriptor to the encoder. Regions are given relative
+	 * to the buffer the caller passed in rather than to our slice of it, so that
+	 * requests sharing a buffer share an entry in the encoder's buffer table.
+	 */
+	abstract void encode(RequestEncoder encoder) throws CastleException;
 }
@@ -0,0 +1,95 @@
+package com.acunu.castle;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A native block of castle_requests, together with a direct buffer that the
+ * blocking calls fill with one packed response per request. Reading the
+ * responses from here means a blocking call allocates nothing in the JNI layer.
+ * Each block also keeps the encoder its requests are prepared with.
+ *
+ * The packed layout must match packed_response in CastleImpl.c.
+ */
+final class RequestBlock
+{
+	static final int RESPONSE_SIZE = 32;
+
+	private static final int ERR_OFFSET = 0;
+	private static final int FOUND_OFFSET = 4;
+	private static final int LENGTH_OFFSET = 8;
+	private static final int TOKEN_OFFSET = 16;
+	private static final int TIMESTAMP_OFFSET = 24;
+
+	final long reqs;
+	final int capacity;
+
+	/* grown on demand; most blocks only ever carry single requests */
+	private ByteBuffer responses;
+	private final RequestEncoder encoder = new RequestEncoder(1);
+
+	RequestBlock(final int capacity)
+	{
+		this.capacity = capacity;
+		this.reqs = Request.alloc(capacity);
+		this.responses = allocate(1);
+	}
+
+	private static ByteBuffer allocate(final int num)
+	{
+		return ByteBuffer.allocateDirect(num * RESPONSE_SIZE).order(ByteOrder.nativeOrder());
+	}
+
+	void free()
+	{
+		Request.free(reqs);
+	}
+
+	/*
+	 * prepares the requests in this block, in a single native call
+	 */
+	void prepare(final Request... requests) throws CastleException
+	{
+		encoder.prepare(reqs, requests);
+	}
+
+	/*
+	 * returns the response buffer, large enough for num responses
+	 */
+	ByteBuffer responses(final int num)
+	{
+		if (responses.capacity() < num * RESPONSE_SIZE)
+			responses = allocate(num);
+		return responses;
+	}
+
+	int err(final int i)
+	{
+		return responses.getInt(i * RESPONSE_SIZE + ERR_OFFSET);
+	}
+
+	boolean found(final int i)
+	{
+		return responses.getInt(i * RESPONSE_SIZE + FOUND_OFFSET) != 0;
+	}
+
+	long length(final int i)
+	{
+		return responses.getLong(i * RESPONSE_SIZE + LENGTH_OFFSET);
+	}
+
+	long token(final int i)
+	{
+		return responses.getLong(i * RESPONSE_SIZE + TOKEN_OFFSET);
+	}
+
+	long timestamp(final int i)
+	{
+		return responses.getLong(i * RESPONSE_SIZE + TIMESTAMP_OFFSET);
+	}
+
+	RequestResponse response(final int i)
+	{
+		return new RequestResponse(found(i), length(i), token(i), timestamp(i));
+	}
+}
@@ -0,0 +1,163 @@
+package com.acunu.castle;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Serialises a batch of requests so that the native side can prepare the whole
+ * castle_request array in a single call, instead of one call per request.
+ *
+ * castle_request itself belongs to libcastle, so each request is written as a
+ * fixed-size descriptor in a layout of our own: its type, collection, up to
+ * three regions of direct buffers and its scalar arguments. A region refers to
+ * its buffer by an index into a table of the distinct buffers in the batch, so
+ * the native side looks up each buffer's address once however many requests
+ * point into it.
+ *
+ * The descriptor layout must match request_descriptor in CastleImpl.c.
+ */
+final class RequestEncoder
+{
+	static final int REPLACE = 1;
+	static final int REMOVE = 2;
+	static final int GET = 3;
+	static final int COUNTER_GET = 4;
+	static final int COUNTER_ADD = 5;
+	static final int COUNTER_SET = 6;
+	static final int ITER_START = 7;
+	static final int ITER_NEXT = 8;
+	static final int ITER_FINISH = 9;
+	static final int BIG_PUT = 10;
+	static final int PUT_CHUNK = 11;
+	static final int BIG_GET = 12;
+	static final int GET_CHUNK = 13;
+
+	/* set in flags when arg1 holds a timestamp */
+	static final int FLAG_TIMESTAMP = 1;
+
+	static final int DESCRIPTOR_SIZE = 64;
+	static final int MAX_REGIONS = 3;
+
+	private static final int TYPE_OFFSET = 0;
+	private static final int COLLECTION_OFFSET = 4;
+	private static final int REGIONS_OFFSET = 8;
+	private static final int REGION_SIZE = 12;
+	private static final int FLAGS_OFFSET = 44;
+	private static final int ARG0_OFFSET = 48;
+	private static final int ARG1_OFFSET = 56;
+
+	/* below this many distinct buffers, a linear scan is cheaper than the map */
+	private static final int MAX_SCANNED_BUFFERS = 8;
+
+	private ByteBuffer descriptors;
+	private int count;
+
+	private ByteBuffer[] buffers = new ByteBuffer[MAX_SCANNED_BUFFERS];
+	private int numBuffers;
+	private final Map<ByteBuffer, Integer> index = new IdentityHashMap<ByteBuffer, Integer>();
+
+	RequestEncoder(final int capacity)
+	{
+		descriptors = allocate(capacity);
+	}
+
+	private static ByteBuffer allocate(final int num)
+	{
+		return ByteBuffer.allocateDirect(num * DESCRIPTOR_SIZE).order(ByteOrder.nativeOrder());
+	}
+
+	/*
+	 * Starts a new descriptor with no regions. arg0 and arg1 depend on the type:
+	 * a token, a value length, a timestamp or iterator flags.
+	 */
+	void request(final int type, final int collection, final int flags, final long arg0, final long arg1)
+	{
+		if (descriptors.capacity() < (count + 1) * DESCRIPTOR_SIZE)
+		{
+			final ByteBuffer grown = allocate(Math.max(2 * count, count + 1));
+			descriptors.clear().limit(count * DESCRIPTOR_SIZE);
+			grown.put(descriptors);
+			descriptors = grown;
+		}
+
+		final int base = count++ * DESCRIPTOR_SIZE;
+		descriptors.putInt(base + TYPE_OFFSET, type);
+		descriptors.putInt(base + COLLECTION_OFFSET, collection);
+		for (int i = 0; i < MAX_REGIONS; ++i)
+			descriptors.putInt(base + REGIONS_OFFSET + i * REGION_SIZE, -1);
+		descriptors.putInt(base + FLAGS_OFFSET, flags);
+		descriptors.putLong(base + ARG0_OFFSET, arg0);
+		descriptors.putLong(base + ARG1_OFFSET, arg1);
+	}
+
+	/*
+	 * Sets region i of the current descriptor to length bytes of buffer, starting
+	 * at the absolute offset (not the buffer's position).
+	 */
+	void region(final int i, final ByteBuffer buffer, final int offset, final int length)
+	{
+		final int base = (count - 1) * DESCRIPTOR_SIZE + REGIONS_OFFSET + i * REGION_SIZE;
+		descriptors.putInt(base, indexOf(buffer));
+		descriptors.putInt(base + 4, offset);
+		descriptors.putInt(base + 8, length);
+	}
+
+	private int indexOf(final ByteBuffer buffer)
+	{
+		if (numBuffers <= MAX_SCANNED_BUFFERS)
+		{
+			for (int i = numBuffers - 1; i >= 0; --i)
+				if (buffers[i] == buffer)
+					return i;
+
+			if (numBuffers < MAX_SCANNED_BUFFERS)
+			{
+				buffers[numBuffers] = buffer;
+				return numBuffers++;
+			}
+
+			/* too many to scan from now on */
+			for (int i = 0; i < numBuffers; ++i)
+				index.put(buffers[i], i);
+		}
+
+		final Integer i = index.get(buffer);
+		if (i != null)
+			return i;
+
+		if (numBuffers == buffers.length)
+			buffers = Arrays.copyOf(buffers, 2 * numBuffers);
+		buffers[numBuffers] = buffer;
+		index.put(buffer, numBuffers);
+		return numBuffers++;
+	}
+
+	/*
+	 * Encodes the requests and prepares them in the native array reqs.
+	 */
+	void prepare(final long reqs, final Request[] requests) throws CastleException
+	{
+		try
+		{
+			for (final Request request : requests)
+				request.encode(this);
+			Request.prepare(reqs, descriptors, count, buffers, numBuffers);
+		} finally
+		{
+			reset();
+		}
+	}
+
+	/* drops the references to the batch's buffers so they aren't kept alive */
+	private void reset()
+	{
+		Arrays.fill(buffers, 0, numBuffers, null);
+		if (numBuffers > MAX_SCANNED_BUFFERS)
+			index.clear();
+		numBuffers = 0;
+		count = 0;
+	}
+}
@@ -0,0 +1,169 @@
+package com.acunu.castle;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Carves small buffers out of a few large Castle shared buffers, so that keys,
+ * counters and small values don't each cost a castle_buffer_create and
+ * castle_buffer_destroy round trip.
+ *
+ * Slabs are mapped lazily, up to maxSlabs of them, and are only destroyed when
+ * the allocator is closed. The first slab of each slice size is reserved for
+ * it, so sizes that fill their slabs early can't leave another with none;
+ * maxSlabs must therefore be at least the number of slice sizes. Each slab is
+ * dedicated to one power-of-two slice size, so every slice is aligned to its own size within the (page-aligned)
+ * slab. Slices are never passed to castle_buffer_destroy; release() is the
+ * only way back, and it tells slices apart from ordinary buffers by identity.
+ */
+final class SlabAllocator
+{
+	static final int MIN_SLICE_SIZE = 64;
+	static final int MAX_SLICE_SIZE = 16 * 1024;
+
+	private static final int MIN_SLICE_SHIFT = Integer.numberOfTrailingZeros(MIN_SLICE_SIZE);
+	static final int NUM_SLICE_SIZES = Integer.numberOfTrailingZeros(MAX_SLICE_SIZE) - MIN_SLICE_SHIFT + 1;
+
+	private final Castle castle;
+	private final int slabSize;
+	private final int maxSlabs;
+
+	/* free slices, indexed by sliceIndex() */
+	private final BufferPool[] free;
+
+	/* slabs mapped so far, in all and of each slice size, and how many sizes have none; guarded by this */
+	private final List<ByteBuffer> slabs = new ArrayList<ByteBuffer>();
+	private final int[] slabsOfSize = new int[NUM_SLICE_SIZES];
+	private int sizesWithoutSlab = NUM_SLICE_SIZES;
+
+	/* every slice handed out by this allocator; replaced wholesale (under this) when a slab is mapped */
+	private volatile Map<ByteBuffer, Boolean> slices = new IdentityHashMap<ByteBuffer, Boolean>();
+
+	private volatile boolean closed;
+
+	SlabAllocator(final Castle castle, final int slabSize, final int maxSlabs)
+	{
+		if (Integer.bitCount(slabSize) != 1 || slabSize < MAX_SLICE_SIZE)
+			throw new IllegalArgumentException("slabSize must be a power of two >= " + MAX_SLICE_SIZE);
+		if (maxSlabs < NUM_SLICE_SIZES)
+			throw new IllegalArgumentException("maxSlabs must be >= " + NUM_SLICE_SIZES);
+
+		this.castle = castle;
+		this.slabSize = slabSize;
+		this.maxSlabs = maxSlabs;
+
+		/*
+		 * no magazines (a maxCapacity of 0): slices are often released on other
+		 * threads than leased them, and a slice left in a magazine is never reused
+		 */
+		free = new BufferPool[NUM_SLICE_SIZES];
+		for (int i = 0; i < NUM_SLICE_SIZES; ++i)
+			free[i] = new BufferPool(MIN_SLICE_SIZE << i, Integer.MAX_VALUE, 0, false, false);
+	}
+
+	/*
+	 * returns the index of the smallest slice size >= size
+	 */
+	private static int sliceIndex(final int size)
+	{
+		if (size <= MIN_SLICE_SIZE)
+			return 0;
+		return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SLICE_SHIFT;
+	}
+
+	/**
+	 * Returns a slice with limit() == size, or null if size is too large for a
+	 * slice or all slabs are in use.
+	 */
+	ByteBuffer allocate(final int size) throws IOException
+	{
+		if (size <= 0 || size > MAX_SLICE_SIZE || closed)
+			return null;
+
+		final int index = sliceIndex(size);
+		final BufferPool pool = free[index];
+		ByteBuffer slice = pool.tryLease();
+		if (slice == null)
+			slice = allocateFromNewSlab(pool, index);
+		if (slice != null)
+			slice.limit(size);
+		return slice;
+	}
+
+	private synchronized ByteBuffer allocateFromNewSlab(final BufferPool pool, final int index) throws IOException
+	{
+		/* someone else may have mapped a slab for this size while we waited */
+		final ByteBuffer slice = pool.tryLease();
+		if (slice != null || closed)
+			return slice;
+
+		/* the slabs still reserved for the other sizes that have none */
+		final int reserved = sizesWithoutSlab - (slabsOfSize[index] == 0 ? 1 : 0);
+		if (slabs.size() + reserved >= maxSlabs)
+			return null;
+
+		final ByteBuffer slab = castle.createBuffer(slabSize);
+		slabs.add(slab);
+		if (slabsOfSize[index]++ == 0)
+			--sizesWithoutSlab;
+
+		final int sliceSize = pool.getSize();
+		final Map<ByteBuffer, Boolean> newSlices = new IdentityHashMap<ByteBuffer, Boolean>(slices);
+		for (int offset = 0; offset + sliceSize <= slabSize; offset += sliceSize)
+		{
+			slab.limit(offset + sliceSize).position(offset);
+			final ByteBuffer s = slab.slice();
+			newSlices.put(s, Boolean.TRUE);
+			pool.add(s);
+		}
+		slab.clear();
+		slices = newSlices;
+
+		return pool.tryLease();
+	}
+
+	boolean owns(final ByteBuffer buffer)
+	{
+		return slices.containsKey(buffer);
+	}
+
+	/**
+	 * Returns a slice to the allocator. Returns false, and does nothing, if
+	 * the buffer was not allocated here.
+	 */
+	boolean release(final ByteBuffer buffer)
+	{
+		if (!owns(buffer))
+			return false;
+
+		if (!closed)
+			free[sliceIndex(buffer.capacity())].put(buffer);
+		return true;
+	}
+
+	synchronized void close() throws IOException
+	{
+		if (closed)
+			return;
+		closed = true;
+
+		IOException exn = null;
+		for (final ByteBuffer slab : slabs)
+		{
+			try
+			{
+				castle.destroyBuffer(slab);
+			} catch (final IOException e)
+			{
+				exn = e;
+			}
+		}
+		slabs.clear();
+		if (exn != null)
+			throw exn;
+	}
+}
@@ -12,11 +12,11 @@ public class SyncIterBufferIterator implements IterBufferIterator
 	private final Castle castle;
 	private final int bufferSize;
 
-	private final long token;
+	private final IterFinisher finisher;
+	private final Reclaimer.Handle handle;
 
 	private boolean cancelled;
 	private List<KeyValue> curKvList = null;
-	private boolean hasNext;
 
 	public SyncIterBufferIterator(Castle castle, int collection, Key keyStart, Key keyFinish, EnumSet<IterFlags> flags,
 			int bufferSize) throws IOException
@@ -26,9 +26,11 @@ public class SyncIterBufferIterator implements IterBufferIterator
 
 		IterReply reply = castle.iterstart(collection, keyStart, keyFinish, bufferSize, flags);
 
-		token = reply.token;
 		curKvList = reply.elements;
-		hasNext = reply.hasNext;
+		finisher = new IterFinisher(castle, reply.token, reply.hasNext);
+		handle = Reclaimer.register(this, "iterator on collection " + collection, finisher);
+		if (!reply.hasNext)
+			handle.forget();
 	}
 
 	@Override
@@ -39,14 +41,18 @@ public class SyncIterBufferIterator implements IterBufferIterator
 
 		if (curKvList == null)
 		{
-			if (!hasNext)
+			if (!finisher.hasNext)
 				return false;
 
 			try
 			{
-				IterReply reply = castle.iternext(token, bufferSize);
+				IterReply reply = castle.iternext(finisher.getToken(), bufferSize);
 				curKvList = reply.elements;
-				hasNext = reply.hasNext;
+				if (!reply.hasNext)
+				{
+					finisher.hasNext = false;
+					handle.forget();
+				}
 			} catch (IOException e)
 			{
 				throw new RuntimeException(e);
@@ -84,15 +90,6 @@ public class SyncIterBufferIterator implements IterBufferIterator
 			return;
 
 		cancelled = true;
-
-		// only call iterfinish if we terminated early
-		if (hasNext)
-			castle.iterfinish(token);
-	}
-
-	@Override
-	public void finalize() throws IOException
-	{
-		close();
+		handle.close();
 	}
 }
@@ -0,0 +1,151 @@
+package com.acunu.castle;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Predicts how large a buffer the first fetch of a get_kv needs, so that most
+ * values arrive in one round trip. Each collection keeps a histogram of the
+ * value lengths it has returned, in power-of-two buckets, and the prediction
+ * is the smallest bucket that covers COVERAGE of them. Counts are halved now
+ * and then, so the histogram follows changes in the workload.
+ */
+final class ValueSizePredictor
+{
+	/* the fraction of values the predicted size should fit */
+	private static final double COVERAGE = 0.9;
+
+	/* observations before the histogram is trusted over the default */
+	private static final int WARMUP = 16;
+
+	/* the prediction is recomputed after this many observations */
+	private static final int RECOMPUTE_INTERVAL = 64;
+
+	/* counts are halved once they reach this total */
+	private static final int DECAY_TOTAL = 4096;
+
+	/* bucket i counts lengths in (2^(i-1), 2^i]; the last takes everything longer */
+	private static final int BUCKETS = 32;
+
+	private final int minSize;
+	private final int maxSize;
+
+	private final ConcurrentMap<Integer, Model> models = new ConcurrentHashMap<Integer, Model>();
+
+	private final class Model
+	{
+		final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+		final LongAdder hits = new LongAdder();
+		final LongAdder misses = new LongAdder();
+		volatile int predicted = minSize;
+
+		/* since the last recompute; racy, which only shifts when the next one happens */
+		int sinceRecompute;
+
+		void record(final long length, final int fetched)
+		{
+			if (length <= fetched)
+				hits.increment();
+			else
+				misses.increment();
+
+			histogram.incrementAndGet(bucket(length));
+			if (++sinceRecompute >= RECOMPUTE_INTERVAL)
+			{
+				sinceRecompute = 0;
+				recompute();
+			}
+		}
+
+		private void recompute()
+		{
+			long total = 0;
+			for (int i = 0; i < BUCKETS; ++i)
+				total += histogram.get(i);
+			if (total < WARMUP)
+				return;
+
+			long covered = 0;
+			int i = 0;
+			for (; i < BUCKETS - 1; ++i)
+			{
+				covered += histogram.get(i);
+				if (covered >= COVERAGE * total)
+					break;
+			}
+			predicted = (int) Math.max(minSize, Math.min(maxSize, 1L << i));
+
+			if (total >= DECAY_TOTAL)
+			{
+				for (int j = 0; j < BUCKETS; ++j)
+				{
+					long count;
+					do
+					{
+						count = histogram.get(j);
+					} while (!histogram.compareAndSet(j, count, count / 2));
+				}
+			}
+		}
+	}
+
+	/*
+	 * Predictions are clamped to [minSize, maxSize]
+	 */
+	ValueSizePredictor(final int minSize, final int maxSize)
+	{
+		this.minSize = minSize;
+		this.maxSize = maxSize;
+	}
+
+	private static int bucket(final long length)
+	{
+		final int b = length <= 1 ? 0 : 64 - Long.numberOfLeadingZeros(length - 1);
+		return Math.min(b, BUCKETS - 1);
+	}
+
+	private Model model(final int collection)
+	{
+		Model model = models.get(collection);
+		if (model == null)
+		{
+			final Model created = new Model();
+			model = models.putIfAbsent(collection, created);
+			if (model == null)
+				model = created;
+		}
+		return model;
+	}
+
+	/*
+	 * returns the buffer size the first fetch from this collection should use
+	 */
+	int predict(final int collection)
+	{
+		final Model model = models.get(collection);
+		return model == null ? minSize : model.predicted;
+	}
+
+	/*
+	 * Records the length of a value found by a fetch of the given size.
+	 */
+	void record(final int collection, final long length, final int fetched)
+	{
+		model(collection).record(length, fetched);
+	}
+
+	List<ValueSizeStats> getStats()
+	{
+		final List<ValueSizeStats> stats = new ArrayList<ValueSizeStats>(models.size());
+		for (final ConcurrentMap.Entry<Integer, Model> e : models.entrySet())
+		{
+			final Model model = e.getValue();
+			stats.add(new ValueSizeStats(e.getKey(), model.predicted, model.hits.sum(), model.misses.sum()));
+		}
+		return stats;
+	}
+}
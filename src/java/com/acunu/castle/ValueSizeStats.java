@@ -0,0 +1,58 @@
+package com.acunu.castle;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * How well get_kv's first fetch has fitted the values of one collection. A hit
+ * is a value that arrived in one round trip, and a miss is one that needed a
+ * second fetch. From Castle.getValueSizeStats(), and published over JMX as
+ * com.acunu.castle:type=ValueSizeStats,connection=N.
+ */
+public final class ValueSizeStats
+{
+	private final int collection;
+	private final int predictedSize;
+	private final long hits;
+	private final long misses;
+
+	@ConstructorProperties({ "collection", "predictedSize", "hits", "misses" })
+	public ValueSizeStats(final int collection, final int predictedSize, final long hits, final long misses)
+	{
+		this.collection = collection;
+		this.predictedSize = predictedSize;
+		this.hits = hits;
+		this.misses = misses;
+	}
+
+	public int getCollection()
+	{
+		return collection;
+	}
+
+	/** the buffer size the next first fetch will use */
+	public int getPredictedSize()
+	{
+		return predictedSize;
+	}
+
+	public long getHits()
+	{
+		return hits;
+	}
+
+	public long getMisses()
+	{
+		return misses;
+	}
+
+	public double getHitRatio()
+	{
+		return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+	}
+
+	@Override
+	public String toString()
+	{
+		return "collection " + collection + ": predictedSize=" + predictedSize + " hits=" + hits + " misses=" + misses;
+	}
+}
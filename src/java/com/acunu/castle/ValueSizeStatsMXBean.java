@@ -0,0 +1,8 @@
+package com.acunu.castle;
+
+import java.util.List;
+
+public interface ValueSizeStatsMXBean
+{
+	List<ValueSizeStats> getValueSizeStats();
+}
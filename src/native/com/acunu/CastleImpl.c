@@ -8,6 +8,8 @@
 #include <errno.h>
 #include <assert.h>
 #include <pthread.h>
+#include <limits.h>
+#include <sched.h>
 
 #include <unistd.h>
 #include <stddef.h>
@@ -18,6 +20,8 @@
 #include <sys/un.h>
 #include <sys/select.h>
 #include <sys/stat.h>
+#include <sys/syscall.h>
+#include <linux/futex.h>
 #include <linux/types.h>
 #include <linux/netlink.h>
 #include <linux/genetlink.h>
@@ -26,16 +30,7 @@
 #include <com_acunu_castle_Castle.h>
 #include <com_acunu_castle_Key.h>
 
-#include <com_acunu_castle_BigGetRequest.h>
-#include <com_acunu_castle_BigPutRequest.h>
-#include <com_acunu_castle_GetChunkRequest.h>
-#include <com_acunu_castle_GetRequest.h>
-#include <com_acunu_castle_IterFinishRequest.h>
-#include <com_acunu_castle_IterNextRequest.h>
-#include <com_acunu_castle_IterStartRequest.h>
-#include <com_acunu_castle_PutChunkRequest.h>
-#include <com_acunu_castle_RemoveRequest.h>
-#include <com_acunu_castle_ReplaceRequest.h>
+#include <com_acunu_castle_Request.h>
 
 #include <castle/castle.h>
 
@@ -52,6 +47,8 @@
 typedef struct s_callback_queue callback_queue;
 void callback_queue_create(callback_queue** queue, unsigned long max_size);
 void callback_queue_destroy(callback_queue* queue);
+static int callback_queue_register(castle_connection* conn, callback_queue* queue);
+static void callback_queue_unregister(castle_connection* conn);
 
 static jclass castle_class = NULL;
 static jclass callback_class = NULL;
@@ -59,17 +56,20 @@ static jclass castle_exception_class = NULL;
 static jclass key_class = NULL;
 static jclass request_class = NULL;
 static jclass request_response_class = NULL;
+static jclass completion_batch_class = NULL;
 
-static jmethodID callback_run_method = NULL;
-static jmethodID callback_seterr_method = NULL;
-static jmethodID callback_setresponse_method = NULL;
 static jmethodID exception_init_method = NULL;
 static jmethodID key_init_method = NULL;
-static jmethodID request_copyto_method = NULL;
 static jmethodID response_init_method = NULL;
+static jmethodID batch_run_method = NULL;
 
 static jfieldID castle_connptr_field = NULL;
 static jfieldID castle_cbqueueptr_field = NULL;
+static jfieldID batch_callbacks_field = NULL;
+static jfieldID batch_errs_field = NULL;
+static jfieldID batch_lengths_field = NULL;
+static jfieldID batch_tokens_field = NULL;
+static jfieldID batch_timestamps_field = NULL;
 
 static volatile bool udev_thread_running = true;
 
@@ -93,6 +93,16 @@ Java_com_acunu_castle_Castle_init_1jni(JNIEnv *env, jclass cls)
 
     castle_connptr_field = (*env)->GetFieldID(env, cls, "connectionJNIPointer", "J");
     castle_cbqueueptr_field = (*env)->GetFieldID(env, cls, "callbackQueueJNIPointer", "J");
+
+    completion_batch_class = (*env)->FindClass(env, "com/acunu/castle/CompletionBatch");
+    completion_batch_class = (jclass)(*env)->NewGlobalRef(env, completion_batch_class);
+
+    batch_run_method = (*env)->GetMethodID(env, completion_batch_class, "run", "(I)V");
+    batch_callbacks_field = (*env)->GetFieldID(env, completion_batch_class, "callbacks", "[Lcom/acunu/castle/Callback;");
+    batch_errs_field = (*env)->GetFieldID(env, completion_batch_class, "errs", "[I");
+    batch_lengths_field = (*env)->GetFieldID(env, completion_batch_class, "lengths", "[J");
+    batch_tokens_field = (*env)->GetFieldID(env, completion_batch_class, "tokens", "[J");
+    batch_timestamps_field = (*env)->GetFieldID(env, completion_batch_class, "timestamps", "[J");
 }
 
 JNIEXPORT void JNICALL
@@ -100,10 +110,6 @@ Java_com_acunu_castle_Callback_init_1jni(JNIEnv *env, jclass cls)
 {
     callback_class = (*env)->FindClass(env, "com/acunu/castle/Callback");
     callback_class = (jclass)(*env)->NewGlobalRef(env, callback_class);
-
-    callback_run_method = (*env)->GetMethodID(env, callback_class, "run", "()V");
-    callback_setresponse_method = (*env)->GetMethodID(env, callback_class, "setResponse", "(Lcom/acunu/castle/RequestResponse;)V");
-    callback_seterr_method = (*env)->GetMethodID(env, callback_class, "setErr", "(I)V");
 }
 
 JNIEXPORT void JNICALL
@@ -129,8 +135,6 @@ Java_com_acunu_castle_Request_init_1jni(JNIEnv *env, jclass cls)
 {
     request_class = (*env)->FindClass(env, "com/acunu/castle/Request");
     request_class = (jclass)(*env)->NewGlobalRef(env, request_class);
-
-    request_copyto_method = (*env)->GetMethodID(env, request_class, "copy_to", "(JI)V");
 }
 
 JNIEXPORT void JNICALL
@@ -181,6 +185,13 @@ Java_com_acunu_castle_Castle_castle_1connect(JNIEnv *env, jobject obj)
         return;
     }
 
+    if (callback_queue_register(conn, queue))
+    {
+        callback_queue_destroy(queue);
+        JNU_ThrowError(env, -ENOMEM, "memory");
+        return;
+    }
+
     (*env)->SetLongField(env, obj, castle_cbqueueptr_field, (jlong)queue);
 
     return;
@@ -197,13 +208,16 @@ Java_com_acunu_castle_Castle_castle_1disconnect(JNIEnv *env, jobject connection)
 
     udev_thread_running = false;
 
+    /* the queue has been shut down by now, so unregister doesn't wait on a push to a full ring */
+    conn = (castle_connection*)(*env)->GetLongField(env, connection, castle_connptr_field);
+    if (conn != NULL)
+        callback_queue_unregister(conn);
+
     queue = (callback_queue*)(*env)->GetLongField(env, connection, castle_cbqueueptr_field);
     if (queue)
         callback_queue_destroy(queue);
     (*env)->SetLongField(env, connection, castle_cbqueueptr_field, 0);
 
-    conn = (castle_connection*)(*env)->GetLongField(env, connection, castle_connptr_field);
-
     if (conn != NULL)
         castle_disconnect(conn);
 
@@ -725,6 +739,71 @@ static int get_buffer(JNIEnv* env, jobject buffer, char** buf_out, jlong* len_ou
     return 0;
 }
 
+/*
+ * Packs the key into the start of buffer with castle_build_key, so that
+ * Key.copyToBuffer can be checked against it; flags holds the flags of each
+ * dimension. Returns the packed length.
+ */
+JNIEXPORT jint JNICALL
+Java_com_acunu_castle_Key_copy(JNIEnv *env, jclass cls, jobjectArray key, jbyteArray flags, jobject buffer)
+{
+    int dims = (*env)->GetArrayLength(env, key);
+    int lens[dims];
+    jbyteArray subkeys[dims];
+    jbyte* bytes[dims];
+    jbyte* key_flags = NULL;
+    char* buf;
+    jlong len;
+    int i, made = 0, ret = -1;
+
+    if (get_buffer(env, buffer, &buf, &len))
+        return -1;
+
+    if ((*env)->GetArrayLength(env, flags) != dims)
+    {
+        JNU_ThrowError(env, -EINVAL, "Need a flag for each dimension");
+        return -1;
+    }
+
+    for (made = 0; made < dims; made++)
+    {
+        /* May throw ArrayIndexOutOfBoundsException */
+        subkeys[made] = (jbyteArray)(*env)->GetObjectArrayElement(env, key, made);
+        if ((*env)->ExceptionOccurred(env))
+            goto out;
+        lens[made] = (*env)->GetArrayLength(env, subkeys[made]);
+        bytes[made] = (*env)->GetByteArrayElements(env, subkeys[made], NULL);
+        if (!bytes[made])
+        {
+            (*env)->DeleteLocalRef(env, subkeys[made]);
+            JNU_ThrowError(env, -ENOMEM, "Memory allocation failed");
+            goto out;
+        }
+    }
+
+    key_flags = (*env)->GetByteArrayElements(env, flags, NULL);
+    if (!key_flags)
+    {
+        JNU_ThrowError(env, -ENOMEM, "Memory allocation failed");
+        goto out;
+    }
+
+    if (!castle_build_key((castle_key *)buf, len, dims, lens, (const uint8_t * const *)bytes, (const uint8_t *)key_flags))
+        JNU_ThrowError(env, -ENOSPC, "Buffer too small for key");
+    else
+        ret = castle_key_bytes_needed(dims, lens, NULL, NULL);
+
+    (*env)->ReleaseByteArrayElements(env, flags, key_flags, JNI_ABORT);
+
+out:
+    for (i = 0; i < made; i++)
+    {
+        (*env)->ReleaseByteArrayElements(env, subkeys[i], bytes[i], JNI_ABORT);
+        (*env)->DeleteLocalRef(env, subkeys[i]);
+    }
+    return ret;
+}
+
 JNIEXPORT jlong JNICALL Java_com_acunu_castle_Request_alloc(JNIEnv* env, jclass cls, jint num)
 {
     castle_request* req = malloc(num * sizeof(*req));
@@ -739,509 +818,751 @@ JNIEXPORT void JNICALL Java_com_acunu_castle_Request_free(JNIEnv* env, jclass cl
     free(r);
 }
 
-JNIEXPORT void JNICALL Java_com_acunu_castle_ReplaceRequest_copy_1to(
-        JNIEnv *env, jclass cls, jlong buffer, jint index, jint collection,
-        jobject keyBuffer, jint keyOffset, jint keyLength,
-        jobject valueBuffer, jint valueOffset, jint valueLength,
-        jlong timestamp, jboolean useTimestamp
-) 
+/*
+ * A request as encoded by RequestEncoder.java; the layout must match. Regions
+ * refer to buffers by index into the table passed alongside the descriptors,
+ * and a buffer index of -1 means the region is unused.
+ */
+typedef struct
 {
-    castle_request *req = (castle_request *)buffer;
-
-    char *key_buf = NULL;
-    jlong key_buf_len = 0;
-    if (0 != get_buffer(env, keyBuffer, &key_buf, &key_buf_len))
-        return;
+    jint buffer;
+    jint offset;
+    jint length;
+} request_region;
 
-    char *value_buf = NULL;
-    jlong value_buf_len = 0;
-    if (0 != get_buffer(env, valueBuffer, &value_buf, &value_buf_len))
-        return;
+typedef struct
+{
+    jint type;
+    jint collection;
+    request_region regions[3];
+    jint flags;
+    jlong arg0;
+    jlong arg1;
+} request_descriptor;
+
+enum
+{
+    REQUEST_REPLACE = 1,
+    REQUEST_REMOVE,
+    REQUEST_GET,
+    REQUEST_COUNTER_GET,
+    REQUEST_COUNTER_ADD,
+    REQUEST_COUNTER_SET,
+    REQUEST_ITER_START,
+    REQUEST_ITER_NEXT,
+    REQUEST_ITER_FINISH,
+    REQUEST_BIG_PUT,
+    REQUEST_PUT_CHUNK,
+    REQUEST_BIG_GET,
+    REQUEST_GET_CHUNK,
+};
 
-    assert(keyLength <= key_buf_len - keyOffset);
-    assert(valueLength <= value_buf_len - valueOffset);
+#define REQUEST_FLAG_TIMESTAMP 1
 
-    if (useTimestamp)
-        castle_timestamped_replace_prepare(
-                req + index, collection,
-                (castle_key *) (key_buf + keyOffset), keyLength,
-                value_buf + valueOffset, valueLength, timestamp, CASTLE_RING_FLAG_NONE
-        );
-    else
-        castle_replace_prepare(
-                req + index, collection,
-                (castle_key *) (key_buf + keyOffset), keyLength,
-                value_buf + valueOffset, valueLength, CASTLE_RING_FLAG_NONE
-        );
-}
+/* the most distinct buffers in a batch whose addresses are kept on the stack */
+#define PREPARE_BUFFERS_ON_STACK 16
 
-JNIEXPORT void JNICALL Java_com_acunu_castle_RemoveRequest_copy_1to(
-        JNIEnv *env, jclass cls, jlong buffer, jint index, jint collection,
-        jobject keyBuffer, jint keyOffset, jint keyLength, jlong timestamp, jboolean useTimestamp
-) 
+typedef struct
 {
-    castle_request *req = (castle_request *)buffer;
+    char* buf;
+    jlong len;
+} resolved_buffer;
 
-    char *key_buf = NULL;
-    jlong key_buf_len = 0;
-    if (0 != get_buffer(env, keyBuffer, &key_buf, &key_buf_len))
-        return;
-
-    assert(keyLength <= key_buf_len - keyOffset);
-
-    if (useTimestamp)
-        castle_timestamped_remove_prepare(req + index, collection,
-                (castle_key *) (key_buf + keyOffset), keyLength, timestamp, CASTLE_RING_FLAG_NONE);
-    else
-        castle_remove_prepare(req + index, collection,
-                (castle_key *) (key_buf + keyOffset), keyLength, CASTLE_RING_FLAG_NONE);
+static char* region_address(JNIEnv* env, const request_region* region, const resolved_buffer* buffers, int num_buffers)
+{
+    if (region->buffer < 0 || region->buffer >= num_buffers || region->offset < 0 || region->length < 0
+            || (jlong)region->offset + region->length > buffers[region->buffer].len)
+    {
+        JNU_ThrowError(env, -EINVAL, "Request region out of bounds");
+        return NULL;
+    }
+    return buffers[region->buffer].buf + region->offset;
 }
 
-JNIEXPORT void JNICALL Java_com_acunu_castle_GetRequest_copy_1to(
-        JNIEnv *env, jclass cls, jlong buffer, jint index, jint collection,
-        jobject keyBuffer, jint keyOffset, jint keyLength,
-        jobject valueBuffer, jint valueOffset, jint valueLength
-) 
+/*
+ * Prepares a whole batch of requests in one call. Each distinct buffer's address
+ * is looked up once, however many requests point into it.
+ */
+JNIEXPORT void JNICALL Java_com_acunu_castle_Request_prepare(
+        JNIEnv* env, jclass cls, jlong reqs, jobject descriptors, jint count, jobjectArray buffer_array, jint num_buffers
+)
 {
-    castle_request *req = (castle_request *)buffer;
-
-    char *key_buf = NULL;
-    jlong key_buf_len = 0;
-    if (0 != get_buffer(env, keyBuffer, &key_buf, &key_buf_len))
+    castle_request *req = (castle_request *)reqs;
+    resolved_buffer buffers_on_stack[PREPARE_BUFFERS_ON_STACK];
+    resolved_buffer *buffers = buffers_on_stack;
+    request_descriptor *desc;
+    char *addr[3];
+    int i, j;
+
+    desc = (request_descriptor *)(*env)->GetDirectBufferAddress(env, descriptors);
+    if (!desc || (*env)->GetDirectBufferCapacity(env, descriptors) < (jlong)(count * sizeof(*desc)))
+    {
+        JNU_ThrowError(env, -EINVAL, "descriptor buffer too small");
         return;
+    }
 
-    char *value_buf = NULL;
-    jlong value_buf_len = 0;
-    if (0 != get_buffer(env, valueBuffer, &value_buf, &value_buf_len))
-        return;
+    if (num_buffers > PREPARE_BUFFERS_ON_STACK)
+    {
+        buffers = malloc(num_buffers * sizeof(*buffers));
+        if (!buffers)
+        {
+            JNU_ThrowError(env, -ENOMEM, "No memory to prepare requests");
+            return;
+        }
+    }
 
-    assert(keyLength <= key_buf_len - keyOffset);
-    assert(valueLength <= value_buf_len - valueOffset);
+    for (i = 0; i < num_buffers; i++)
+    {
+        jobject buffer = (*env)->GetObjectArrayElement(env, buffer_array, i);
+        int ret = get_buffer(env, buffer, &buffers[i].buf, &buffers[i].len);
+        (*env)->DeleteLocalRef(env, buffer);
+        if (ret)
+            goto out;
+    }
 
-    castle_get_prepare(
-            req + index, collection,
-            (castle_key *) (key_buf + keyOffset), keyLength,
-            value_buf + valueOffset, valueLength, CASTLE_RING_FLAG_RET_TIMESTAMP
-    );
+    for (i = 0; i < count; i++, desc++)
+    {
+        for (j = 0; j < 3; j++)
+        {
+            addr[j] = NULL;
+            if (desc->regions[j].buffer >= 0
+                    && !(addr[j] = region_address(env, &desc->regions[j], buffers, num_buffers)))
+                goto out;
+        }
+
+        switch (desc->type)
+        {
+            case REQUEST_REPLACE:
+                if (desc->flags & REQUEST_FLAG_TIMESTAMP)
+                    castle_timestamped_replace_prepare(
+                            req + i, desc->collection,
+                            (castle_key *) addr[0], desc->regions[0].length,
+                            addr[1], desc->regions[1].length, desc->arg1, CASTLE_RING_FLAG_NONE
+                    );
+                else
+                    castle_replace_prepare(
+                            req + i, desc->collection,
+                            (castle_key *) addr[0], desc->regions[0].length,
+                            addr[1], desc->regions[1].length, CASTLE_RING_FLAG_NONE
+                    );
+                break;
+
+            case REQUEST_REMOVE:
+                if (desc->flags & REQUEST_FLAG_TIMESTAMP)
+                    castle_timestamped_remove_prepare(req + i, desc->collection,
+                            (castle_key *) addr[0], desc->regions[0].length, desc->arg1, CASTLE_RING_FLAG_NONE);
+                else
+                    castle_remove_prepare(req + i, desc->collection,
+                            (castle_key *) addr[0], desc->regions[0].length, CASTLE_RING_FLAG_NONE);
+                break;
+
+            case REQUEST_GET:
+                castle_get_prepare(
+                        req + i, desc->collection,
+                        (castle_key *) addr[0], desc->regions[0].length,
+                        addr[1], desc->regions[1].length, CASTLE_RING_FLAG_RET_TIMESTAMP
+                );
+                break;
+
+            case REQUEST_COUNTER_GET:
+                castle_get_prepare(
+                        req + i, desc->collection,
+                        (castle_key *) addr[0], desc->regions[0].length,
+                        addr[1], desc->regions[1].length, CASTLE_RING_FLAG_NONE
+                );
+                break;
+
+            case REQUEST_COUNTER_ADD:
+                castle_counter_add_replace_prepare(req + i, desc->collection,
+                        (castle_key *) addr[0], desc->regions[0].length,
+                        addr[1], desc->regions[1].length, CASTLE_RING_FLAG_NONE);
+                break;
+
+            case REQUEST_COUNTER_SET:
+                castle_counter_set_replace_prepare(req + i, desc->collection,
+                        (castle_key *) addr[0], desc->regions[0].length,
+                        addr[1], desc->regions[1].length, CASTLE_RING_FLAG_NONE);
+                break;
+
+            case REQUEST_ITER_START:
+                castle_iter_start_prepare(
+                        req + i, desc->collection,
+                        (castle_key *) addr[0], desc->regions[0].length,
+                        (castle_key *) addr[1], desc->regions[1].length,
+                        addr[2], desc->regions[2].length,
+                        desc->arg1 | CASTLE_RING_FLAG_RET_TIMESTAMP
+                );
+                break;
+
+            case REQUEST_ITER_NEXT:
+                castle_iter_next_prepare(req + i, desc->arg0, addr[0], desc->regions[0].length, CASTLE_RING_FLAG_NONE);
+                break;
+
+            case REQUEST_ITER_FINISH:
+                castle_iter_finish_prepare(req + i, desc->arg0, CASTLE_RING_FLAG_NONE);
+                break;
+
+            case REQUEST_BIG_PUT:
+                if (desc->flags & REQUEST_FLAG_TIMESTAMP)
+                    castle_timestamped_big_put_prepare(
+                            req + i, desc->collection,
+                            (castle_key *) addr[0], desc->regions[0].length,
+                            desc->arg0, (long)desc->arg1, CASTLE_RING_FLAG_NONE
+                    );
+                else
+                    castle_big_put_prepare(
+                            req + i, desc->collection,
+                            (castle_key *) addr[0], desc->regions[0].length,
+                            desc->arg0, CASTLE_RING_FLAG_NONE
+                    );
+                break;
+
+            case REQUEST_PUT_CHUNK:
+                castle_put_chunk_prepare(req + i, desc->arg0, addr[0], desc->regions[0].length, CASTLE_RING_FLAG_NONE);
+                break;
+
+            case REQUEST_BIG_GET:
+                castle_big_get_prepare(
+                        req + i, desc->collection,
+                        (castle_key *) addr[0], desc->regions[0].length, CASTLE_RING_FLAG_RET_TIMESTAMP
+                );
+                break;
+
+            case REQUEST_GET_CHUNK:
+                castle_get_chunk_prepare(req + i, desc->arg0, addr[0], desc->regions[0].length, CASTLE_RING_FLAG_NONE);
+                break;
+
+            default:
+                JNU_ThrowError(env, -EINVAL, "Unknown request type");
+                goto out;
+        }
+    }
+
+out:
+    if (buffers != buffers_on_stack)
+        free(buffers);
 }
 
-JNIEXPORT void JNICALL Java_com_acunu_castle_CounterGetRequest_copy_1to(
-        JNIEnv *env, jclass cls, jlong buffer, jint index, jint collection,
-        jobject keyBuffer, jint keyOffset, jint keyLength,
-        jobject valueBuffer, jint valueOffset, jint valueLength
-) 
+JNIEXPORT jlong JNICALL
+Java_com_acunu_castle_Castle_castle_1get_1start_1address(JNIEnv *env, jobject connection, jobject buffer)
 {
-    castle_request *req = (castle_request *)buffer;
+    return (jlong)(*env)->GetDirectBufferAddress(env, buffer);
+}
 
-    char *key_buf = NULL;
-    jlong key_buf_len = 0;
-    if (0 != get_buffer(env, keyBuffer, &key_buf, &key_buf_len))
-        return;
+/*
+ * Blocking responses are written into a direct buffer of these, one per
+ * request, rather than returned as RequestResponse objects. Must match the
+ * layout in RequestBlock.java.
+ */
+typedef struct
+{
+    jint err;
+    jint found;
+    jlong length;
+    jlong token;
+    jlong timestamp;
+} packed_response;
 
-    char *value_buf = NULL;
-    jlong value_buf_len = 0;
-    if (0 != get_buffer(env, valueBuffer, &value_buf, &value_buf_len))
-        return;
+/* the most calls for a blocking multi request kept on the stack */
+#define BLOCKING_CALLS_ON_STACK 64
 
-    assert(keyLength <= key_buf_len - keyOffset);
-    assert(valueLength <= value_buf_len - valueOffset);
+static packed_response* get_responses(JNIEnv* env, jobject responses, int count)
+{
+    packed_response* out = (packed_response*)(*env)->GetDirectBufferAddress(env, responses);
+    if (!out || (*env)->GetDirectBufferCapacity(env, responses) < (jlong)(count * sizeof(*out)))
+    {
+        JNU_ThrowError(env, -EINVAL, "response buffer too small");
+        return NULL;
+    }
+    return out;
+}
 
-    castle_get_prepare(
-            req + index, collection,
-            (castle_key *) (key_buf + keyOffset), keyLength,
-            value_buf + valueOffset, valueLength, CASTLE_RING_FLAG_NONE
-    );
+static void put_response(packed_response* out, int err, jboolean found, struct castle_blocking_call* call)
+{
+    out->err = err;
+    out->found = found;
+    out->length = (jlong)call->length;
+    out->token = (jlong)call->token;
+    out->timestamp = (jlong)call->user_timestamp;
 }
 
-JNIEXPORT void JNICALL Java_com_acunu_castle_CounterAddRequest_copy_1to(
-        JNIEnv *env, jclass cls, jlong buffer, jint index, jint collection,
-        jobject keyBuffer, jint keyOffset, jint keyLength,
-        jobject valueBuffer, jint valueOffset, jint valueLength
-) 
+JNIEXPORT void JNICALL
+Java_com_acunu_castle_Castle_castle_1request_1blocking(JNIEnv *env, jobject connection, jlong request, jobject responses)
 {
-    castle_request *req = (castle_request *)buffer;
+    castle_request_t* req = (castle_request_t*)request;
+    castle_connection *conn;
+    struct castle_blocking_call call;
+    packed_response* out;
+    int ret;
 
-    char *key_buf = NULL;
-    jlong key_buf_len = 0;
-    if (0 != get_buffer(env, keyBuffer, &key_buf, &key_buf_len))
+    if (!(out = get_responses(env, responses, 1)))
         return;
 
-    char *value_buf = NULL;
-    jlong value_buf_len = 0;
-    if (0 != get_buffer(env, valueBuffer, &value_buf, &value_buf_len))
+    conn = (castle_connection *)(*env)->GetLongField(env, connection, castle_connptr_field);
+    if (!conn)
         return;
 
-    assert(keyLength <= key_buf_len - keyOffset);
-    assert(valueLength <= value_buf_len - valueOffset);
+    ret = castle_request_do_blocking(conn, req, &call);
+    if (ret && ret != -ENOENT)
+    {
+        JNU_ThrowError(env, ret, "castle_request_blocking: castle_request_do_blocking failed");
+        return;
+    }
 
-    castle_counter_add_replace_prepare(req + index, collection,
-            (castle_key *) (key_buf + keyOffset), keyLength,
-            value_buf + valueOffset, valueLength, CASTLE_RING_FLAG_NONE);
+    put_response(out, ret, ret == -ENOENT ? JNI_FALSE : JNI_TRUE, &call);
 }
 
-JNIEXPORT void JNICALL Java_com_acunu_castle_CounterSetRequest_copy_1to(
-        JNIEnv *env, jclass cls, jlong buffer, jint index, jint collection,
-        jobject keyBuffer, jint keyOffset, jint keyLength,
-        jobject valueBuffer, jint valueOffset, jint valueLength
-)
+JNIEXPORT void JNICALL
+Java_com_acunu_castle_Castle_castle_1request_1blocking_1multi(JNIEnv *env, jobject connection, jlong request_array,
+        jint request_count, jobject responses)
 {
-    castle_request *req = (castle_request *)buffer;
-
-    char *key_buf = NULL;
-    jlong key_buf_len = 0;
-    if (0 != get_buffer(env, keyBuffer, &key_buf, &key_buf_len))
-        return;
+    castle_request_t* req = (castle_request_t*)request_array;
+    castle_connection *conn;
+    struct castle_blocking_call calls_on_stack[BLOCKING_CALLS_ON_STACK];
+    struct castle_blocking_call *call = calls_on_stack;
+    packed_response* out;
+    int ret, i;
 
-    char *value_buf = NULL;
-    jlong value_buf_len = 0;
-    if (0 != get_buffer(env, valueBuffer, &value_buf, &value_buf_len))
+    if (!(out = get_responses(env, responses, request_count)))
         return;
 
-    assert(keyLength <= key_buf_len - keyOffset);
-    assert(valueLength <= value_buf_len - valueOffset);
+    if (request_count > BLOCKING_CALLS_ON_STACK)
+    {
+        call = malloc(sizeof(struct castle_blocking_call) * request_count);
+        if (!call)
+        {
+            JNU_ThrowError(env, -ENOMEM, "No memory to allocate calls");
+            return;
+        }
+    }
 
-    castle_counter_set_replace_prepare(req + index, collection,
-            (castle_key *) (key_buf + keyOffset), keyLength,
-            value_buf + valueOffset, valueLength, CASTLE_RING_FLAG_NONE);
-}
+    /* Does not throw */
+    conn = (castle_connection *)(*env)->GetLongField(env, connection, castle_connptr_field);
+    if (!conn)
+        goto out;
 
-JNIEXPORT void JNICALL Java_com_acunu_castle_IterStartRequest_copy_1to(
-        JNIEnv *env, jclass cls, jlong buffer, jint index, jint collection,
-        jobject startKeyBuffer, jint startKeyOffset, jint startKeyLength,
-        jobject endKeyBuffer, jint endKeyOffset, jint endKeyLength,
-        jobject bbuffer, jint bufferOffset, jint bufferLength,
-        jlong flags
-)
-{
-    castle_request *req = (castle_request *)buffer;
+    ret = castle_request_do_blocking_multi(conn, req, call, request_count);
+    /* if any failed, throw an exception now */
+    if (ret && ret != -ENOENT)
+    {
+        JNU_ThrowError(env, ret, "castle_request_blocking: castle_request_do_blocking failed");
+        goto out;
+    }
 
-    char *start_key_buf = NULL;
-    jlong start_key_buf_len = 0;
-    if (0 != get_buffer(env, startKeyBuffer, &start_key_buf, &start_key_buf_len))
-        return;
+    for (i = 0; i < request_count; i++)
+        put_response(&out[i], call[i].err, call[i].err != -ENOENT, &call[i]);
 
-    char *end_key_buf = NULL;
-    jlong end_key_buf_len = 0;
-    if (0 != get_buffer(env, endKeyBuffer, &end_key_buf, &end_key_buf_len))
-        return;
+out:
+    if (call != calls_on_stack)
+        free(call);
+}
 
-    char *buf = NULL;
-    jlong buf_len = 0;
-    if (0 != get_buffer(env, bbuffer, &buf, &buf_len))
-        return;
+/*
+ * Completions are handed from libcastle's response thread to the Java callback
+ * threads through a bounded ring (Vyukov's MPMC queue). Each slot carries a
+ * sequence number: a producer may fill slot i when its sequence equals the
+ * enqueue position, and a consumer may empty it when its sequence equals the
+ * dequeue position + 1, so neither side takes a lock. The ring and its slots
+ * are allocated once, when the queue is created.
+ *
+ * A thread that finds the ring empty (consumer) or full (producer) parks on a
+ * futex word that the other side bumps after every operation; the word is only
+ * woken if someone has registered as a waiter, so the fast path makes no
+ * system calls.
+ */
 
-    assert(startKeyLength <= start_key_buf_len - startKeyOffset);
-    assert(endKeyLength <= end_key_buf_len - endKeyOffset);
-    assert(bufferLength <= buf_len - bufferOffset);
+#define CACHE_LINE 64
 
-    castle_iter_start_prepare(
-            req + index, collection,
-            (castle_key *) (start_key_buf + startKeyOffset), startKeyLength,
-            (castle_key *) (end_key_buf + endKeyOffset), endKeyLength,
-            buf, bufferLength,
-            flags | CASTLE_RING_FLAG_RET_TIMESTAMP
-    );
-}
+typedef struct
+{
+    unsigned long seq;
+    jobject callback;
+    castle_response resp;
+} __attribute__((aligned(CACHE_LINE))) callback_slot;
 
-JNIEXPORT void JNICALL Java_com_acunu_castle_IterNextRequest_copy_1to(
-        JNIEnv *env, jclass cls, jlong buffer, jint index, jlong token,
-        jobject bbuffer, jint bufferOffset, jint bufferLength
-)
+struct s_callback_queue
 {
-    castle_request *req = (castle_request *)buffer;
+    callback_slot* slots;
+    unsigned long mask;
 
-    char *buf = NULL;
-    jlong buf_len = 0;
-    if (0 != get_buffer(env, bbuffer, &buf, &buf_len))
-        return;
+    unsigned long enqueue_pos __attribute__((aligned(CACHE_LINE)));
+    unsigned long dequeue_pos __attribute__((aligned(CACHE_LINE)));
 
-    assert(bufferLength <= buf_len - bufferOffset);
+    /* futex words: bumped after each push / pop */
+    int pushed __attribute__((aligned(CACHE_LINE)));
+    int push_waiters;
+    int popped __attribute__((aligned(CACHE_LINE)));
+    int pop_waiters;
 
-    castle_iter_next_prepare(req + index, token, buf, bufferLength, CASTLE_RING_FLAG_NONE);
-}
+    /* producers between their shutdown check and their push */
+    int pushing __attribute__((aligned(CACHE_LINE)));
+    int shutdown;
+};
 
-JNIEXPORT void JNICALL Java_com_acunu_castle_IterFinishRequest_copy_1to(JNIEnv *env, jclass cls, jlong buffer, jint index, jlong token) 
+static void futex_wait(int* addr, int val)
 {
-    castle_request *req = (castle_request *)buffer;
-
-    castle_iter_finish_prepare(req + index, token, CASTLE_RING_FLAG_NONE);
+    syscall(SYS_futex, addr, FUTEX_WAIT_PRIVATE, val, NULL, NULL, 0);
 }
 
-JNIEXPORT void JNICALL Java_com_acunu_castle_BigPutRequest_copy_1to(
-        JNIEnv *env, jclass cls, jlong buffer, jint index, jint collection,
-        jobject keyBuffer, jint keyOffset, jint keyLength, jlong valueLength,
-        jlong timestamp, jboolean useTimestamp
-)
+static void futex_wake(int* addr, int num)
 {
-    castle_request *req = (castle_request *)buffer;
-
-    char *key_buf = NULL;
-    jlong key_buf_len = 0;
-    if (0 != get_buffer(env, keyBuffer, &key_buf, &key_buf_len))
-        return;
-
-    assert(keyLength <= key_buf_len - keyOffset);
-
-    if (useTimestamp)
-        castle_timestamped_big_put_prepare(
-                req + index, collection,
-                (castle_key *) (key_buf + keyOffset), keyLength,
-                valueLength, (long)timestamp, CASTLE_RING_FLAG_NONE
-        );
-    else
-        castle_big_put_prepare(
-                req + index, collection,
-                (castle_key *) (key_buf + keyOffset), keyLength,
-                valueLength, CASTLE_RING_FLAG_NONE
-        );
+    syscall(SYS_futex, addr, FUTEX_WAKE_PRIVATE, num, NULL, NULL, 0);
 }
 
-JNIEXPORT void JNICALL Java_com_acunu_castle_PutChunkRequest_copy_1to(
-        JNIEnv *env, jclass cls, jlong buffer, jint index, jlong token, jobject chunkBuffer, jint chunkOffset, jint chunkLength
-)
+/* bumps *word and wakes num of its waiters, if there are any */
+static void queue_signal(int* word, int* waiters, int num)
 {
-    castle_request *req = (castle_request *)buffer;
-
-    char *buf = NULL;
-    jlong buf_len = 0;
-    if (0 != get_buffer(env, chunkBuffer, &buf, &buf_len))
-        return;
-
-    assert(chunkLength <= buf_len - chunkOffset);
-
-    castle_put_chunk_prepare(req + index, token, buf + chunkOffset, chunkLength, CASTLE_RING_FLAG_NONE);
+    __atomic_add_fetch(word, 1, __ATOMIC_SEQ_CST);
+    if (__atomic_load_n(waiters, __ATOMIC_SEQ_CST))
+        futex_wake(word, num);
 }
 
-JNIEXPORT void JNICALL Java_com_acunu_castle_BigGetRequest_copy_1to(
-        JNIEnv *env, jclass cls, jlong buffer, jint index, jint collection,
-        jobject keyBuffer, jint keyOffset, jint keyLength
-)
+void callback_queue_create(callback_queue** queue, unsigned long max_size)
 {
-    castle_request *req = (castle_request *)buffer;
+    unsigned long size = 1;
+    unsigned long i;
+
+    while (size < max_size)
+        size <<= 1;
 
-    char *key_buf = NULL;
-    jlong key_buf_len = 0;
-    if (0 != get_buffer(env, keyBuffer, &key_buf, &key_buf_len))
+    *queue = NULL;
+    callback_queue* q = NULL;
+    if (posix_memalign((void**)&q, CACHE_LINE, sizeof(*q)))
         return;
+    memset(q, 0, sizeof(*q));
 
-    assert(keyLength <= key_buf_len - keyOffset);
+    if (posix_memalign((void**)&q->slots, CACHE_LINE, size * sizeof(*q->slots)))
+    {
+        free(q);
+        return;
+    }
+    memset(q->slots, 0, size * sizeof(*q->slots));
+    for (i = 0; i < size; ++i)
+        q->slots[i].seq = i;
+    q->mask = size - 1;
 
-    castle_big_get_prepare(
-            req + index, collection,
-            (castle_key *) (key_buf + keyOffset), keyLength, CASTLE_RING_FLAG_RET_TIMESTAMP
-    );
+    *queue = q;
 }
 
-JNIEXPORT void JNICALL Java_com_acunu_castle_GetChunkRequest_copy_1to(
-        JNIEnv *env, jclass cls, jlong buffer, jint index, jlong token, jobject chunkBuffer, jint chunkOffset, jint chunkLength
-)
+/*
+ * Frees the queue once it has been shut down or was never used, waiting for
+ * any push still between its first and last touch of the queue.
+ */
+void callback_queue_destroy(callback_queue* queue)
 {
-    castle_request *req = (castle_request *)buffer;
+    while (__atomic_load_n(&queue->pushing, __ATOMIC_SEQ_CST))
+        sched_yield();
 
-    char *buf = NULL;
-    jlong buf_len = 0;
-    if (0 != get_buffer(env, chunkBuffer, &buf, &buf_len))
-        return;
-
-    assert(chunkLength <= buf_len - chunkOffset);
-
-    castle_get_chunk_prepare(req + index, token, buf + chunkOffset, chunkLength, CASTLE_RING_FLAG_NONE);
+    free(queue->slots);
+    free(queue);
 }
 
-JNIEXPORT jlong JNICALL
-Java_com_acunu_castle_Castle_castle_1get_1start_1address(JNIEnv *env, jobject connection, jobject buffer)
+static bool callback_queue_empty(callback_queue* queue)
 {
-    return (jlong)(*env)->GetDirectBufferAddress(env, buffer);
+    return __atomic_load_n(&queue->dequeue_pos, __ATOMIC_SEQ_CST)
+        == __atomic_load_n(&queue->enqueue_pos, __ATOMIC_SEQ_CST);
 }
 
-JNIEXPORT jobject JNICALL
-Java_com_acunu_castle_Castle_castle_1request_1blocking(JNIEnv *env, jobject connection, jlong request)
+/*
+ * Stops further pushes, wakes everyone, and waits until the consumers have
+ * popped everything already in the ring.
+ */
+void callback_queue_shutdown(callback_queue* queue)
 {
-    castle_request_t* req = (castle_request_t*)request;
-    castle_connection *conn;
-    struct castle_blocking_call call;
-    int ret;
-    jobject response;
-    jboolean found = JNI_TRUE;
-
-    conn = (castle_connection *)(*env)->GetLongField(env, connection, castle_connptr_field);
-    if (!conn)
-        return NULL;
-
-    ret = castle_request_do_blocking(conn, req, &call);
-    if (ret == -ENOENT)
-        found = JNI_FALSE;
-    if (ret && ret != -ENOENT)
+    __atomic_store_n(&queue->shutdown, 1, __ATOMIC_SEQ_CST);
+    __atomic_add_fetch(&queue->pushed, 1, __ATOMIC_SEQ_CST);
+    futex_wake(&queue->pushed, INT_MAX);
+    __atomic_add_fetch(&queue->popped, 1, __ATOMIC_SEQ_CST);
+    futex_wake(&queue->popped, INT_MAX);
+
+    __atomic_add_fetch(&queue->pop_waiters, 1, __ATOMIC_SEQ_CST);
+    while (1)
     {
-        JNU_ThrowError(env, ret, "castle_request_blocking: castle_request_do_blocking failed");
-        return NULL;
+        int popped = __atomic_load_n(&queue->popped, __ATOMIC_SEQ_CST);
+        if (callback_queue_empty(queue))
+            break;
+        futex_wait(&queue->popped, popped);
     }
-
-    response = (*env)->NewObject(env, request_response_class, response_init_method, found, (jlong)call.length, (jlong)call.token, (jlong)call.user_timestamp);
-
-    return response;
+    __atomic_sub_fetch(&queue->pop_waiters, 1, __ATOMIC_SEQ_CST);
 }
 
-JNIEXPORT jobjectArray JNICALL
-Java_com_acunu_castle_Castle_castle_1request_1blocking_1multi(JNIEnv *env, jobject connection, jlong request_array, jint request_count)
+/* returns the slot to fill and its position, or NULL if the ring is full */
+static callback_slot* callback_queue_claim(callback_queue* queue, unsigned long* claimed)
 {
-    castle_request_t* req = (castle_request_t*)request_array;
-    castle_connection *conn;
-    struct castle_blocking_call *call;
-    int ret, i;
-    jobject response;
-    jobjectArray response_array;
-
-    call = malloc(sizeof(struct castle_blocking_call) * request_count);
-    if (!call)
+    unsigned long pos = __atomic_load_n(&queue->enqueue_pos, __ATOMIC_RELAXED);
+    while (1)
     {
-        JNU_ThrowError(env, -ENOMEM, "No memory to allocate calls");
-        goto err0;
+        callback_slot* slot = &queue->slots[pos & queue->mask];
+        unsigned long seq = __atomic_load_n(&slot->seq, __ATOMIC_ACQUIRE);
+        long diff = (long)(seq - pos);
+        if (diff == 0)
+        {
+            if (__atomic_compare_exchange_n(&queue->enqueue_pos, &pos, pos + 1, true,
+                        __ATOMIC_SEQ_CST, __ATOMIC_RELAXED))
+            {
+                *claimed = pos;
+                return slot;
+            }
+        }
+        else if (diff < 0)
+            return NULL;
+        else
+            pos = __atomic_load_n(&queue->enqueue_pos, __ATOMIC_RELAXED);
     }
+}
 
-    /* Does not throw */
-    conn = (castle_connection *)(*env)->GetLongField(env, connection, castle_connptr_field);
-    if (!conn)
-        goto err1;
-
-    ret = castle_request_do_blocking_multi(conn, req, call, request_count);
-    /* if any failed, throw an exception now */
-    if (ret && ret != -ENOENT)
+/* returns the slot to empty and its position, or NULL if nothing has been published */
+static callback_slot* callback_queue_take(callback_queue* queue, unsigned long* taken)
+{
+    unsigned long pos = __atomic_load_n(&queue->dequeue_pos, __ATOMIC_RELAXED);
+    while (1)
     {
-        JNU_ThrowError(env, ret, "castle_request_blocking: castle_request_do_blocking failed");
-        goto err1;
+        callback_slot* slot = &queue->slots[pos & queue->mask];
+        unsigned long seq = __atomic_load_n(&slot->seq, __ATOMIC_ACQUIRE);
+        long diff = (long)(seq - (pos + 1));
+        if (diff == 0)
+        {
+            if (__atomic_compare_exchange_n(&queue->dequeue_pos, &pos, pos + 1, true,
+                        __ATOMIC_SEQ_CST, __ATOMIC_RELAXED))
+            {
+                *taken = pos;
+                return slot;
+            }
+        }
+        else if (diff < 0)
+            return NULL;
+        else
+            pos = __atomic_load_n(&queue->dequeue_pos, __ATOMIC_RELAXED);
     }
+}
 
-    /* build up response array */
-
-    response_array = (*env)->NewObjectArray(env, request_count, request_response_class, NULL);
-    if (!response_array || (*env)->ExceptionOccurred(env))
-        goto err1;
+/*
+ * Waits while the ring is full. Returns -1, without pushing, once the queue
+ * has been shut down.
+ */
+int callback_queue_push(callback_queue* queue, jobject callback, castle_response* resp)
+{
+    callback_slot* slot;
+    unsigned long pos;
+    int ret = -1;
 
-    for (i = 0; i < request_count; i++)
+    __atomic_add_fetch(&queue->pushing, 1, __ATOMIC_SEQ_CST);
+    while (1)
     {
-        jboolean found = (call[i].err != -ENOENT);
-        response = (*env)->NewObject(env, request_response_class, response_init_method, found,
-                (jlong)call[i].length, (jlong)call[i].token, (jlong)call[i].user_timestamp);
-        if (!response || (*env)->ExceptionOccurred(env))
-            goto err1;
+        if (__atomic_load_n(&queue->shutdown, __ATOMIC_SEQ_CST))
+            goto out;
 
-        (*env)->SetObjectArrayElement(env, response_array, i, response);
-        if ((*env)->ExceptionOccurred(env))
-            goto err1;
-    }
+        int popped = __atomic_load_n(&queue->popped, __ATOMIC_SEQ_CST);
+        if ((slot = callback_queue_claim(queue, &pos)))
+            break;
 
-    free(call);
+        __atomic_add_fetch(&queue->pop_waiters, 1, __ATOMIC_SEQ_CST);
+        if (!__atomic_load_n(&queue->shutdown, __ATOMIC_SEQ_CST))
+            futex_wait(&queue->popped, popped);
+        __atomic_sub_fetch(&queue->pop_waiters, 1, __ATOMIC_SEQ_CST);
+    }
 
-    return response_array;
+    slot->callback = callback;
+    memcpy(&slot->resp, resp, sizeof(*resp));
+    __atomic_store_n(&slot->seq, pos + 1, __ATOMIC_RELEASE);
+    queue_signal(&queue->pushed, &queue->push_waiters, 1);
+    ret = 0;
 
-err1: free(call);
-err0: return NULL;
+out:
+    /* last touch of the queue: once no one is pushing, a shut down queue may be destroyed */
+    __atomic_sub_fetch(&queue->pushing, 1, __ATOMIC_SEQ_CST);
+    return ret;
 }
 
-typedef struct
+/* empties a slot taken by callback_queue_take */
+static void callback_queue_release(callback_queue* queue, callback_slot* slot, unsigned long pos,
+        jobject* callback, castle_response* resp)
 {
-    jobject callback;
-    callback_queue* queue;
-} cb_userdata;
+    *callback = slot->callback;
+    memcpy(resp, &slot->resp, sizeof(*resp));
+    __atomic_store_n(&slot->seq, pos + queue->mask + 1, __ATOMIC_RELEASE);
+    /* after shutdown the only waiter that matters is callback_queue_shutdown itself */
+    queue_signal(&queue->popped, &queue->pop_waiters,
+            __atomic_load_n(&queue->shutdown, __ATOMIC_RELAXED) ? INT_MAX : 1);
+}
 
-typedef struct s_callback_data
+/*
+ * Waits until a completion is available. Returns -1 once the queue has been
+ * shut down and everything pushed before that has been popped.
+ */
+int callback_queue_pop(callback_queue* queue, jobject* callback, castle_response* resp)
 {
-    jobject callback;
-    castle_response resp;
-    struct s_callback_data* next;
-} callback_data;
+    callback_slot* slot;
+    unsigned long pos;
 
-struct s_callback_queue
-{
-    unsigned long max_size;
+    while (1)
+    {
+        int pushed = __atomic_load_n(&queue->pushed, __ATOMIC_SEQ_CST);
+        if ((slot = callback_queue_take(queue, &pos)))
+            break;
 
-    callback_data* head;
-    callback_data* tail;
-    unsigned long size;
+        if (__atomic_load_n(&queue->shutdown, __ATOMIC_SEQ_CST))
+        {
+            if (!__atomic_load_n(&queue->pushing, __ATOMIC_SEQ_CST) && callback_queue_empty(queue))
+                return -1;
+            /* a push is in flight; it won't signal once it has given up */
+            sched_yield();
+            continue;
+        }
 
-    pthread_mutex_t lock;
-    pthread_cond_t push_cnd;
-    pthread_cond_t pop_cnd;
-};
+        __atomic_add_fetch(&queue->push_waiters, 1, __ATOMIC_SEQ_CST);
+        futex_wait(&queue->pushed, pushed);
+        __atomic_sub_fetch(&queue->push_waiters, 1, __ATOMIC_SEQ_CST);
+    }
 
-void callback_queue_create(callback_queue** queue, unsigned long max_size)
-{
-    *queue = calloc(1, sizeof(**queue));
-    (*queue)->max_size = max_size;
-    pthread_mutex_init(&(*queue)->lock, NULL);
-    pthread_cond_init(&(*queue)->push_cnd, NULL);
-    pthread_cond_init(&(*queue)->pop_cnd, NULL);
+    callback_queue_release(queue, slot, pos, callback, resp);
+    return 0;
 }
 
-void callback_queue_destroy(callback_queue* queue)
+/*
+ * Waits for one completion as callback_queue_pop does, then takes up to max - 1
+ * more without waiting. Returns the number taken, or -1 as callback_queue_pop.
+ */
+int callback_queue_pop_batch(callback_queue* queue, jobject* callbacks, castle_response* resps, int max)
 {
-    pthread_cond_destroy(&queue->push_cnd);
-    pthread_cond_destroy(&queue->pop_cnd);
-    pthread_mutex_destroy(&queue->lock);
-    free(queue);
+    callback_slot* slot;
+    unsigned long pos;
+    int n = 1;
+
+    if (callback_queue_pop(queue, &callbacks[0], &resps[0]))
+        return -1;
+
+    while (n < max && (slot = callback_queue_take(queue, &pos)))
+    {
+        callback_queue_release(queue, slot, pos, &callbacks[n], &resps[n]);
+        ++n;
+    }
+    return n;
 }
 
-void callback_queue_shutdown(callback_queue* queue)
+/*
+ * Maps connections to their callback queues, so that the response thread can
+ * find the queue without a per-request userdata allocation: the userdata is
+ * just the callback's global reference. libcastle has no per-connection
+ * userdata, so the queue is found by hashing the connection pointer into one
+ * of REGISTRY_BUCKETS chains. Written under registry_lock, read without.
+ *
+ * There is no limit on the number of connections. Entries are never freed or
+ * moved to another chain, so that a response thread may still touch one after
+ * its connection has gone: it counts itself in the entry's users before
+ * checking that the entry is still its connection's, and unregister waits
+ * until no one is using the entry, so the queue is never freed under a push.
+ * An entry left empty by unregister is reused by the next connection that
+ * hashes to its chain, so there are never more entries than the most
+ * connections there have been at once.
+ */
+#define REGISTRY_BITS 6
+#define REGISTRY_BUCKETS (1 << REGISTRY_BITS)
+
+typedef struct s_queue_registration
+{
+    castle_connection* conn;
+    callback_queue* queue;
+    int users;
+    struct s_queue_registration* next;
+} queue_registration;
+
+static queue_registration* queue_registry[REGISTRY_BUCKETS];
+static pthread_mutex_t registry_lock = PTHREAD_MUTEX_INITIALIZER;
+
+static queue_registration** registry_bucket(castle_connection* conn)
 {
-    pthread_mutex_lock(&queue->lock);
-    queue->max_size = 0;
-    pthread_cond_broadcast(&queue->pop_cnd);
-    pthread_cond_broadcast(&queue->push_cnd);
-    while(queue->size)
-        pthread_cond_wait(&queue->pop_cnd, &queue->lock);
-    pthread_mutex_unlock(&queue->lock);
+    /* Fibonacci hashing; the low bits of a heap pointer are mostly alignment */
+    unsigned long h = (unsigned long)conn * 0x9E3779B97F4A7C15UL;
+    return &queue_registry[h >> (sizeof(h) * CHAR_BIT - REGISTRY_BITS)];
 }
 
-int callback_queue_push(callback_queue* queue, callback_data* data)
+static int callback_queue_register(castle_connection* conn, callback_queue* queue)
 {
-    pthread_mutex_lock(&queue->lock);
-    while(queue->max_size && queue->size >= queue->max_size)
-        pthread_cond_wait(&queue->pop_cnd, &queue->lock);
+    queue_registration** bucket = registry_bucket(conn);
+    queue_registration* r;
+    int ret = 0;
 
-    if (!queue->max_size) /* shutdown */
+    pthread_mutex_lock(&registry_lock);
+    for (r = __atomic_load_n(bucket, __ATOMIC_RELAXED); r; r = r->next)
+        if (!__atomic_load_n(&r->conn, __ATOMIC_RELAXED))
+            break;
+
+    if (!r)
     {
-        pthread_mutex_unlock(&queue->lock);
-        return -1;
+        r = calloc(1, sizeof(*r));
+        if (!r)
+        {
+            ret = -1;
+            goto out;
+        }
+        r->next = __atomic_load_n(bucket, __ATOMIC_RELAXED);
+        /* published with a release store, so readers see next set */
+        __atomic_store_n(bucket, r, __ATOMIC_RELEASE);
     }
 
-    callback_data* old_tail = queue->tail;
-    queue->tail = data;
-    if (old_tail)
-        old_tail->next = data;
-    else
-        queue->head = data;
+    __atomic_store_n(&r->queue, queue, __ATOMIC_RELAXED);
+    __atomic_store_n(&r->conn, conn, __ATOMIC_SEQ_CST);
+out:
+    pthread_mutex_unlock(&registry_lock);
+    return ret;
+}
 
-    ++queue->size;
-    pthread_cond_signal(&queue->push_cnd);
-    pthread_mutex_unlock(&queue->lock);
-    return 0;
+/* on return, no response thread is using, or can find, conn's queue */
+static void callback_queue_unregister(castle_connection* conn)
+{
+    queue_registration* r;
+
+    pthread_mutex_lock(&registry_lock);
+    for (r = __atomic_load_n(registry_bucket(conn), __ATOMIC_RELAXED); r; r = r->next)
+    {
+        if (__atomic_load_n(&r->conn, __ATOMIC_RELAXED) == conn)
+        {
+            __atomic_store_n(&r->conn, NULL, __ATOMIC_SEQ_CST);
+            /* pushes give up once the queue is shut down, so this doesn't wait long */
+            while (__atomic_load_n(&r->users, __ATOMIC_SEQ_CST))
+                sched_yield();
+        }
+    }
+    pthread_mutex_unlock(&registry_lock);
 }
 
-int callback_queue_pop(callback_queue* queue, callback_data** data)
+/*
+ * Finds conn's queue and holds it until callback_queue_release_registration,
+ * or returns NULL if conn has none.
+ */
+static queue_registration* callback_queue_acquire(castle_connection* conn)
 {
-    pthread_mutex_lock(&queue->lock);
-    while(queue->max_size && !queue->head)
-        pthread_cond_wait(&queue->push_cnd, &queue->lock);
+    queue_registration* r;
 
-    if (!queue->head) /* shutdown */
+    for (r = __atomic_load_n(registry_bucket(conn), __ATOMIC_ACQUIRE); r; r = r->next)
     {
-        *data = NULL;
-        pthread_mutex_unlock(&queue->lock);
-        return -1;
+        if (__atomic_load_n(&r->conn, __ATOMIC_SEQ_CST) != conn)
+            continue;
+
+        __atomic_add_fetch(&r->users, 1, __ATOMIC_SEQ_CST);
+        /* unregister may have cleared the entry between the check and the count */
+        if (__atomic_load_n(&r->conn, __ATOMIC_SEQ_CST) == conn)
+            return r;
+        __atomic_sub_fetch(&r->users, 1, __ATOMIC_SEQ_CST);
     }
+    return NULL;
+}
 
-    *data = queue->head;
-    callback_data* new_head = queue->head->next;
-    queue->head = new_head;
+static void callback_queue_release_registration(queue_registration* r)
+{
+    __atomic_sub_fetch(&r->users, 1, __ATOMIC_SEQ_CST);
+}
 
-    if (!new_head)
-        queue->tail = NULL;
+/* pushes a completion to conn's queue, if it still has one */
+static void callback_queue_push_to(castle_connection* conn, jobject callback, castle_response* resp)
+{
+    queue_registration* r = callback_queue_acquire(conn);
+    if (!r)
+        return;
 
-    --queue->size;
-    pthread_cond_signal(&queue->pop_cnd);
-    pthread_mutex_unlock(&queue->lock);
-    return 0;
+    callback_queue_push(__atomic_load_n(&r->queue, __ATOMIC_RELAXED), callback, resp);
+    callback_queue_release_registration(r);
 }
 
 /* swallow exception and return */
@@ -1276,57 +1597,75 @@ JNIEXPORT void JNICALL Java_com_acunu_castle_Castle_callback_1queue_1shutdown(JN
         callback_queue_shutdown(queue);
 }
 
-JNIEXPORT void JNICALL Java_com_acunu_castle_Castle_callback_1thread_1run(JNIEnv* env, jobject connection)
+#define CALLBACK_BATCH_MAX 64
+
+/*
+ * Drains the callback queue in batches of up to CALLBACK_BATCH_MAX completions,
+ * copying each batch into the arrays of the thread's CompletionBatch and running
+ * it with a single upcall.
+ */
+JNIEXPORT void JNICALL Java_com_acunu_castle_Castle_callback_1thread_1run(JNIEnv* env, jobject connection, jobject batch)
 {
     callback_queue* queue = (callback_queue*)(*env)->GetLongField(env, connection, castle_cbqueueptr_field);
-    callback_data* data = NULL;
+    jobject callbacks[CALLBACK_BATCH_MAX];
+    castle_response resps[CALLBACK_BATCH_MAX];
+    jint errs[CALLBACK_BATCH_MAX];
+    jlong lengths[CALLBACK_BATCH_MAX];
+    jlong tokens[CALLBACK_BATCH_MAX];
+    jlong timestamps[CALLBACK_BATCH_MAX];
+    jobjectArray callbacks_array;
+    jintArray errs_array;
+    jlongArray lengths_array, tokens_array, timestamps_array;
+    int max, n, i;
 
     if (!queue)
         return;
 
-    while(0 == callback_queue_pop(queue, &data))
-    {
-        if (!data)
-            break;
-
-        jboolean found = data->resp.err ? JNI_FALSE : JNI_TRUE;
-
-        jobject response = (*env)->NewObject(env, request_response_class, response_init_method, found, (jlong)data->resp.length, (jlong)data->resp.token, (jlong)data->resp.user_timestamp);
-        CATCH_AND_EXIT(out1);
-        if (!response)
-            goto out1;
+    callbacks_array = (jobjectArray)(*env)->GetObjectField(env, batch, batch_callbacks_field);
+    errs_array = (jintArray)(*env)->GetObjectField(env, batch, batch_errs_field);
+    lengths_array = (jlongArray)(*env)->GetObjectField(env, batch, batch_lengths_field);
+    tokens_array = (jlongArray)(*env)->GetObjectField(env, batch, batch_tokens_field);
+    timestamps_array = (jlongArray)(*env)->GetObjectField(env, batch, batch_timestamps_field);
+    if (!callbacks_array || !errs_array || !lengths_array || !tokens_array || !timestamps_array)
+        return;
 
-        (*env)->CallVoidMethod(env, data->callback, callback_setresponse_method, response);
-        CATCH_AND_EXIT(out2);
+    max = (*env)->GetArrayLength(env, callbacks_array);
+    if (max > CALLBACK_BATCH_MAX)
+        max = CALLBACK_BATCH_MAX;
 
-        (*env)->CallVoidMethod(env, data->callback, callback_seterr_method, data->resp.err);
-        CATCH_AND_EXIT(out2);
+    while((n = callback_queue_pop_batch(queue, callbacks, resps, max)) > 0)
+    {
+        for (i = 0; i < n; i++)
+        {
+            errs[i] = resps[i].err;
+            lengths[i] = (jlong)resps[i].length;
+            tokens[i] = (jlong)resps[i].token;
+            timestamps[i] = (jlong)resps[i].user_timestamp;
+            (*env)->SetObjectArrayElement(env, callbacks_array, i, callbacks[i]);
+        }
+        (*env)->SetIntArrayRegion(env, errs_array, 0, n, errs);
+        (*env)->SetLongArrayRegion(env, lengths_array, 0, n, lengths);
+        (*env)->SetLongArrayRegion(env, tokens_array, 0, n, tokens);
+        (*env)->SetLongArrayRegion(env, timestamps_array, 0, n, timestamps);
+        CATCH_AND_EXIT(out);
 
-        (*env)->CallVoidMethod(env, data->callback, callback_run_method);
-        CATCH_AND_EXIT(out2);
+        (*env)->CallVoidMethod(env, batch, batch_run_method, (jint)n);
+        CATCH_AND_EXIT(out);
 
-out2:   (*env)->DeleteLocalRef(env, response);
-out1:   (*env)->DeleteGlobalRef(env, data->callback);
-        free(data);
+out:    for (i = 0; i < n; i++)
+            (*env)->DeleteGlobalRef(env, callbacks[i]);
     }
 
     return;
 }
 
+/* userdata is the callback's global reference */
 void handle_callback(castle_connection* conn, castle_response* resp, void* userdata)
 {
-    cb_userdata* data = (cb_userdata*)userdata;
-    if (!data)
-        return;
-    callback_data* node = (callback_data*)calloc(1, sizeof(*node));
-    if (!node)
+    if (!userdata)
         return;
 
-    node->callback = data->callback;
-    memcpy(&node->resp, resp, sizeof(*resp));
-
-    callback_queue_push(data->queue, node);
-    free(data);
+    callback_queue_push_to(conn, (jobject)userdata, resp);
 }
 
 JNIEXPORT void JNICALL Java_com_acunu_castle_Castle_castle_1request_1send_1multi(
@@ -1334,30 +1673,65 @@ JNIEXPORT void JNICALL Java_com_acunu_castle_Castle_castle_1request_1send_1multi
 )
 {
     castle_connection* conn = NULL;
-    callback_queue* queue = NULL;
+    jobject callback_ref = NULL;
 
     castle_request_t* reqs = (castle_request_t*)requests;
-    cb_userdata* userdata = NULL;
-
-    CHK_MEM( userdata = malloc(sizeof(*userdata)), ret);
 
     /* nothrow */
     conn = (castle_connection*)(*env)->GetLongField(env, connection, castle_connptr_field);
-    CHK_RESULT(conn, err1);
+    CHK_RESULT(conn, ret);
 
     /* nothrow */
-    queue = (callback_queue*)(*env)->GetLongField(env, connection, castle_cbqueueptr_field);
-    CHK_RESULT(queue, err1);
+    callback_ref = (*env)->NewGlobalRef(env, callback);
+    CHK_RESULT(callback_ref, ret);
+
+    castle_request_send_batch(conn, reqs, &handle_callback, (void*)callback_ref, (int)num_requests);
+
+ret:  return;
+}
+
+/*
+ * Sends each request with its own callback, so that each gets its own
+ * response, in a single call. libcastle calls back once per
+ * castle_request_send_batch, so each request is sent as a batch of one.
+ * Either every request is sent or none is.
+ */
+JNIEXPORT void JNICALL Java_com_acunu_castle_Castle_castle_1request_1send_1each(
+        JNIEnv* env, jobject connection, jlong requests, jint num_requests, jobjectArray callbacks
+)
+{
+    castle_connection* conn = NULL;
+    jobject refs_on_stack[BLOCKING_CALLS_ON_STACK];
+    jobject* refs = refs_on_stack;
+    int i, made = 0;
+
+    castle_request_t* reqs = (castle_request_t*)requests;
 
     /* nothrow */
-    userdata->callback = (*env)->NewGlobalRef(env, callback);
-    CHK_RESULT(userdata->callback, err1);
-    userdata->queue = queue;
+    conn = (castle_connection*)(*env)->GetLongField(env, connection, castle_connptr_field);
+    CHK_RESULT(conn, ret);
+
+    if (num_requests > BLOCKING_CALLS_ON_STACK)
+        CHK_MEM(refs = malloc(num_requests * sizeof(*refs)), ret);
+
+    for (made = 0; made < num_requests; made++)
+    {
+        jobject callback = (*env)->GetObjectArrayElement(env, callbacks, made);
+        refs[made] = (*env)->NewGlobalRef(env, callback);
+        (*env)->DeleteLocalRef(env, callback);
+        CHK_RESULT(refs[made], err);
+    }
 
-    castle_request_send_batch(conn, reqs, &handle_callback, (void*)userdata, (int)num_requests);
-    goto ret;
+    for (i = 0; i < num_requests; i++)
+        castle_request_send_batch(conn, reqs + i, &handle_callback, (void*)refs[i], 1);
+    goto out;
 
-err1: free(userdata);
+err:
+    for (i = 0; i < made; i++)
+        (*env)->DeleteGlobalRef(env, refs[i]);
+out:
+    if (refs != refs_on_stack)
+        free(refs);
 ret:  return;
 }
 
@@ -0,0 +1,94 @@
+package com.acunu.castle;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/**
+ * Checks that leasing and returning buffers, a few at a time as Castle's
+ * requests do, allocates nothing on the heap once the pool is warm.
+ */
+public class BufferPoolAllocationTest
+{
+	private static final int WARMUP = 20000;
+	private static final int ITERATIONS = 100000;
+	private static final int BUFFERS_PER_LEASE = 3;
+
+	/* room for the odd allocation the measurement itself may cause; far less than one per iteration */
+	private static final long SLACK_BYTES = 1024;
+
+	private static BufferPool pool(final int capacity, final boolean blocking)
+	{
+		final BufferPool pool = new BufferPool(64, capacity, blocking);
+		for (int i = 0; i < capacity; ++i)
+			pool.add(ByteBuffer.allocateDirect(64));
+		return pool;
+	}
+
+	private static void leaseAndReturn(final BufferPool pool, final boolean blocking, final ByteBuffer[] leased)
+	{
+		if (blocking)
+		{
+			pool.reserve(leased.length);
+			for (int i = 0; i < leased.length; ++i)
+				leased[i] = pool.takeReserved();
+		} else
+		{
+			for (int i = 0; i < leased.length; ++i)
+				leased[i] = pool.tryLease();
+		}
+
+		for (int i = 0; i < leased.length; ++i)
+		{
+			assertNotNull(leased[i]);
+			assertTrue(pool.put(leased[i]));
+			leased[i] = null;
+		}
+	}
+
+	private static long allocatedBytes()
+	{
+		return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(Thread
+				.currentThread().getId());
+	}
+
+	private static void check(final BufferPool pool, final boolean blocking)
+	{
+		final ByteBuffer[] leased = new ByteBuffer[BUFFERS_PER_LEASE];
+		for (int i = 0; i < WARMUP; ++i)
+			leaseAndReturn(pool, blocking, leased);
+
+		final long before = allocatedBytes();
+		for (int i = 0; i < ITERATIONS; ++i)
+			leaseAndReturn(pool, blocking, leased);
+		final long allocated = allocatedBytes() - before;
+
+		assertTrue("allocated " + allocated + " bytes in " + ITERATIONS + " leases", allocated <= SLACK_BYTES);
+		assertEquals(pool.getCapacity(), pool.getHeld());
+	}
+
+	/* too small for magazines, so every lease goes through the shared stack */
+	@Test
+	public void sharedStack()
+	{
+		check(pool(8, false), false);
+	}
+
+	/* large enough for magazines, which serve every lease once they are warm */
+	@Test
+	public void magazines()
+	{
+		check(pool(64, false), false);
+	}
+
+	@Test
+	public void blocking()
+	{
+		check(pool(8, true), true);
+	}
+}
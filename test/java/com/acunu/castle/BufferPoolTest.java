@@ -0,0 +1,267 @@
+package com.acunu.castle;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+/**
+ * Leases and returns buffers from many threads at once, through the shared
+ * stack, the magazines and the blocking semaphore.
+ */
+public class BufferPoolTest
+{
+	private static final int SIZE = 64;
+	private static final int THREADS = 8;
+	private static final int ITERATIONS = 20000;
+
+	/*
+	 * A pool filled with capacity buffers, and which of them are leased, so
+	 * that a buffer handed out twice is caught.
+	 */
+	private static final class Tracked
+	{
+		final BufferPool pool;
+		/* read-only once built, so safe to read from any thread */
+		final Map<ByteBuffer, Integer> ids = new IdentityHashMap<ByteBuffer, Integer>();
+		final AtomicIntegerArray leased;
+
+		Tracked(final int capacity, final boolean blocking)
+		{
+			pool = new BufferPool(SIZE, capacity, blocking);
+			leased = new AtomicIntegerArray(capacity);
+			for (int i = 0; i < capacity; ++i)
+			{
+				final ByteBuffer buffer = ByteBuffer.allocateDirect(SIZE);
+				ids.put(buffer, i);
+				pool.add(buffer);
+			}
+		}
+
+		void leased(final ByteBuffer buffer)
+		{
+			final Integer id = ids.get(buffer);
+			if (id == null)
+				throw new AssertionError("leased a buffer that was never in the pool");
+			if (!leased.compareAndSet(id, 0, 1))
+				throw new AssertionError("buffer " + id + " handed out twice");
+		}
+
+		void returned(final ByteBuffer buffer)
+		{
+			leased.set(ids.get(buffer), 0);
+			if (!pool.put(buffer))
+				throw new AssertionError("pool refused a buffer it had leased");
+		}
+	}
+
+	/*
+	 * Runs body on THREADS threads at once and rethrows the first failure
+	 */
+	private static void runConcurrently(final Runnable body) throws Throwable
+	{
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		final CountDownLatch start = new CountDownLatch(1);
+		final Thread[] threads = new Thread[THREADS];
+		for (int t = 0; t < THREADS; ++t)
+		{
+			threads[t] = new Thread("BufferPoolTest " + t)
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						start.await();
+						body.run();
+					} catch (final Throwable e)
+					{
+						failure.compareAndSet(null, e);
+					}
+				}
+			};
+			threads[t].start();
+		}
+		start.countDown();
+		for (final Thread thread : threads)
+			thread.join();
+		if (failure.get() != null)
+			throw failure.get();
+	}
+
+	private static void checkNoneHandedOutTwice(final int capacity, final int perLease) throws Throwable
+	{
+		final Tracked tracked = new Tracked(capacity, false);
+		runConcurrently(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				final ByteBuffer[] buffers = new ByteBuffer[perLease];
+				for (int i = 0; i < ITERATIONS; ++i)
+				{
+					for (int j = 0; j < perLease; ++j)
+					{
+						buffers[j] = tracked.pool.tryLease();
+						if (buffers[j] != null)
+							tracked.leased(buffers[j]);
+					}
+					for (int j = 0; j < perLease; ++j)
+					{
+						if (buffers[j] != null)
+							tracked.returned(buffers[j]);
+						buffers[j] = null;
+					}
+				}
+			}
+		});
+		assertEquals(capacity, tracked.pool.getHeld());
+	}
+
+	/* too small for magazines, and often empty, so every lease races on the shared stack */
+	@Test(timeout = 60000)
+	public void sharedStackHandsEachBufferOutOnce() throws Throwable
+	{
+		checkNoneHandedOutTwice(8, 2);
+	}
+
+	@Test(timeout = 60000)
+	public void magazinesHandEachBufferOutOnce() throws Throwable
+	{
+		checkNoneHandedOutTwice(64, 3);
+	}
+
+	@Test(timeout = 60000)
+	public void blockingHandsEachBufferOutOnce() throws Throwable
+	{
+		final Tracked tracked = new Tracked(THREADS, true);
+		runConcurrently(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				for (int i = 0; i < ITERATIONS; ++i)
+				{
+					tracked.pool.reserve(1);
+					final ByteBuffer buffer = tracked.pool.takeReserved();
+					tracked.leased(buffer);
+					tracked.returned(buffer);
+				}
+			}
+		});
+		assertEquals(THREADS, tracked.pool.getHeld());
+	}
+
+	@Test(timeout = 60000)
+	public void blockingWaitsAtCapacity() throws Throwable
+	{
+		final BufferPool pool = new Tracked(2, true).pool;
+		pool.reserve(2);
+		final ByteBuffer first = pool.takeReserved();
+		final ByteBuffer second = pool.takeReserved();
+		assertNull("tryLease at capacity", pool.tryLease());
+
+		final AtomicReference<ByteBuffer> got = new AtomicReference<ByteBuffer>();
+		final Thread waiter = new Thread("BufferPoolTest waiter")
+		{
+			@Override
+			public void run()
+			{
+				pool.reserve(1);
+				got.set(pool.takeReserved());
+			}
+		};
+		waiter.start();
+
+		waiter.join(200);
+		assertTrue("the waiter should still be waiting", waiter.isAlive());
+		assertNull(got.get());
+
+		pool.put(first);
+		waiter.join();
+		assertNotNull(got.get());
+
+		pool.put(second);
+		pool.put(got.get());
+		assertEquals(2, pool.getHeld());
+	}
+
+	/*
+	 * As BufferManager leases several buffers: in ascending size order,
+	 * reserving every buffer needed from one pool at once. Every thread wants
+	 * more of each size than half the capacity, so leasing one buffer at a
+	 * time would soon deadlock.
+	 */
+	@Test(timeout = 60000)
+	public void ascendingMultiLeaseDoesNotDeadlock() throws Throwable
+	{
+		final BufferPool small = new Tracked(3, true).pool;
+		final BufferPool large = new Tracked(3, true).pool;
+		runConcurrently(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				final ByteBuffer[] buffers = new ByteBuffer[4];
+				for (int i = 0; i < ITERATIONS; ++i)
+				{
+					small.reserve(2);
+					buffers[0] = small.takeReserved();
+					buffers[1] = small.takeReserved();
+					large.reserve(2);
+					buffers[2] = large.takeReserved();
+					buffers[3] = large.takeReserved();
+
+					small.put(buffers[0]);
+					small.put(buffers[1]);
+					large.put(buffers[2]);
+					large.put(buffers[3]);
+				}
+			}
+		});
+		assertEquals(3, small.getHeld());
+		assertEquals(3, large.getHeld());
+	}
+
+	/* buffers left in the magazines of threads that have died are leased again */
+	@Test(timeout = 60000)
+	public void deadThreadsMagazinesAreReclaimed() throws Throwable
+	{
+		final int capacity = 64;
+		final Tracked tracked = new Tracked(capacity, false);
+		runConcurrently(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				final ByteBuffer[] buffers = new ByteBuffer[4];
+				for (int j = 0; j < buffers.length; ++j)
+				{
+					buffers[j] = tracked.pool.tryLease();
+					tracked.leased(buffers[j]);
+				}
+				for (final ByteBuffer buffer : buffers)
+					tracked.returned(buffer);
+			}
+		});
+
+		for (int i = 0; i < capacity; ++i)
+		{
+			final ByteBuffer buffer = tracked.pool.tryLease();
+			if (buffer == null)
+				fail("only " + i + " of " + capacity + " buffers could be leased");
+			tracked.leased(buffer);
+		}
+		assertNull(tracked.pool.tryLease());
+	}
+}
@@ -0,0 +1,102 @@
+package com.acunu.castle;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/**
+ * Checks the packed length Key computes in Java, and the bytes copyToBuffer
+ * writes, against castle's own packing. Needs the native library.
+ */
+public class KeyPackingTest
+{
+	private static byte[] bytes(final int length, final int seed)
+	{
+		final byte[] b = new byte[length];
+		for (int i = 0; i < length; ++i)
+			b[i] = (byte) (seed + 31 * i);
+		return b;
+	}
+
+	private static void check(final byte[][] dims) throws Exception
+	{
+		final Key key = new Key(dims);
+
+		final int nativeLength = Key.length(dims);
+		assertEquals("packedLength", nativeLength, Key.packedLength(dims));
+		assertEquals("getApproximateLength", nativeLength, key.getApproximateLength());
+
+		final byte[] flags = new byte[dims.length];
+		for (int i = 0; i < dims.length; ++i)
+			flags[i] = Key.KeyDimensionFlags.valueOf(dims[i]).value;
+
+		final ByteBuffer expected = ByteBuffer.allocateDirect(Key.MAX_KEY_SIZE * 2);
+		assertEquals("native copy length", nativeLength, Key.copy(dims, flags, expected));
+
+		final ByteBuffer actual = ByteBuffer.allocateDirect(Key.MAX_KEY_SIZE * 2);
+		assertEquals("copyToBuffer length", nativeLength, key.copyToBuffer(actual));
+
+		for (int i = 0; i < nativeLength; ++i)
+			assertEquals("byte " + i, expected.get(i), actual.get(i));
+	}
+
+	@Test
+	public void empty() throws Exception
+	{
+		check(new byte[0][]);
+	}
+
+	@Test
+	public void singleDimension() throws Exception
+	{
+		check(new byte[][] { bytes(7, 1) });
+	}
+
+	@Test
+	public void emptyDimension() throws Exception
+	{
+		check(new byte[][] { new byte[0], bytes(3, 2) });
+	}
+
+	@Test
+	public void multiDimension() throws Exception
+	{
+		check(new byte[][] { bytes(1, 3), bytes(16, 4), bytes(5, 5), bytes(33, 6) });
+	}
+
+	@Test
+	public void infiniteDimensions() throws Exception
+	{
+		check(new byte[][] { bytes(4, 7), Key.PLUS_INF, Key.MINUS_INF });
+		check(new byte[][] { Key.PLUS_INF });
+	}
+
+	@Test
+	public void maxSize() throws Exception
+	{
+		/* two dimensions: 16 + 2 * 4 bytes of headers, and the rest data */
+		final int data = Key.MAX_KEY_SIZE - 16 - 2 * 4;
+		final byte[][] dims = new byte[][] { bytes(data / 2, 8), bytes(data - data / 2, 9) };
+		check(dims);
+		assertEquals(Key.MAX_KEY_SIZE, new Key(dims).getPackedLength());
+	}
+
+	/* a dimension replaced after the key was measured, as the iterators do to cloned keys */
+	@Test
+	public void setDimensionResetsLength() throws Exception
+	{
+		final Key key = new Key(new byte[][] { bytes(4, 10), bytes(6, 11) });
+		assertEquals(16 + 2 * 4 + 10, key.getPackedLength());
+
+		key.setDimension(0, bytes(20, 12));
+		assertEquals(16 + 2 * 4 + 26, key.getPackedLength());
+		assertEquals(Key.length(key.key), key.getApproximateLength());
+
+		final Key clone = key.clone();
+		clone.setDimension(1, new byte[0]);
+		assertEquals(16 + 2 * 4 + 20, clone.getPackedLength());
+		assertEquals(16 + 2 * 4 + 26, key.getPackedLength());
+	}
+}
@@ -0,0 +1,298 @@
+package com.acunu.castle;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Decodes iterator buffers laid out by hand as castle lays them out, through
+ * KeyValueCursor and bufferToKvList. Loads Key, so needs the native library,
+ * but talks to no castle.
+ */
+public class KeyValueCursorTest
+{
+	/* where the pointers in the buffer pretend it was mapped */
+	private static final long START = 0x7f3a12340000L;
+
+	/* the cursor must decode from the buffer's position, not from 0 */
+	private static final int BASE = 40;
+
+	private static final int INLINE = 1;
+	private static final int OUT_OF_LINE = 2;
+	private static final int INLINE_COUNTER = 3;
+
+	/*
+	 * Builds an iterator buffer: a list of entries, each pointing at its key,
+	 * its value struct and its inline value, all placed one after another.
+	 */
+	private static final class IterBuffer
+	{
+		final ByteBuffer buffer = ByteBuffer.allocate(BASE + 8192).order(ByteOrder.LITTLE_ENDIAN);
+		final List<KeyValue> expected = new ArrayList<KeyValue>();
+		private int end = BASE;
+		private int lastEntry = -1;
+
+		IterBuffer()
+		{
+			/* garbage before the buffer's position */
+			for (int i = 0; i < BASE; ++i)
+				buffer.put(i, (byte) 0xA5);
+		}
+
+		private long address(final int index)
+		{
+			return index == 0 ? 0 : START + index - BASE;
+		}
+
+		private int allocate(final int length)
+		{
+			final int at = end;
+			end += length + 7 & ~7;
+			return at;
+		}
+
+		private int entry(final Key key, final long timestamp)
+		{
+			final int entry = allocate(32);
+			if (lastEntry >= 0)
+				buffer.putLong(lastEntry, address(entry));
+			lastEntry = entry;
+			buffer.putLong(entry, 0L);
+
+			final int keyAt = allocate(Key.packedLength(key.key));
+			try
+			{
+				final ByteBuffer keyBuffer = buffer.duplicate();
+				keyBuffer.position(keyAt);
+				key.copyToBuffer(keyBuffer);
+			} catch (final CastleException e)
+			{
+				throw new AssertionError(e);
+			}
+			buffer.putLong(entry + 8, address(keyAt));
+			buffer.putLong(entry + 16, 0L);
+			buffer.putLong(entry + 24, timestamp);
+			return entry;
+		}
+
+		private void valueStruct(final int entry, final long length, final int type, final int valueAt)
+		{
+			final int struct = allocate(24);
+			buffer.putLong(struct, length);
+			buffer.put(struct + 8, (byte) type);
+			buffer.putLong(struct + 16, address(valueAt));
+			buffer.putLong(entry + 16, address(struct));
+		}
+
+		IterBuffer inline(final Key key, final long timestamp, final byte[] value)
+		{
+			return inline(key, timestamp, value, INLINE);
+		}
+
+		IterBuffer inline(final Key key, final long timestamp, final byte[] value, final int type)
+		{
+			final int entry = entry(key, timestamp);
+			final int valueAt = allocate(value.length);
+			for (int i = 0; i < value.length; ++i)
+				buffer.put(valueAt + i, value[i]);
+			valueStruct(entry, value.length, type, value.length == 0 ? 0 : valueAt);
+
+			final KeyValue kv = new KeyValue(key, timestamp, value);
+			kv.setType(KeyValueType.valueOf(type));
+			expected.add(kv);
+			return this;
+		}
+
+		/* a value stored outside the tree, which the buffer gives only the length of */
+		IterBuffer outOfLine(final Key key, final long timestamp, final long length)
+		{
+			final int entry = entry(key, timestamp);
+			valueStruct(entry, length, OUT_OF_LINE, 0);
+
+			final KeyValue kv = new KeyValue(key, timestamp, new byte[0], length);
+			kv.setType(KeyValueType.CASTLE_VALUE_TYPE_OUT_OF_LINE);
+			expected.add(kv);
+			return this;
+		}
+
+		/* an entry read with NO_VALUES */
+		IterBuffer noValue(final Key key, final long timestamp)
+		{
+			entry(key, timestamp);
+
+			final KeyValue kv = new KeyValue(key);
+			kv.setTimestamp(timestamp);
+			expected.add(kv);
+			return this;
+		}
+
+		/*
+		 * The last buffer of a query ends with a null pointer; any other ends
+		 * with a pointer that doesn't move forward.
+		 */
+		ByteBuffer build(final boolean more)
+		{
+			if (lastEntry < 0)
+			{
+				/* an empty buffer from iter_start: one entry with no key */
+				final int entry = allocate(32);
+				buffer.putLong(entry, 0L);
+				buffer.putLong(entry + 8, 0L);
+			} else
+				buffer.putLong(lastEntry, more ? START : 0L);
+
+			buffer.limit(end).position(BASE);
+			return buffer;
+		}
+	}
+
+	private static byte[] bytes(final int length, final int seed)
+	{
+		final byte[] b = new byte[length];
+		for (int i = 0; i < length; ++i)
+			b[i] = (byte) (seed + 31 * i);
+		return b;
+	}
+
+	private static Key key(final String... dims)
+	{
+		final byte[][] key = new byte[dims.length][];
+		for (int i = 0; i < dims.length; ++i)
+			key[i] = dims[i].getBytes();
+		return new Key(key);
+	}
+
+	private static void assertSame(final KeyValue expected, final KeyValue actual)
+	{
+		assertEquals(expected, actual);
+		assertEquals("timestamp of " + expected, expected.getTimestamp(), actual.getTimestamp());
+		assertEquals("type of " + expected, expected.getType(), actual.getType());
+	}
+
+	private static void check(final IterBuffer iterBuffer, final boolean more) throws Exception
+	{
+		final ByteBuffer buffer = iterBuffer.build(more);
+		final List<KeyValue> expected = iterBuffer.expected;
+
+		final KeyValueCursor cursor = new KeyValueCursor(buffer, START);
+		for (final KeyValue kv : expected)
+		{
+			assertTrue(cursor.next());
+			assertSame(kv, cursor.getKeyValue());
+		}
+		assertFalse(cursor.next());
+		assertEquals("more", more, cursor.hasMore());
+		cursor.close();
+
+		final Castle.CastleKVList kvList = Castle.bufferToKvList(buffer, START);
+		assertEquals(expected.size(), kvList.kvList.size());
+		for (int i = 0; i < expected.size(); ++i)
+			assertSame(expected.get(i), kvList.kvList.get(i));
+		assertEquals("hasNext", more, kvList.hasNext);
+	}
+
+	@Test
+	public void inlineValues() throws Exception
+	{
+		check(new IterBuffer().inline(key("a"), 1, bytes(5, 1)).inline(key("b"), 2, bytes(100, 2))
+				.inline(key("c"), 3, bytes(1, 3)), false);
+	}
+
+	@Test
+	public void emptyAndCounterValues() throws Exception
+	{
+		check(new IterBuffer().inline(key("empty"), 4, new byte[0]).inline(key("counter"), 5, bytes(8, 4),
+				INLINE_COUNTER), false);
+	}
+
+	@Test
+	public void outOfLineValues() throws Exception
+	{
+		check(new IterBuffer().outOfLine(key("big"), 6, 1L << 20).inline(key("small"), 7, bytes(3, 5))
+				.outOfLine(key("huge"), 8, 3L << 32), false);
+	}
+
+	@Test
+	public void entriesWithoutValues() throws Exception
+	{
+		check(new IterBuffer().noValue(key("x"), 9).noValue(key("y"), 10), false);
+	}
+
+	@Test
+	public void mixedEntries() throws Exception
+	{
+		check(new IterBuffer().inline(key("a", "1"), 11, bytes(7, 6)).outOfLine(key("a", "2"), 12, 50000)
+				.noValue(key("a", "3"), 13).inline(key("b", ""), 14, bytes(2, 7)), false);
+	}
+
+	/* empty dimensions, first, in the middle and last */
+	@Test
+	public void emptyDimensions() throws Exception
+	{
+		check(new IterBuffer().inline(key("", "x", ""), 15, bytes(4, 8)).inline(key("p", "", "q"), 16, bytes(4, 9)),
+				false);
+	}
+
+	@Test
+	public void moreToCome() throws Exception
+	{
+		check(new IterBuffer().inline(key("a"), 17, bytes(5, 10)).noValue(key("b"), 18), true);
+		check(new IterBuffer().inline(key("only"), 19, bytes(5, 11)), true);
+	}
+
+	@Test
+	public void emptyBuffer() throws Exception
+	{
+		check(new IterBuffer(), false);
+	}
+
+	/* the offsets are into getBuffer(), and the copies are taken from there */
+	@Test
+	public void offsets() throws Exception
+	{
+		final byte[] value = bytes(33, 12);
+		final ByteBuffer buffer = new IterBuffer().inline(key("dim0", "", "dimension2"), 20, value)
+				.outOfLine(key("z"), 21, 99).build(false);
+
+		final KeyValueCursor cursor = new KeyValueCursor(buffer, START);
+		assertTrue(cursor.next());
+		assertEquals(3, cursor.getDimensions());
+		final ByteBuffer view = cursor.getBuffer();
+		final String[] dims = { "dim0", "", "dimension2" };
+		for (int i = 0; i < dims.length; ++i)
+		{
+			assertEquals(dims[i].length(), cursor.getDimensionLength(i));
+			final byte[] dim = new byte[cursor.getDimensionLength(i)];
+			final ByteBuffer src = view.duplicate();
+			src.position(cursor.getDimensionOffset(i));
+			src.get(dim);
+			assertArrayEquals(dims[i].getBytes(), dim);
+			assertArrayEquals(dims[i].getBytes(), cursor.getDimension(i));
+		}
+		assertTrue(cursor.hasValue());
+		assertTrue(cursor.hasInlineValue());
+		assertEquals(value.length, cursor.getValueLength());
+		final byte[] inView = new byte[value.length];
+		final ByteBuffer src = view.duplicate();
+		src.position(cursor.getValueOffset());
+		src.get(inView);
+		assertArrayEquals(value, inView);
+
+		assertTrue(cursor.next());
+		assertTrue(cursor.hasValue());
+		assertFalse(cursor.hasInlineValue());
+		assertEquals(-1, cursor.getValueOffset());
+		assertEquals(99, cursor.getValueLength());
+		assertEquals(KeyValueType.CASTLE_VALUE_TYPE_OUT_OF_LINE, cursor.getValueType());
+		assertFalse(cursor.next());
+		cursor.close();
+	}
+}
@@ -0,0 +1,123 @@
+package com.acunu.castle;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks the points ParallelScan splits a range of first dimensions at. Loads
+ * Key, so needs the native library, but talks to no castle.
+ */
+public class ParallelScanTest
+{
+	private static byte[] bytes(final int... values)
+	{
+		final byte[] b = new byte[values.length];
+		for (int i = 0; i < values.length; ++i)
+			b[i] = (byte) values[i];
+		return b;
+	}
+
+	/* every point strictly inside (min, max), strictly increasing, and at most partitions - 1 of them */
+	private static List<byte[]> check(final byte[] min, final byte[] max, final int partitions)
+	{
+		final List<byte[]> splits = ParallelScan.splitPoints(min, max, partitions);
+		assertTrue(splits.size() + " points for " + partitions + " partitions", splits.size() <= partitions - 1);
+		byte[] previous = min;
+		for (final byte[] split : splits)
+		{
+			assertTrue("points must increase", Key.compareByteArrays(split, previous) > 0);
+			if (max.length != 0)
+				assertTrue("points must be below max", Key.compareByteArrays(split, max) < 0);
+			previous = split;
+		}
+		return splits;
+	}
+
+	@Test
+	public void onePartitionHasNoPoints()
+	{
+		assertEquals(0, check(bytes(), bytes(), 1).size());
+		assertEquals(0, check(bytes(1), bytes(200), 1).size());
+	}
+
+	/* an empty max is +infinity, so the whole space is split evenly */
+	@Test
+	public void emptyMaxIsInfinite()
+	{
+		final List<byte[]> splits = check(bytes(), bytes(), 4);
+		assertEquals(3, splits.size());
+		assertArrayEquals(bytes(0x3F, 0xFF, 0xFF, 0xFF), splits.get(0));
+		assertArrayEquals(bytes(0x7F, 0xFF, 0xFF, 0xFF), splits.get(1));
+		assertArrayEquals(bytes(0xBF, 0xFF, 0xFF, 0xFF), splits.get(2));
+	}
+
+	@Test
+	public void commonPrefixIsKept()
+	{
+		final byte[] min = bytes('u', 's', 'e', 'r', 'a');
+		final byte[] max = bytes('u', 's', 'e', 'r', 'z');
+		final List<byte[]> splits = check(min, max, 8);
+		assertEquals(7, splits.size());
+		for (final byte[] split : splits)
+		{
+			assertEquals(4 + 4, split.length);
+			for (int i = 0; i < 4; ++i)
+				assertEquals(min[i], split[i]);
+		}
+	}
+
+	/* bytes above 0x7F sort after those below, as castle compares them */
+	@Test
+	public void bytesAreUnsigned()
+	{
+		final List<byte[]> splits = check(bytes(0x10), bytes(0xF0), 2);
+		assertEquals(1, splits.size());
+		assertArrayEquals(bytes(0x80, 0, 0, 0), splits.get(0));
+	}
+
+	@Test
+	public void adjacentBoundsHaveNoPoints()
+	{
+		assertEquals(0, check(bytes(1), bytes(1), 4).size());
+		assertEquals(0, check(bytes(1), bytes(1, 0), 4).size());
+		assertEquals(0, check(bytes(1, 0xFF, 0xFF, 0xFF), bytes(2), 4).size());
+	}
+
+	/* more partitions than there are points between the bounds */
+	@Test
+	public void narrowRangeHasFewerPoints()
+	{
+		final List<byte[]> splits = check(bytes(1, 0xFF, 0xFF, 0xFD), bytes(2), 16);
+		assertEquals(2, splits.size());
+		assertArrayEquals(bytes(1, 0xFF, 0xFF, 0xFE), splits.get(0));
+		assertArrayEquals(bytes(1, 0xFF, 0xFF, 0xFF), splits.get(1));
+	}
+
+	@Test
+	public void randomBounds()
+	{
+		final Random random = new Random(42);
+		for (int n = 0; n < 10000; ++n)
+		{
+			final byte[] a = new byte[random.nextInt(8)];
+			final byte[] b = new byte[random.nextInt(8)];
+			random.nextBytes(a);
+			random.nextBytes(b);
+			/* share a prefix now and then, as keys in one collection often do */
+			if (random.nextBoolean() && a.length > 2 && b.length > 2)
+				System.arraycopy(a, 0, b, 0, 2);
+
+			final int partitions = 1 + random.nextInt(16);
+			if (b.length == 0 || Key.compareByteArrays(a, b) < 0)
+				check(a, b, partitions);
+			else if (a.length == 0 || Key.compareByteArrays(b, a) < 0)
+				check(b, a, partitions);
+		}
+	}
+}